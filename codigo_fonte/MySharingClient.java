@@ -57,6 +57,11 @@ public class MySharingClient {
         System.out.println("Cliente iniciou-se");
         try {
 	        String authenticationStatus = commander.authenticate();
+	        if(authenticationStatus.equals("BUSY")) {
+	        	System.out.println("O servidor atingiu o limite de sessões. Tente mais tarde.");
+	        	ClientSocketHandler.disconnectFromServer();
+	        	return;
+	        }
 	        if(authenticationStatus.equals("WRONG-PWD")) {
 	        	while(authenticationStatus.equals("WRONG-PWD")){
 	            	System.out.println("A autenticação falhou.\nInsira de novo a Password: ");
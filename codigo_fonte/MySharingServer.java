@@ -1,11 +1,11 @@
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Files;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -20,9 +20,24 @@ import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 
+import file_communication.Command;
+import file_communication.MessageChannel;
+import file_communication.Protocol;
 import sec_addons.MACMaster;
 import sec_addons.PasswordBaseEncryptor;
+import server_tools.BandwidthShaper;
+import server_tools.ChunkStore;
+import server_tools.ClientSession;
+import server_tools.IntegrityScrubber;
+import server_tools.LockManager;
+import server_tools.MappedUserStore;
+import server_tools.NioSessionServer;
 import server_tools.ServerCommandHandler;
+import server_tools.SessionExecutor;
+import server_tools.SessionWorkers;
+import server_tools.StagedUpload;
+import server_tools.UserRegistry;
+import server_tools.WorkspaceRegistry;
 
 /**
  * Class that executes the server and creates the files
@@ -34,25 +49,47 @@ import server_tools.ServerCommandHandler;
 public class MySharingServer {
 	
 	//Synchronization locks
-	private static final Object USERS_LOCK = new Object();
-	private static final Object WORKSPACES_LOCK = new Object();
-	private static final Object FILE_LOCK = new Object();
+	private static final LockManager LOCKS = LockManager.fromSystemProperties();
+
+	//limits of the rate of the files sent and received
+	private static final BandwidthShaper SHAPER = BandwidthShaper.fromSystemProperties();
 
 	//files directly used by the server
 	static File usersFile = new File("./server_files/server_users.txt");
+	static File usersStore = new File("./server_files/server_users.bin");
 	static File workspacesFile = new File("./server_files/server_workspaces.txt");
+	static File workspacesLog = new File("./server_files/server_workspaces.log");
 	static File usersMAC = new File("./server_files/userMAC.txt");
 	static File workspacesMAC = new File("./server_files/workspaceMAC.txt");
+	static File scrubReport = new File("./server_files/scrub_report.txt");
+	static File stagingDirectory = new File("./server_files/.staging");
+	static File chunksDirectory = new File("./server_files/.chunks");
 
 	//server's secret key created at the start of its execution
 	static SecretKey serverKey;
 
+	//users and workspaces of the server, read from their files once those are verified
+	static UserRegistry userRegistry;
+	static WorkspaceRegistry workspaceRegistry;
+
 	//responsible for all MAC related actions throughout the execution
 	static MACMaster usersMACMaster;
 	static MACMaster workspacesMACMaster;
 
 	//needed in order for the server to be able to operate without a MAC calculated
 	static boolean usesMac = false;
+
+	//runs the sessions of the clients and limits how many are active
+	static SessionExecutor sessions;
+
+	//stores that can keep the users, chosen with the mysharing.store property
+	static final String TEXT_STORE = "text";
+	static final String BINARY_STORE = "binary";
+	static boolean binaryStore = false;
+
+	//transports that can carry the sessions, chosen with the mysharing.transport property
+	static final String BLOCKING_TRANSPORT = "blocking";
+	static final String NIO_TRANSPORT = "nio";
 	
 	public static void main(String[] args) {
 		System.setProperty("javax.net.ssl.keyStore", "./sec_addons/keystores/keystore.server");
@@ -68,6 +105,7 @@ public class MySharingServer {
 		try {
 			usersFile.createNewFile();
 			workspacesFile.createNewFile();
+			workspacesLog.createNewFile();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -106,7 +144,7 @@ public class MySharingServer {
 	
 	/**
 	 * Method responsible to start the server and create
-	 * threads for the clients
+	 * sessions for the clients
 	 * 
 	 * @param port port that the server will start with
 	 */
@@ -114,6 +152,7 @@ public class MySharingServer {
 	
 		SSLServerSocket sSoc = null;
 		try {
+			binaryStore = System.getProperty("mysharing.store", TEXT_STORE).equals(BINARY_STORE);
 			try {
 				String permission = verifyIntegrity();
 				if (permission.equals("TERMINATE"))
@@ -123,17 +162,33 @@ public class MySharingServer {
 			} catch (InvalidKeyException e) {
 				e.printStackTrace();
 			}
+			userRegistry = openUserRegistry();
+			workspaceRegistry = WorkspaceRegistry.fromSystemProperties(workspacesFile, workspacesLog, LOCKS.getWorkspacesLock().writeLock(), workspacesMACMaster);
+			IntegrityScrubber.fromSystemProperties(new File("./server_files"), scrubReport, userRegistry, workspaceRegistry, LOCKS,
+					usesMac ? usersMACMaster : null, usesMac ? workspacesMACMaster : null).start();
+			long expiry = Long.getLong("mysharing.resume.expiry", StagedUpload.DEFAULT_EXPIRY);
+			StagedUpload.removeExpired(stagingDirectory, expiry);
+			ChunkStore.removeUnreferenced(chunksDirectory, new File("./server_files"), expiry);
+			boolean nio = System.getProperty("mysharing.transport", BLOCKING_TRANSPORT).equals(NIO_TRANSPORT);
+			sessions = SessionExecutor.fromSystemProperties(!nio);
+
+			if (nio) {
+				int loops = Integer.getInteger("mysharing.nio.loops", 2);
+				NioSessionServer nioServer = new NioSessionServer(port, loops, sessions, ServerSession::new);
+				System.out.println("Servidor iniciado! (transporte: nio, " + loops + " event loops, sessões: " + sessions.getMode() + ")");
+				nioServer.run();
+				return;
+			}
 			
 			ServerSocketFactory ssf = SSLServerSocketFactory.getDefault();
 			sSoc = (SSLServerSocket) ssf.createServerSocket(port);
 			sSoc.setNeedClientAuth(true);
 
-			System.out.println("Servidor iniciado!");
+			System.out.println("Servidor iniciado! (transporte: blocking, sessões: " + sessions.getMode() + ")");
 			while(true) {
 				try {
 					Socket inSoc = sSoc.accept();
-					ServerThread newServerThread = new ServerThread(inSoc);
-					newServerThread.start();
+					sessions.admit(() -> sessions.submit(new ServerThread(inSoc)), () -> sessions.refuse(inSoc));
 				}
 				
 				catch (IOException e) {
@@ -146,6 +201,8 @@ public class MySharingServer {
 		}
 		finally {
 			try {
+				if (sessions != null)
+					sessions.shutdown();
 				if (sSoc != null)
 					sSoc.close();
 				
@@ -155,6 +212,35 @@ public class MySharingServer {
 		}
 	}
 
+	/**
+	 * Method that opens the users of the server, in the store chosen with the mysharing.store
+	 * property. The first time the binary store is chosen, the users of the text file are
+	 * migrated into it, and from then on the text file is no longer used
+	 * 
+	 * @return the users of the server
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private static UserRegistry openUserRegistry() throws IOException, NoSuchAlgorithmException {
+		if (!binaryStore)
+			return new UserRegistry(usersFile, LOCKS.getUsersLock(), usersMACMaster);
+		if (usersStore.exists())
+			return new UserRegistry(MappedUserStore.open(usersStore), LOCKS.getUsersLock(), usersMACMaster);
+		MappedUserStore store = MappedUserStore.migrate(usersFile, usersStore);
+		usersMACMaster.writeMACIntoFile(usersStore);
+		System.out.println("Utilizadores migrados para " + usersStore.getPath());
+		return new UserRegistry(store, LOCKS.getUsersLock(), usersMACMaster);
+	}
+
+	/**
+	 * Method that returns the file where the users are kept
+	 * 
+	 * @return the binary store, if it is used and was already created, the text file if not
+	 */
+	private static File usersDataFile() {
+		return binaryStore && usersStore.exists() ? usersStore : usersFile;
+	}
+
 	/**
 	 * Method that verifies the integrity of the server files at the start 
 	 * of the server's execution
@@ -186,11 +272,11 @@ public class MySharingServer {
 
 				usersMACMaster = new MACMaster(usersMAC, true);
 				usersMACMaster.setKey(serverKey);
-				usersMACMaster.writeMACIntoFile(usersFile);
+				usersMACMaster.writeMACIntoFile(usersDataFile());
 
 				workspacesMACMaster = new MACMaster(workspacesMAC, true);
 				workspacesMACMaster.setKey(serverKey);
-				workspacesMACMaster.writeMACIntoFile(workspacesFile);
+				workspacesMACMaster.writeMACIntoFile(workspacesFile, workspacesLog);
 
 				scanner.close();
 				return "MAC";
@@ -208,7 +294,10 @@ public class MySharingServer {
 			workspacesMACMaster = new MACMaster(workspacesMAC, true);
 			usersMACMaster.setKey(serverKey);
 			workspacesMACMaster.setKey(serverKey);
-			if (usersMACMaster.getMACFromData(Files.readAllBytes(usersFile.toPath())).equals(usersMACMaster.getExistingMAC())) {
+			//a MAC written over the whole content of the files is replaced by the MAC of their hash trees
+			if (!workspacesMACMaster.verifyFiles(workspacesFile, workspacesLog))
+				workspacesMACMaster.upgradeMAC(workspacesFile, workspacesLog);
+			if (usersMACMaster.verifyFiles(usersDataFile()) || usersMACMaster.upgradeMAC(usersDataFile())) {
 				scanner.close();
 				return "MAC";
 			}
@@ -218,9 +307,131 @@ public class MySharingServer {
 	}
 
 	/**
-	 * Class responsible to create threads for the clients
+	 * Class responsible for the session of a client, independent of the
+	 * transport that carries it
 	 */
-	static class ServerThread extends Thread {
+	static class ServerSession implements ClientSession {
+
+		private InputStream socketInput;
+		private OutputStream socketOutput;
+		private MessageChannel channel = null;
+		private ServerCommandHandler handler = null;
+		private SessionWorkers workers = SessionWorkers.fromSystemProperties(sessions);
+
+		/**
+		 * Constructor. Initializes the session
+		 * 
+		 * @param socketInput stream with the bytes sent by the client
+		 * @param socketOutput stream with the bytes sent to the client
+		 */
+		ServerSession(InputStream socketInput, OutputStream socketOutput) {
+			this.socketInput = socketInput;
+			this.socketOutput = socketOutput;
+			System.out.println("Ligação com cliente iniciada!");
+		}
+
+		/**
+		 * Method that opens the channel of the session, with the protocol
+		 * chosen by the client, and authenticates the client
+		 * 
+		 * @return true if the session may continue, false if not
+		 */
+		public boolean open() {
+			try {
+				channel = Protocol.acceptChannel(socketInput, socketOutput);
+				handler = new ServerCommandHandler(channel, userRegistry, workspaceRegistry, LOCKS, SHAPER, usersMACMaster, workspacesMACMaster, usesMac);
+				handler.authenticate();
+				return true;
+			} catch (IOException | NoSuchAlgorithmException | InvalidKeyException | InvalidKeySpecException 
+					| KeyStoreException | CertificateException | NoSuchPaddingException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		/**
+		 * Method that receives the next action of the client and hands it to the workers
+		 * of the session, so that the session can receive the next actions while this
+		 * one runs. If the channel is not multiplexed the replies are delivered in the
+		 * order of the actions, and the actions that read from the client (UP and ADD)
+		 * wait for the others to end and run in the session itself
+		 * 
+		 * @return true if the session may continue, false if the connection ended
+		 */
+		public boolean processNextAction() {
+			try {
+				Command command = channel.receiveCommand();
+				if (command == null)
+					return true;
+				MessageChannel request = channel.requestChannel(command);
+				if (channel.isMultiplexed())
+					workers.submit(command, request, false, requestChannel -> executeRequest(command, requestChannel, request));
+				else if (readsFromClient(command)) {
+					workers.awaitIdle();
+					handler.executeAction(command);
+				}
+				else
+					workers.submit(command, request, true, requestChannel -> executeRequest(command, requestChannel, request));
+			}
+			catch (SocketException | UnrecoverableKeyException |EOFException e) {
+				System.out.println("Conexão com o cliente terminada!");
+				workers.cancel();
+				return false;
+			}
+			catch (InterruptedException e) {
+				workers.cancel();
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			catch (ClassNotFoundException | IOException | NoSuchAlgorithmException | InvalidKeyException | InvalidKeySpecException | 
+			KeyStoreException | CertificateException | NoSuchPaddingException e) {
+				e.printStackTrace();
+			}
+			return true;
+		}
+
+		/**
+		 * Auxiliary method that checks if an action reads more than the command from the client
+		 * 
+		 * @param command the action
+		 * @return true if it does, false if not
+		 */
+		private boolean readsFromClient(Command command) {
+			return command.getName().equals("UP") || command.getName().equals("ADD");
+		}
+
+		/**
+		 * Auxiliary method executed by a worker, that executes an action and closes its request
+		 * 
+		 * @param command the action
+		 * @param requestChannel the channel through which the action answers
+		 * @param request the channel of the request of the action
+		 */
+		private void executeRequest(Command command, MessageChannel requestChannel, MessageChannel request) {
+			try {
+				handler.forChannel(requestChannel).executeAction(command);
+			}
+			catch (SocketException | EOFException e) {
+				//the connection ended, the session reports it
+			}
+			catch (ClassNotFoundException | IOException | GeneralSecurityException e) {
+				e.printStackTrace();
+			}
+			finally {
+				try {
+					channel.endRequest(request);
+				} catch (IOException e) {
+					//the connection ended, the session reports it
+				}
+			}
+		}
+	}
+
+	/**
+	 * Class responsible for a client connected through the blocking
+	 * transport. It is executed by the SessionExecutor
+	 */
+	static class ServerThread implements Runnable {
 
 		private Socket socket = null;
 		
@@ -231,40 +442,33 @@ public class MySharingServer {
 		 */
 		ServerThread(Socket inSoc) {
 			socket = inSoc;
-			System.out.println("Ligação com cliente iniciada!");
 		}
 		
 		/**
-		 * Method that runs the thread
+		 * Method that runs the session until the connection ends
 		 */
 		public void run() {
-			ObjectInputStream in = null;
-			ObjectOutputStream out = null;
-			ServerCommandHandler handler = null;
 			try {
-				out = new ObjectOutputStream(socket.getOutputStream());
-				in = new ObjectInputStream(socket.getInputStream());
-				handler = new ServerCommandHandler(in,out,USERS_LOCK,WORKSPACES_LOCK, FILE_LOCK, usersMACMaster, workspacesMACMaster, usesMac);
-				handler.authenticate();
-			} catch (IOException | NoSuchAlgorithmException | InvalidKeyException | InvalidKeySpecException 
-					| KeyStoreException | CertificateException | NoSuchPaddingException e) {
-				e.printStackTrace();			
-			}
-			
-			while(true) {
-				String action = null;
-				try {
-					action = (String) in.readObject();
-					handler.executeAction(action);
-				}
-				catch (SocketException | UnrecoverableKeyException |EOFException e) {
-					System.out.println("Conexão com o cliente terminada!");
-					break;
-				}
-				catch (ClassNotFoundException | IOException | NoSuchAlgorithmException | InvalidKeyException | InvalidKeySpecException | 
-				KeyStoreException | CertificateException | NoSuchPaddingException e) {
-					e.printStackTrace();
+				ClientSession session = new ServerSession(socket.getInputStream(), socket.getOutputStream());
+				if (session.open()) {
+					while (session.processNextAction()) {
+						//the session keeps processing the actions of the client
+					}
 				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			closeSocket();
+		}
+
+		/**
+		 * Auxiliary method that closes the connection with the client
+		 */
+		private void closeSocket() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
 	}
@@ -0,0 +1,231 @@
+package client_tools;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Class that uploads many files to a workspace at once, through several connections
+ * to the server, each authenticated on its own. The files are split between the
+ * connections so that each one has about the same number of bytes to send, and each
+ * connection uploads its share with a single UP command
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class BulkUploader {
+
+	//number of connections used when the mysharing.bulk.connections property is not defined
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	private String serverAddress;
+	private String user;
+	private String password;
+	private int connections;
+
+	/**
+	 * Constructor. Initializes the uploader
+	 *
+	 * @param serverAddress the address of the server
+	 * @param user user currently sending commands
+	 * @param password password of the current user
+	 * @param connections maximum number of connections to be opened
+	 */
+	public BulkUploader(String serverAddress, String user, String password, int connections) {
+		this.serverAddress = serverAddress;
+		this.user = user;
+		this.password = password;
+		this.connections = Math.max(1, connections);
+	}
+
+	/**
+	 * Method that uploads files to a workspace
+	 *
+	 * @param workspace workspace which the files will be uploaded to
+	 * @param files files to be uploaded
+	 * @return the reply of the server for every file, followed by the throughput
+	 * of each connection and of the whole upload
+	 * @throws IOException if no connection could be opened
+	 */
+	public String upload(String workspace, String[] files) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		List<File> existing = new ArrayList<>();
+		for (String file : files) {
+			if (new File(file).isFile())
+				existing.add(new File(file));
+			else {
+				sb.append(file + ": Não existe");
+				sb.append("\n          ");
+			}
+		}
+		if (existing.isEmpty())
+			return sb.toString();
+
+		List<ClientCommands> commanders = new ArrayList<>();
+		List<Socket> sockets = new ArrayList<>();
+		ExecutorService executor = null;
+		try {
+			String failure = openConnections(Math.min(connections, existing.size()), commanders, sockets);
+			if (commanders.isEmpty())
+				return failure;
+
+			List<List<File>> shares = split(existing, commanders.size());
+			executor = Executors.newFixedThreadPool(commanders.size());
+			List<Future<Upload>> uploads = new ArrayList<>();
+			long start = System.nanoTime();
+			for (int i = 0; i < commanders.size(); i++) {
+				ClientCommands commander = commanders.get(i);
+				List<File> share = shares.get(i);
+				uploads.add(executor.submit(() -> upload(commander, workspace, share)));
+			}
+
+			long totalBytes = 0;
+			List<Upload> results = new ArrayList<>();
+			for (Future<Upload> upload : uploads) {
+				try {
+					Upload result = upload.get();
+					results.add(result);
+					totalBytes += result.bytes;
+					sb.append(result.reply);
+				} catch (Exception e) {
+					sb.append("Erro numa das ligações: " + e.getMessage());
+					sb.append("\n          ");
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+
+			sb.append("\n");
+			for (int i = 0; i < results.size(); i++) {
+				Upload result = results.get(i);
+				sb.append("Ligação " + (i + 1) + ": " + result.files + " ficheiros, "
+						+ throughput(result.bytes, result.nanos));
+				sb.append("\n");
+			}
+			sb.append("Total (" + results.size() + " ligações): " + throughput(totalBytes, elapsed));
+			return sb.toString();
+		}
+		finally {
+			if (executor != null)
+				executor.shutdown();
+			for (Socket socket : sockets)
+				socket.close();
+		}
+	}
+
+	/**
+	 * Auxiliary method that opens and authenticates the connections of the upload.
+	 * A connection refused by the server is not used, the others still are
+	 *
+	 * @param count number of connections to be opened
+	 * @param commanders list where the commands of the connections are added
+	 * @param sockets list where the connections are added
+	 * @return the reason why the last connection was refused, null if none was
+	 */
+	private String openConnections(int count, List<ClientCommands> commanders, List<Socket> sockets) {
+		String failure = null;
+		for (int i = 0; i < count; i++) {
+			try {
+				Socket socket = ClientSocketHandler.openConnection(serverAddress);
+				sockets.add(socket);
+				ClientCommands commander = new ClientCommands(user, password, socket);
+				String status = commander.authenticate(user, password);
+				if (status.startsWith("OK"))
+					commanders.add(commander);
+				else
+					failure = "Ligação " + (i + 1) + " recusada: " + status;
+			} catch (IOException | ClassNotFoundException e) {
+				failure = "Ligação " + (i + 1) + " falhou: " + e.getMessage();
+			}
+		}
+		return failure;
+	}
+
+	/**
+	 * Auxiliary method that splits the files between the connections, giving each
+	 * file, from the largest to the smallest, to the connection with fewer bytes
+	 *
+	 * @param files the files to be split
+	 * @param count number of connections
+	 * @return the files of each connection
+	 */
+	private static List<List<File>> split(List<File> files, int count) {
+		List<List<File>> shares = new ArrayList<>();
+		long[] sizes = new long[count];
+		for (int i = 0; i < count; i++)
+			shares.add(new ArrayList<>());
+
+		File[] sorted = files.toArray(new File[0]);
+		Arrays.sort(sorted, Comparator.comparingLong(File::length).reversed());
+		for (File file : sorted) {
+			int smallest = 0;
+			for (int i = 1; i < count; i++) {
+				if (sizes[i] < sizes[smallest])
+					smallest = i;
+			}
+			shares.get(smallest).add(file);
+			sizes[smallest] += file.length();
+		}
+		return shares;
+	}
+
+	/**
+	 * Auxiliary method that uploads the share of files of one connection
+	 *
+	 * @param commander the commands of the connection
+	 * @param workspace workspace which the files will be uploaded to
+	 * @param share the files of the connection
+	 * @return the result of the upload
+	 * @throws Exception if the upload failed
+	 */
+	private static Upload upload(ClientCommands commander, String workspace, List<File> share) throws Exception {
+		if (share.isEmpty())
+			return new Upload("", 0, 0, 0);
+		StringBuilder names = new StringBuilder();
+		long bytes = 0;
+		for (File file : share) {
+			names.append(file.getPath());
+			names.append(",");
+			bytes += file.length();
+		}
+		long start = System.nanoTime();
+		String reply = commander.uploadFiles(workspace, names.toString());
+		return new Upload(reply, share.size(), bytes, System.nanoTime() - start);
+	}
+
+	/**
+	 * Auxiliary method that formats a throughput
+	 *
+	 * @param bytes bytes sent
+	 * @param nanos time taken, in nanoseconds
+	 * @return the throughput, in MB/s
+	 */
+	private static String throughput(long bytes, long nanos) {
+		double seconds = Math.max(nanos, 1) / 1e9;
+		return String.format(Locale.ROOT, "%.2f MB em %.2f s (%.2f MB/s)", bytes / 1e6, seconds, bytes / 1e6 / seconds);
+	}
+
+	/**
+	 * Result of the upload of one connection
+	 */
+	private static class Upload {
+
+		private String reply;
+		private int files;
+		private long bytes;
+		private long nanos;
+
+		Upload(String reply, int files, long bytes, long nanos) {
+			this.reply = reply;
+			this.files = files;
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+	}
+}
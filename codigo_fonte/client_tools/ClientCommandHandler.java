@@ -1,7 +1,10 @@
 package client_tools;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Class used mostly to print into the command line the status of the client's actions
@@ -38,82 +41,149 @@ public class ClientCommandHandler {
         "ADD <user1> <ws> # Adicionar utilizador <user1> ao workspace <ws>.\n" + //
         "\tA operação ADD só funciona se o utilizador for o Owner do workspace<ws>.\n" + //
         "UP <ws> <file1> ... <filen> # Adicionar ficheiros ao workspace.\n" + //
+        "BULK <ws> <file1> ... <filen> # Adicionar muitos ficheiros ao workspace, através de várias ligações em paralelo.\n" + //
         "DW <ws> <file1> ... <filen> # Download de ficheiros do workspace para a máquina local.\n" + //
         "RM <ws> <file1> ... <filen> # Apagar ficheiros do workspace.\n" + //
         "LW # Lista os workspaces associados ao utilizador.\n" + //
-        "LS <ws> # Lista os ficheiros dentro de um workspace.\n");
+        "LS <ws> # Lista os ficheiros dentro de um workspace.\n" + //
+        "Vários comandos podem ser dados na mesma linha, separados por ';' (ex: LS <ws>; RM <ws> <file1>; LW).\n" + //
+        "Um comando terminado em '&' é executado em segundo plano (ex: DW <ws> <file1> &).\n");
     }
 
     /**
-     * Method that takes a command, performs the changes specified in it, and displays the status
-     * in the command line
+     * Method that takes a line with one or more commands separated by ';', performs the changes
+     * specified in them, and displays their status in the command line.
+     * Commands that only exchange messages (CREATE, RM, LW and LS) are all sent before their
+     * replies are read, so a line with many of them waits for the server only once.
+     * A command that ends with '&' runs in the background, if the server supports it,
+     * and its reply is displayed when it arrives
+     * @param line commands given by the user
+     * @throws IOException 
+     * @throws ClassNotFoundException 
+     * @throws GeneralSecurityException 
+     */
+    public void handleCommand(String line) throws ClassNotFoundException, IOException, GeneralSecurityException {
+    	List<CompletableFuture<String>> outputs = new ArrayList<>();
+    	for (String command : line.split(";")) {
+    		command = command.trim();
+    		if (command.endsWith("&") && command.length() > 1) {
+    			runInBackground(command.substring(0, command.length() - 1).trim());
+    			continue;
+    		}
+    		if (!command.isEmpty() || outputs.isEmpty())
+    			outputs.add(dispatchCommand(command));
+    	}
+    	for (CompletableFuture<String> output : outputs) {
+    		String text = ClientCommands.waitForReply(output);
+    		if (text != null) {
+    			ProgressLine.clear();
+    			System.out.println(text);
+    		}
+    	}
+    }
+
+    /**
+     * Auxiliary method that performs a command in the background, while the user
+     * keeps giving other commands through the same connection
+     * @param command command given by the user
+     * @throws IOException 
+     * @throws ClassNotFoundException 
+     * @throws GeneralSecurityException 
+     */
+    private void runInBackground(String command) throws ClassNotFoundException, IOException, GeneralSecurityException {
+    	if (!commander.isMultiplexed()) {
+    		System.out.println("O servidor não suporta comandos em segundo plano, o comando vai ser executado agora");
+    		System.out.println(ClientCommands.waitForReply(dispatchCommand(command)));
+    		return;
+    	}
+    	CompletableFuture.supplyAsync(() -> {
+    		try {
+    			return ClientCommands.waitForReply(dispatchCommand(command));
+    		} catch (ClassNotFoundException | IOException | GeneralSecurityException e) {
+    			return "Erro: " + e.getMessage();
+    		}
+    	}).thenAccept(output -> {
+    		if (output != null) {
+    			ProgressLine.clear();
+    			System.out.println("\n[" + command + "] " + output);
+    		}
+    	});
+    }
+
+    /**
+     * Auxiliary method that performs a single command
      * @param command command given by the user
+     * @return the text to be displayed once the reply of the command arrives
      * @throws IOException 
      * @throws ClassNotFoundException 
      * @throws GeneralSecurityException 
      */
-    public void handleCommand(String command) throws ClassNotFoundException, IOException, GeneralSecurityException {
+    private CompletableFuture<String> dispatchCommand(String command) throws ClassNotFoundException, IOException, GeneralSecurityException {
         
         String[] partitionedCommand = command.split(" ");
         String commandHead = partitionedCommand[0].toUpperCase();;
     	switch (commandHead) {
             case "CREATE":
-            	if (partitionedCommand.length != 3) {
-            		System.out.println("Comando CREATE é escrito da forma: CREATE <ws> <password>");
-            		break;
-            	}
-                System.out.println("Resposta: " + commander.createWorkspace(partitionedCommand[1], partitionedCommand[2]));
-                break;
+            	if (partitionedCommand.length != 3)
+            		return output("Comando CREATE é escrito da forma: CREATE <ws> <password>");
+                return response(commander.createWorkspaceAsync(partitionedCommand[1], partitionedCommand[2]));
             case "ADD":
-            	if (partitionedCommand.length != 3) {
-            		System.out.println("Comando ADD é escrito da forma: ADD <user1> <ws>");
-            		break;
-            	}
-            	System.out.println("Resposta: " + commander.addMembers(partitionedCommand[1],partitionedCommand[2]));
-                break;
+            	if (partitionedCommand.length != 3)
+            		return output("Comando ADD é escrito da forma: ADD <user1> <ws>");
+            	return output("Resposta: " + commander.addMembers(partitionedCommand[1],partitionedCommand[2]));
             case "UP":
-            	if (partitionedCommand.length < 3) {
-            		System.out.println("Comando UP é escrito da forma: UP <ws> <file1> ... <filen>");
-            		break;
-            	}
-            	System.out.println("Resposta: " + commander.uploadFiles(partitionedCommand[1],
+            	if (partitionedCommand.length < 3)
+            		return output("Comando UP é escrito da forma: UP <ws> <file1> ... <filen>");
+            	return output("Resposta: " + commander.uploadFiles(partitionedCommand[1],
             			arrayToString(Arrays.copyOfRange(partitionedCommand, 2, partitionedCommand.length))));
-                break;
+            case "BULK":
+            	if (partitionedCommand.length < 3)
+            		return output("Comando BULK é escrito da forma: BULK <ws> <file1> ... <filen>");
+            	BulkUploader uploader = new BulkUploader(ClientSocketHandler.getServerAddress(), user, password,
+            			Integer.getInteger("mysharing.bulk.connections", BulkUploader.DEFAULT_CONNECTIONS));
+            	return output("Resposta: " + uploader.upload(partitionedCommand[1],
+            			Arrays.copyOfRange(partitionedCommand, 2, partitionedCommand.length)));
             case "DW":
-            	if (partitionedCommand.length < 3) {
-            		System.out.println("Comando DW é escrito da forma: DW <ws> <file1> ... <filen>");
-            		break;
-            	}
-            	System.out.println("Resposta: " + commander.downloadFiles(partitionedCommand[1],
+            	if (partitionedCommand.length < 3)
+            		return output("Comando DW é escrito da forma: DW <ws> <file1> ... <filen>");
+            	return output("Resposta: " + commander.downloadFiles(partitionedCommand[1],
             			arrayToString(Arrays.copyOfRange(partitionedCommand, 2, partitionedCommand.length))));
-                break;
             case "RM":
-            	if (partitionedCommand.length < 3) {
-            		System.out.println("Comando RM é escrito da forma: RM <ws> <file1> ... <filen>");
-            		break;
-            	}
-            	System.out.println("Resposta: " + commander.removeFiles(partitionedCommand[1],
+            	if (partitionedCommand.length < 3)
+            		return output("Comando RM é escrito da forma: RM <ws> <file1> ... <filen>");
+            	return response(commander.removeFilesAsync(partitionedCommand[1],
             			arrayToString(Arrays.copyOfRange(partitionedCommand, 2, partitionedCommand.length))));
-                break;
             case "LW":
-            	if (partitionedCommand.length != 1) {
-            		System.out.println("Comando LW é escrito da forma: LW");
-            		break;
-            	}
-            	System.out.println("Resposta: " + commander.listUserWorkspaces());
-                break;
+            	if (partitionedCommand.length != 1)
+            		return output("Comando LW é escrito da forma: LW");
+            	return response(commander.listUserWorkspacesAsync());
             case "LS":
-            	if (partitionedCommand.length != 2) {
-            		System.out.println("Comando LS é escrito da forma: LS <ws>");
-            		break;
-            	}
-            	System.out.println("Resposta: " + commander.listFilesInWorkspace(partitionedCommand[1]));
-                break;
+            	if (partitionedCommand.length != 2)
+            		return output("Comando LS é escrito da forma: LS <ws>");
+            	return response(commander.listFilesInWorkspaceAsync(partitionedCommand[1]));
             default:
                 printCommandsMenu();
-                break;
+                return output(null);
     	}
     }
+
+    /**
+     * Auxiliary method that wraps a text that is ready to be displayed
+     * @param text the text, or null if there is nothing more to display
+     * @return the text, already completed
+     */
+    private CompletableFuture<String> output(String text) {
+    	return CompletableFuture.completedFuture(text);
+    }
+
+    /**
+     * Auxiliary method that formats the reply of a command once it arrives
+     * @param reply the reply of the server
+     * @return the text to be displayed
+     */
+    private CompletableFuture<String> response(CompletableFuture<String> reply) {
+    	return reply.thenApply(text -> "Resposta: " + text);
+    }
     
     /**
      * Method that authenticates the user
@@ -1,28 +1,58 @@
 package client_tools;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
+import java.security.DigestInputStream;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 
-import file_communication.FileTransferer;
+import file_communication.BlockDelta;
+import file_communication.BlockDelta.Sums;
+import file_communication.ChunkCompressor;
+import file_communication.Command;
+import file_communication.ContentChunker;
+import file_communication.ContentChunker.Chunk;
+import file_communication.MessageChannel;
+import file_communication.Protocol;
+import file_communication.TransferProgress;
 import sec_addons.*;
 /**
  * Class responsible for the logic of the commands
@@ -31,24 +61,55 @@ import sec_addons.*;
  * @author Vladislav Zavgorodnii fc59783
  */
 public class ClientCommands {
+	//the keys of the workspaces are received into files with the same name for every
+	//command, so only one command at a time may have them on disk
+	private static final Object KEY_FILES_LOCK = new Object();
+
+	//size of the parts in which the bytes already sent of a resumed upload are encrypted again
+	private static final int RESUME_BUFFER_SIZE = 64 * 1024;
+
 	private Socket CLIENT_SOCKET = ClientSocketHandler.getSocket();
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
+	private MessageChannel channel;
 	private String user;
 	private String password;
+	//reads the replies of the commands that were sent without waiting, one at a time
+	//and in the order the commands were sent, which is the order the server answers them
+	private ExecutorService replyReader = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "mysharing-replies");
+		thread.setDaemon(true);
+		return thread;
+	});
+	//completes once every reply already requested has been read
+	private volatile CompletableFuture<String> pendingReplies = CompletableFuture.completedFuture(null);
 	
 	/**
-	 * Constructor. Initializes the class
+	 * Constructor. Initializes the class, opening the channel with the protocol
+	 * given by the mysharing.protocol property (binary by default, legacy for
+	 * servers that only speak the serialized protocol)
 	 * 
 	 * @param user user currently sending commands
 	 * @param password password of the current user
 	 * @throws IOException
 	 */
 	public ClientCommands(String user, String password) throws IOException {
+		this(user, password, ClientSocketHandler.getSocket());
+	}
+
+	/**
+	 * Constructor. Initializes the class over a connection other than the one
+	 * of the client, such as the connections of a bulk upload
+	 * 
+	 * @param user user currently sending commands
+	 * @param password password of the current user
+	 * @param socket the connection to the server
+	 * @throws IOException
+	 */
+	public ClientCommands(String user, String password, Socket socket) throws IOException {
 		this.user = user;
 		this.password = password;
-		this.in = new ObjectInputStream(CLIENT_SOCKET.getInputStream());
-		this.out = new ObjectOutputStream(CLIENT_SOCKET.getOutputStream());
+		this.CLIENT_SOCKET = socket;
+		String protocol = System.getProperty("mysharing.protocol", Protocol.BINARY_PROTOCOL);
+		this.channel = Protocol.connectChannel(CLIENT_SOCKET.getInputStream(), CLIENT_SOCKET.getOutputStream(), protocol);
 	}
 
 	/**
@@ -93,7 +154,7 @@ public class ClientCommands {
 	 */
 	public String receiveMessage() throws ClassNotFoundException, IOException {
 		String message = null;
-		message = (String) in.readObject();
+		message = channel.receiveMessage();
 		return message;
 	}
 	
@@ -104,7 +165,7 @@ public class ClientCommands {
 	 * @throws IOException
 	 */
 	public void sendToServer(String message) throws IOException {
-		out.writeObject(message);
+		channel.sendMessage(message);
 	}
 	
 	/**
@@ -116,8 +177,19 @@ public class ClientCommands {
 	 * @throws IOException
 	 */
     public String createWorkspace(String workspace, String password) throws ClassNotFoundException, IOException {
-		sendToServer("CREATE " + workspace + " " + password);
-		return receiveMessage(); 	
+		return waitForReply(createWorkspaceAsync(workspace, password));
+    }
+    
+    /**
+     * Method that sends a request to create the workspace without waiting for the reply
+     * 
+     * @param workspace workspace to be created
+     * @return the reply, OK if the workspace was created, NOK otherwise
+     * @throws IOException
+     */
+    public CompletableFuture<String> createWorkspaceAsync(String workspace, String password) throws IOException {
+		MessageChannel request = channel.sendCommand(new Command("CREATE", workspace, password));
+		return readReply(() -> request.receiveMessage());
     }
     
     /**
@@ -143,30 +215,27 @@ public class ClientCommands {
     public String addMembers(String user, String workspace) throws ClassNotFoundException, IOException, KeyStoreException, 
 	NoSuchAlgorithmException, CertificateException, UnrecoverableKeyException, InvalidKeyException, NoSuchPaddingException, 
 	IllegalBlockSizeException, BadPaddingException {
-		sendToServer("ADD " + user + " " + workspace);
-    	String message = receiveMessage();
+		if (!channel.isMultiplexed())
+			awaitPendingReplies();
+		MessageChannel request = channel.sendCommand(new Command("ADD", user, workspace));
+    	String message = request.receiveMessage();
 		if (message.equals("NOUSER"))
 			return message;
 
-    	String currentUserKeyFile = "./client_tools/" + workspace + ".key." + this.user;
-    	FileTransferer.receiveFile(currentUserKeyFile, in);  
-		
     	KeyStore keyStore = KeyStoreLoader.loadKeyStore(KeyStoreLoader.CLIENT_KEYSTORE_PATH + "keystore." + this.user, password);
     	PrivateKey privateKey = KeyStoreLoader.getPrivateKey(keyStore, this.user, password);
-    	Cipher decipher = AsymmetricCipher.startDecryptCipher(privateKey);
-    	SecretKey secKey = AsymmetricCipher.decryptWorkspaceFile("./client_tools/", this.user, workspace, decipher);
+    	SecretKey secKey = receiveWorkspaceKey(request, workspace, privateKey);
 
     	KeyStore keyStoreOtherUser = KeyStoreLoader.loadKeyStore(KeyStoreLoader.CLIENT_TRUSTSTORE_PATH, 
 			KeyStoreLoader.SERVER_KEYSTORE_PASSWORD);
     	String newUserKeyFile = "./client_tools/" + workspace + ".key." + user;
 		
-    	AsymmetricCipher.createWorkspaceEncryptedFile("./client_tools/", workspace, user, secKey, 
-    	    KeyStoreLoader.getPublicKey(keyStoreOtherUser, user));
-		
-    	FileTransferer.sendFile(newUserKeyFile, out);
-
-    	new File(currentUserKeyFile).delete();
-    	new File(newUserKeyFile).delete();
+    	synchronized (KEY_FILES_LOCK) {
+    		AsymmetricCipher.createWorkspaceEncryptedFile("./client_tools/", workspace, user, secKey, 
+    				KeyStoreLoader.getPublicKey(keyStoreOtherUser, user));
+    		request.sendFile(newUserKeyFile);
+    		new File(newUserKeyFile).delete();
+    	}
     
     	return message;
     }
@@ -203,48 +272,201 @@ public class ClientCommands {
 		String updatedFiles = arrayToString(singularFiles);
 		String[] readyToGoFiles = updatedFiles.split(",");
 
-		sendToServer("UP " +  workspace + " " + updatedFiles);
-		response = receiveMessage();
+		if (!channel.isMultiplexed())
+			awaitPendingReplies();
+		//uploads cut into chunks resume on their own, from the chunks the server already has
+		boolean chunked = channel.isDeduplicated();
+		Map<String, long[]> stored = channel.isResumable() && !chunked ? queryStoredBytes(workspace, readyToGoFiles) : null;
+		MessageChannel request = channel.sendCommand(fileCommand("UP", workspace, readyToGoFiles));
+		response = request.receiveMessage();
 		if (!response.equals("OK"))
 			return response;
 		
-		FileTransferer.receiveFile("./client_tools/" + workspace + ".key." + user, in);
-
 		KeyStore keyStore = KeyStoreLoader.loadKeyStore(KeyStoreLoader.CLIENT_KEYSTORE_PATH + "keystore." + user, password);
 		PrivateKey privateKey = KeyStoreLoader.getPrivateKey(keyStore, user, password);
-		
-		Cipher decipher = AsymmetricCipher.startDecryptCipher(privateKey);
-		SecretKey workspaceKey = AsymmetricCipher.decryptWorkspaceFile("./client_tools/",user, workspace, decipher);
+		SecretKey workspaceKey = receiveWorkspaceKey(request, workspace, privateKey);
 
 		Cipher privateKeyCipher = AsymmetricCipher.startEncryptCipher(privateKey);
 		Cipher workspaceKeyCipher = SymmetricCipher.startEncryptCipher(workspaceKey);
+		Cipher chunkCipher = chunked ? SymmetricCipher.startChunkEncryptCipher(workspaceKey) : null;
+		Mac chunkMac = chunked ? ContentChunker.startMac(workspaceKey) : null;
+		//the chunks are only compressed if asked for, since the clients before version 7
+		//cannot download them
+		boolean compression = System.getProperty("mysharing.compression", ChunkCompressor.NONE).equals(ChunkCompressor.DEFLATE);
+		Deflater deflater = chunked && channel.isCompressed() && compression ? new Deflater(Deflater.BEST_SPEED) : null;
 		
 		for (String file : readyToGoFiles) {
 			if (!file.contains("/")) {
 				File inputFile = new File(file);
-	        	byte[] fileBytes = Files.readAllBytes(inputFile.toPath());
 				File signature = new File(file + ".signed");
 				signature.createNewFile();
 
-				byte[] hashedSignature = RealDigester.digester.hash(fileBytes);
+				//the file is read twice, to be hashed and to be encrypted as it is sent,
+				//so that it is never whole in memory nor copied to an encrypted file
+				byte[] hashedSignature;
+				try (InputStream fileInput = new FileInputStream(inputFile)) {
+					hashedSignature = RealDigester.digester.hash(fileInput);
+				}
 				 
 	        	byte[] encryptedSignature = AsymmetricCipher.encryptBytesToSend(privateKeyCipher, hashedSignature);
 				Files.write(signature.toPath(), encryptedSignature);
 
-				SymmetricCipher.cipher(inputFile, file + ".cif", workspaceKeyCipher);
-
-		        FileTransferer.sendFile(file + ".cif", out);
-				FileTransferer.sendFile(signature.getAbsolutePath(), out);
-				deleteTemporaryFiles(signature.getName(), file + ".cif", "./client_tools/" + workspace + ".key." + user);
+				if (chunked)
+					sendChunked(request, inputFile, chunkCipher, workspaceKeyCipher, chunkMac, deflater);
+				else if (stored != null)
+					sendResumable(request, inputFile, workspaceKeyCipher, stored.get(file));
+				else {
+					long size = SymmetricCipher.encryptedSize(inputFile.length());
+					TransferProgress progress = startProgress(request, file, size);
+					try (InputStream encryptedInput = new CipherInputStream(new FileInputStream(inputFile), workspaceKeyCipher)) {
+						request.sendStream(encryptedInput, size);
+					}
+					finally {
+						endProgress(request, progress);
+					}
+				}
+				request.sendFile(signature.getAbsolutePath());
+				deleteTemporaryFiles(signature.getName());
 			}
-			new File("./client_tools/" + workspace + ".key." + user).delete();
-			response = receiveMessage();
+			response = request.receiveMessage();
 			sb.append(response);
 			sb.append("\n          ");
 		}
+		if (deflater != null)
+			deflater.end();
         return sb.toString();
     }
     
+    /**
+     * Auxiliary method that asks the server for the bytes it already stored of interrupted
+     * uploads of files, sending every OFFSET command before reading their replies
+     * 
+     * @param workspace workspace which the files will be uploaded to
+     * @param files files to be uploaded
+     * @return for each file, the bytes stored and the size of its upload
+     * @throws IOException
+     */
+    private Map<String, long[]> queryStoredBytes(String workspace, String[] files) throws IOException {
+    	Map<String, MessageChannel> requests = new HashMap<>();
+    	for (String file : files) {
+    		if (!file.contains("/"))
+    			requests.put(file, channel.sendCommand(new Command("OFFSET", workspace, file)));
+    	}
+    	Map<String, long[]> stored = new HashMap<>();
+    	for (Map.Entry<String, MessageChannel> request : requests.entrySet()) {
+    		String[] reply = request.getValue().receiveMessage().split(" ");
+    		try {
+    			stored.put(request.getKey(), new long[] { Long.parseLong(reply[0]), Long.parseLong(reply[1]) });
+    		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+    			//the file is sent whole
+    		}
+    	}
+    	return stored;
+    }
+    
+    /**
+     * Auxiliary method that sends an encrypted file from the bytes the server already
+     * stored of an interrupted upload of the same file. The file is encrypted from its
+     * start, so that the hash of the whole encrypted file is sent after it, but only the
+     * bytes the server does not have are sent
+     * 
+     * @param request the channel of the request of the upload
+     * @param inputFile the file
+     * @param cipher encrypts the file with the key of the workspace
+     * @param stored the bytes stored by the server and the size of its upload, null if none
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void sendResumable(MessageChannel request, File inputFile, Cipher cipher, long[] stored) throws IOException, 
+    NoSuchAlgorithmException {
+    	long size = SymmetricCipher.encryptedSize(inputFile.length());
+    	long offset = (stored != null && stored[1] == size) ? stored[0] : 0;
+    	request.sendMessage(offset + " " + size);
+    	
+    	MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    	try (InputStream encryptedInput = new DigestInputStream(new CipherInputStream(new FileInputStream(inputFile), cipher), digest)) {
+    		byte[] buffer = new byte[RESUME_BUFFER_SIZE];
+    		long skipped = 0;
+    		while (skipped < offset) {
+    			int read = encryptedInput.read(buffer, 0, (int) Math.min(buffer.length, offset - skipped));
+    			if (read == -1)
+    				throw new EOFException("Ficheiro " + inputFile.getName() + " mais curto do que o já enviado");
+    			skipped += read;
+    		}
+    		TransferProgress progress = startProgress(request, inputFile.getName(), size - offset);
+    		try {
+    			request.sendStream(encryptedInput, size - offset);
+    		}
+    		finally {
+    			endProgress(request, progress);
+    		}
+    	}
+    	request.sendMessage(Base64.getEncoder().encodeToString(digest.digest()));
+    }
+    
+    /**
+     * Auxiliary method that sends a file cut into chunks by its content, sending the
+     * manifest of the file first and then only the chunks the server says it does not
+     * have, each one encrypted on its own and, since version 6, sent as differences from
+     * the blocks of the file it replaces. If a deflater is given and the file looks
+     * compressible, the chunks are compressed before they are encrypted
+     * 
+     * @param request the channel of the request of the upload
+     * @param inputFile the file
+     * @param chunkCipher encrypts the chunks that are not the last one of the file, without padding
+     * @param lastChunkCipher encrypts the last chunk of the file, padding it
+     * @param chunkMac names the chunks
+     * @param deflater compresses the chunks, null if they are not compressed
+     * @throws IOException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     */
+    private void sendChunked(MessageChannel request, File inputFile, Cipher chunkCipher, Cipher lastChunkCipher, Mac chunkMac, 
+    		Deflater deflater) throws IOException, IllegalBlockSizeException, BadPaddingException {
+    	try (RandomAccessFile fileContent = new RandomAccessFile(inputFile, "r")) {
+    		//since version 7 the codec is named first, and the files that look already
+    		//compressed are sent as they are
+    		String codec = ChunkCompressor.NONE;
+    		if (request.isCompressed()) {
+    			if (deflater != null)
+    				codec = ChunkCompressor.chooseCodec(fileContent);
+    			request.sendMessage(codec);
+    		}
+    		boolean compressed = codec.equals(ChunkCompressor.DEFLATE);
+    		List<Chunk> plainChunks;
+    		try (InputStream fileInput = new FileInputStream(inputFile)) {
+    			plainChunks = ContentChunker.split(fileInput, compressed ? null : chunkMac);
+    		}
+    		List<Chunk> chunks = compressed ? ChunkCompressor.frame(fileContent, plainChunks, chunkMac, deflater) : plainChunks;
+    		ContentChunker.sendManifest(request, chunks);
+    		BitSet missing = ContentChunker.receiveMissing(request);
+    		//since version 6 the missing chunks are sent as differences from the file they replace
+    		Sums sums = request.isDeltaEncoded() ? BlockDelta.receiveSums(request) : null;
+    		
+    		//the progress counts the missing chunks whole, even the ones sent as differences
+    		long missingSize = 0;
+    		for (int i = missing.nextSetBit(0); i >= 0 && i < chunks.size(); i = missing.nextSetBit(i + 1))
+    			missingSize += chunks.get(i).getSize();
+    		TransferProgress progress = startProgress(request, inputFile.getName(), missingSize);
+    		try {
+    			for (int i = missing.nextSetBit(0); i >= 0 && i < chunks.size(); i = missing.nextSetBit(i + 1)) {
+    				boolean last = i == chunks.size() - 1;
+    				byte[] plain = ContentChunker.read(fileContent, plainChunks, i);
+    				if (compressed)
+    					plain = ChunkCompressor.encode(plain, last, deflater);
+    				byte[] encrypted = (last ? lastChunkCipher : chunkCipher).doFinal(plain);
+    				if (sums != null && sums.getBlocks() > 0)
+    					BlockDelta.sendDelta(request, encrypted, sums);
+    				else
+    					request.sendStream(new ByteArrayInputStream(encrypted), encrypted.length);
+    			}
+    		}
+    		finally {
+    			endProgress(request, progress);
+    		}
+    	}
+    }
+    
     /**
      * Method that sends a request to download files from the workspace
      * 
@@ -266,53 +488,152 @@ public class ClientCommands {
         String response = null;
         StringBuilder sb = new StringBuilder();
 		String[] singularFiles = files.split(",");
-		sendToServer("DW " +  workspace + " " + files);
-		response = receiveMessage();
+		if (!channel.isMultiplexed())
+			awaitPendingReplies();
+		MessageChannel request = channel.sendCommand(fileCommand("DW", workspace, singularFiles));
+		response = request.receiveMessage();
 		if (!response.equals("OK"))
 			return response;
 		
-		FileTransferer.receiveFile("./client_tools/" + workspace + ".key." + user, in);
 		KeyStore keyStore = KeyStoreLoader.loadKeyStore(KeyStoreLoader.CLIENT_KEYSTORE_PATH + "keystore." + user, password);
 		PrivateKey privateKey = KeyStoreLoader.getPrivateKey(keyStore, user, password);
-		Cipher decipher = AsymmetricCipher.startDecryptCipher(privateKey);
-		SecretKey secKey = AsymmetricCipher.decryptWorkspaceFile("./client_tools/", user, workspace, decipher);
+		SecretKey secKey = receiveWorkspaceKey(request, workspace, privateKey);
 		
 		Cipher symmetricDecipher = SymmetricCipher.startDecryptCipher(secKey);
 		
 		for(String file : singularFiles) {
-			response = receiveMessage();
+			response = request.receiveMessage();
 			sb.append(response);
 			sb.append("\n          ");
 			if (response.equals(file + " #ficheiro transferido")) {
-				String signatureOwner = receiveMessage();
-				File signature = FileTransferer.receiveFile(file + ".signature", in);
-				File encryptedFile = FileTransferer.receiveFile(file + ".cif", in);
-
-				KeyStore truststore = KeyStoreLoader.loadKeyStore(KeyStoreLoader.CLIENT_TRUSTSTORE_PATH, KeyStoreLoader.SERVER_KEYSTORE_PASSWORD);
-				PublicKey publicKey = KeyStoreLoader.getPublicKey(truststore, signatureOwner);
+				String signatureOwner = request.receiveMessage();
+				File signature = new File(file + ".signature");
+				byte[] previousSignature = signature.exists() ? Files.readAllBytes(signature.toPath()) : null;
+				request.receiveFile(signature.getPath());
+				String codec = request.isCompressed() ? request.receiveMessage() : ChunkCompressor.NONE;
+				if (!ChunkCompressor.isCodec(codec))
+					throw new ProtocolException("Codec desconhecido: " + codec);
+				boolean compressed = !codec.equals(ChunkCompressor.NONE);
+				//the file is deciphered, and decompressed, as it arrives, without an encrypted
+				//copy, and only takes the place of the local file once its signature is checked
+				File partialFile = new File(file + ".part");
+				boolean resumable = channel.isResumable();
+				boolean received = false;
+				try {
+					long offset = 0;
+					//the offsets of a compressed file are not the ones of its chunks, so it is sent whole
+					if (resumable)
+						offset = requestFrom(request, partialFile, compressed ? null : previousSignature, 
+								Files.readAllBytes(signature.toPath()));
+					FileOutputStream partialOutput = new FileOutputStream(partialFile, offset > 0);
+					try {
+						OutputStream fileOutput = new CipherOutputStream(compressed ? ChunkCompressor.decoder(partialOutput) : partialOutput, 
+								symmetricDecipher);
+						TransferProgress progress = startProgress(request, file, -1);
+						try {
+							request.receiveStream(fileOutput);
+						}
+						finally {
+							endProgress(request, progress);
+						}
+						//only closed once the file is whole, so that an interrupted download
+						//keeps the blocks deciphered until then and nothing else
+						fileOutput.close();
+						received = true;
+					}
+					finally {
+						partialOutput.close();
+					}
 
-				Cipher signatureDecipher = AsymmetricCipher.startDecryptCipher(publicKey);
-				String signatureInFile = AsymmetricCipher.decryptSignature(signature.getName(), signatureDecipher);
+					KeyStore truststore = KeyStoreLoader.loadKeyStore(KeyStoreLoader.CLIENT_TRUSTSTORE_PATH, KeyStoreLoader.SERVER_KEYSTORE_PASSWORD);
+					PublicKey publicKey = KeyStoreLoader.getPublicKey(truststore, signatureOwner);
 
-				SymmetricCipher.cipher(encryptedFile, file, symmetricDecipher);
+					Cipher signatureDecipher = AsymmetricCipher.startDecryptCipher(publicKey);
+					String signatureInFile = AsymmetricCipher.decryptSignature(signature.getName(), signatureDecipher);
 
-				byte[] deciphredFileBytes = Files.readAllBytes(new File(file).toPath());
-				byte[] deciphredFileBytesHash = RealDigester.digester.hash(deciphredFileBytes);
-				String hashInString = Base64.getEncoder().encodeToString(deciphredFileBytesHash);
+					byte[] deciphredFileBytesHash;
+					try (InputStream fileInput = new FileInputStream(partialFile)) {
+						deciphredFileBytesHash = RealDigester.digester.hash(fileInput);
+					}
+					String hashInString = Base64.getEncoder().encodeToString(deciphredFileBytesHash);
 
-				if(!hashInString.equals(signatureInFile)) {
-					sb.append("Ficheiro " + file + " foi corrompido - download não se sucedeu");
-					new File(file).delete();
+					if(!hashInString.equals(signatureInFile))
+						sb.append("Ficheiro " + file + " foi corrompido - download não se sucedeu");
+					else
+						Files.move(partialFile.toPath(), new File(file).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				finally {
+					//an interrupted download is kept to be resumed, if the server can resume it
+					if (received || !resumable)
+						partialFile.delete();
 				}
 
-		        encryptedFile.delete();
 				//signature.delete(); Linha de código removida para efeitos de perservação do ficheiro de assinatura
-				new File("./client_tools/" + workspace + ".key." + user).delete();
 			}
 		}
         return sb.toString();
     }
     
+    /**
+     * Auxiliary method that tells the server the offset from which to send a file, which
+     * is the end of the last block deciphered of an interrupted download of the same file.
+     * The file is the same if its signature did not change, otherwise it is sent whole
+     * 
+     * @param request the channel of the request of the download
+     * @param partialFile the file where the download is deciphered
+     * @param previousSignature the signature of the interrupted download, null if none
+     * @param signature the signature of the file sent by the server
+     * @return the offset from which the file is sent
+     * @throws IOException
+     */
+    private long requestFrom(MessageChannel request, File partialFile, byte[] previousSignature, byte[] signature) throws IOException {
+    	long size = Long.parseLong(request.receiveMessage());
+    	long offset = 0;
+    	if (partialFile.exists() && Arrays.equals(previousSignature, signature)) {
+    		offset = partialFile.length() - partialFile.length() % SymmetricCipher.BLOCK_SIZE;
+    		if (offset >= size)
+    			offset = 0;
+    	}
+    	if (offset > 0) {
+    		try (RandomAccessFile partialContent = new RandomAccessFile(partialFile, "rw")) {
+    			partialContent.setLength(offset);
+    		}
+    	}
+    	request.sendMessage(String.valueOf(offset));
+    	return offset;
+    }
+
+    /**
+     * Auxiliary method that starts to show the progress of a file sent or received through
+     * the channel of a request, if the progress is shown (ProgressLine)
+     * 
+     * @param request the channel of the request
+     * @param name the name of the file
+     * @param size the bytes to be transferred, -1 if they are told by the server
+     * @return the progress, null if it is not shown
+     */
+    private static TransferProgress startProgress(MessageChannel request, String name, long size) {
+    	ProgressLine line = ProgressLine.get();
+    	if (line == null)
+    		return null;
+    	TransferProgress progress = new TransferProgress(name, size, line);
+    	request.setTransferProgress(progress);
+    	return progress;
+    }
+
+    /**
+     * Auxiliary method that stops showing the progress of a file
+     * 
+     * @param request the channel of the request
+     * @param progress the progress returned by startProgress
+     */
+    private static void endProgress(MessageChannel request, TransferProgress progress) {
+    	if (progress == null)
+    		return;
+    	request.setTransferProgress(null);
+    	progress.end();
+    }
+    
     /**
      * Method that sends a request to deletes files from the workspace
      * 
@@ -329,20 +650,32 @@ public class ClientCommands {
      * @throws IOException
      */
     public String removeFiles(String workspace, String files) throws ClassNotFoundException, IOException {
-        String response = null;
-        StringBuilder sb = new StringBuilder();
+		return waitForReply(removeFilesAsync(workspace, files));
+    }
+    
+    /**
+     * Method that sends a request to delete files from the workspace without waiting for the reply
+     * 
+     * @param workspace workspace which the files will be removed from
+     * @param files files to be removed
+     * @return the reply, in the same format as removeFiles
+     * @throws IOException
+     */
+    public CompletableFuture<String> removeFilesAsync(String workspace, String files) throws IOException {
 		String[] singularFiles = files.split(",");
-		sendToServer("RM " +  workspace + " " + files);
-		response = receiveMessage();
-		if (!response.equals("OK"))
-			return response;
+		MessageChannel request = channel.sendCommand(fileCommand("RM", workspace, singularFiles));
+		return readReply(() -> {
+			String response = request.receiveMessage();
+			if (!response.equals("OK"))
+				return response;
 
-		for (int i = 0; i < singularFiles.length; i++) {
-			response = receiveMessage();
-			sb.append(response);
-			sb.append("\n          ");
-		}
-        return sb.toString();
+	        StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < singularFiles.length; i++) {
+				sb.append(request.receiveMessage());
+				sb.append("\n          ");
+			}
+	        return sb.toString();
+		});
     }
     
     /**
@@ -354,8 +687,19 @@ public class ClientCommands {
      * @throws IOException
      */
     public String listUserWorkspaces() throws ClassNotFoundException, IOException {
-    	sendToServer("LW ");
-        return receiveMessage();   	
+    	return waitForReply(listUserWorkspacesAsync());
+    }
+    
+    /**
+     * Method that sends a request to list the workspaces of the current user
+     * without waiting for the reply
+     * 
+     * @return the list of the workspaces
+     * @throws IOException
+     */
+    public CompletableFuture<String> listUserWorkspacesAsync() throws IOException {
+    	MessageChannel request = channel.sendCommand(new Command("LW"));
+        return readReply(() -> request.receiveMessage());
     }
     
     /**
@@ -368,8 +712,75 @@ public class ClientCommands {
      * @throws IOException
      */
     public String listFilesInWorkspace(String workspace) throws ClassNotFoundException, IOException {
-		sendToServer("LS " +  workspace);
-        return receiveMessage(); 	
+		return waitForReply(listFilesInWorkspaceAsync(workspace));
+    }
+    
+    /**
+     * Method that sends a request to list the files of the workspace without waiting for the reply
+     * 
+     * @param workspace workspace to be listed
+     * @return the list with the files
+     * @throws IOException
+     */
+    public CompletableFuture<String> listFilesInWorkspaceAsync(String workspace) throws IOException {
+		MessageChannel request = channel.sendCommand(new Command("LS", workspace));
+        return readReply(() -> request.receiveMessage());
+    }
+    
+    /**
+     * Method that tells if the connection carries several commands at the same time,
+     * so that a command may run in the background while others are sent
+     * 
+     * @return true if it does, false if the commands run one after the other
+     */
+    public boolean isMultiplexed() {
+    	return channel.isMultiplexed();
+    }
+    
+    /**
+     * Method that waits until the replies of every command sent before have been read,
+     * used by the commands that exchange files when the connection is not multiplexed
+     * 
+     * @throws IOException
+     */
+    public void awaitPendingReplies() throws IOException {
+    	waitForReply(pendingReplies);
+    }
+    
+    /**
+     * Method that waits for a reply read in the background
+     * 
+     * @param reply the reply
+     * @return the reply, once read
+     * @throws IOException if the reply could not be read
+     */
+    public static String waitForReply(CompletableFuture<String> reply) throws IOException {
+    	try {
+    		return reply.join();
+    	} catch (CompletionException e) {
+    		if (e.getCause() instanceof IOException)
+    			throw (IOException) e.getCause();
+    		throw e;
+    	}
+    }
+    
+    /**
+     * Auxiliary method that schedules the reading of a reply after the replies
+     * of the commands sent before it
+     * 
+     * @param reader the code that reads the reply
+     * @return the reply
+     */
+    private synchronized CompletableFuture<String> readReply(ReplyReader reader) {
+    	CompletableFuture<String> reply = CompletableFuture.supplyAsync(() -> {
+    		try {
+    			return reader.read();
+    		} catch (IOException e) {
+    			throw new CompletionException(e);
+    		}
+    	}, replyReader);
+    	pendingReplies = reply;
+    	return reply;
     }
     
     /**
@@ -394,18 +805,70 @@ public class ClientCommands {
     	return string.toString();
     }
 	
+	/**
+	 * Auxiliary method that builds a command whose fields are a workspace
+	 * followed by a list of files
+	 * 
+	 * @param name name of the command
+	 * @param workspace the workspace
+	 * @param files the files
+	 * @return the command
+	 */
+	private Command fileCommand(String name, String workspace, String[] files) {
+		String[] fields = new String[files.length + 1];
+		fields[0] = workspace;
+		System.arraycopy(files, 0, fields, 1, files.length);
+		return new Command(name, fields);
+	}
+	
 	/**
 	 * Auxiliary method used to delete the temporary files used in the 
 	 * upload and download actions
 	 * 
-	 * @param file1
-	 * @param file2
-	 * @param file3
+	 * @param files the files to be deleted
+	 */
+	private void deleteTemporaryFiles(String... files) {
+		for (String file : files)
+			new File(file).delete();
+	}
+	
+	/**
+	 * Auxiliary method that receives the key of a workspace, ciphered with the public
+	 * key of the current user, and deciphers it. The file of the key is deleted at once
+	 * 
+	 * @param request the channel of the request that sends the key
+	 * @param workspace the workspace
+	 * @param privateKey the private key of the current user
+	 * @return the key of the workspace
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	private SecretKey receiveWorkspaceKey(MessageChannel request, String workspace, PrivateKey privateKey) 
+			throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, 
+			IllegalBlockSizeException, BadPaddingException {
+		String keyFile = "./client_tools/" + workspace + ".key." + user;
+		synchronized (KEY_FILES_LOCK) {
+			request.receiveFile(keyFile);
+			try {
+				Cipher decipher = AsymmetricCipher.startDecryptCipher(privateKey);
+				return AsymmetricCipher.decryptWorkspaceFile("./client_tools/", user, workspace, decipher);
+			}
+			finally {
+				new File(keyFile).delete();
+			}
+		}
+	}
+	
+	/**
+	 * Code that reads the reply of a command from its channel
 	 */
-	private void deleteTemporaryFiles(String file1, String file2, String file3) {
-		new File(file1).delete();
-		new File(file2).delete();
-		new File(file3).delete();
+	@FunctionalInterface
+	private interface ReplyReader {
+		String read() throws IOException;
 	}
 
 }
\ No newline at end of file
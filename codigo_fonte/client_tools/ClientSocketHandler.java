@@ -14,6 +14,7 @@ import javax.net.ssl.SSLSocketFactory;
  */
 public class ClientSocketHandler {
 	private static SSLSocket clientSocket;
+	private static String serverAddress;
 	
 	/**
 	 * Method that connects to the server
@@ -22,15 +23,28 @@ public class ClientSocketHandler {
 	 * @throws IOException
 	 */
 	public static void connectToServer (String serverAddress) throws IOException {
+		clientSocket = openConnection(serverAddress);
+		ClientSocketHandler.serverAddress = serverAddress;
+    }
+	
+	/**
+	 * Method that opens another connection to the server, apart from the
+	 * one of the client, such as the connections of a bulk upload
+	 * 
+	 * @param serverAddress the address of the server
+	 * @return the socket of the connection
+	 * @throws IOException
+	 */
+	public static SSLSocket openConnection (String serverAddress) throws IOException {
     	String[] ipPort = serverAddress.split(":");
     	SocketFactory sf = SSLSocketFactory.getDefault();
     	if (ipPort.length == 1) {
-			clientSocket = (SSLSocket) sf.createSocket(ipPort[0], 12345);
+			return (SSLSocket) sf.createSocket(ipPort[0], 12345);
     	}
     	else {
-    		clientSocket = (SSLSocket) sf.createSocket(ipPort[0], Integer.parseInt(ipPort[1]));
+    		return (SSLSocket) sf.createSocket(ipPort[0], Integer.parseInt(ipPort[1]));
     	}
-    }
+	}
 	
 	/**
 	 * Method that disconnects form the server
@@ -49,4 +63,13 @@ public class ClientSocketHandler {
     public static Socket getSocket() {
     	return clientSocket;
     }
+    
+    /**
+     * Method that returns the address of the server the client is connected to
+     * 
+     * @return the address of the server
+     */
+    public static String getServerAddress() {
+    	return serverAddress;
+    }
 }
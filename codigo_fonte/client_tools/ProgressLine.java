@@ -0,0 +1,160 @@
+package client_tools;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import file_communication.TransferListener;
+import file_communication.TransferProgress;
+
+/**
+ * Listener that shows the progress of the files sent and received by the client in a
+ * single line of the terminal, written over a few times per second. While several files
+ * are transferred at once, such as by BULK or by commands in the background, the line
+ * shows them all together. Each file is summed up in a line of its own once it ends.
+ *
+ * The line is shown if the mysharing.progress system property is true, which by
+ * default it is when the client runs in a terminal
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class ProgressLine implements TransferListener {
+
+	//time between two renderings of the line, in nanoseconds
+	private static final long RENDER_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+	//the line shared by all the transfers, null if it is not shown
+	private static final ProgressLine LINE = Boolean.parseBoolean(System.getProperty("mysharing.progress",
+			String.valueOf(System.console() != null))) ? new ProgressLine() : null;
+
+	//the transfers going on
+	private Set<TransferProgress> active = new LinkedHashSet<>();
+	private long lastRender = 0;
+	//length of the line written, 0 if none
+	private int width = 0;
+
+	private ProgressLine() {
+	}
+
+	/**
+	 * Method that returns the line, if it is shown
+	 *
+	 * @return the line, null if it is not shown
+	 */
+	public static ProgressLine get() {
+		return LINE;
+	}
+
+	/**
+	 * Method that erases the line, if it is shown, before other text is written in the
+	 * terminal. It is written again with the next progress
+	 */
+	public static void clear() {
+		if (LINE == null)
+			return;
+		synchronized (LINE) {
+			if (LINE.width > 0) {
+				LINE.render("");
+				System.out.print("\r");
+				LINE.width = 0;
+			}
+		}
+	}
+
+	public synchronized void transferProgressed(TransferProgress progress) {
+		active.add(progress);
+		long now = System.nanoTime();
+		if (now - lastRender < RENDER_INTERVAL)
+			return;
+		lastRender = now;
+		render(active.size() == 1 ? describe(progress) : describeAll());
+	}
+
+	public synchronized void transferEnded(TransferProgress progress) {
+		active.remove(progress);
+		if (progress.getBytes() > 0) {
+			long elapsed = progress.getElapsed();
+			render(String.format(Locale.ROOT, "%s: %s em %.1f s, média %s, %.0f%% à espera da rede, %.0f%% do disco",
+					progress.getName(), TransferProgress.formatSize(progress.getBytes()), elapsed / 1e9,
+					TransferProgress.formatRate(progress.getAverageRate()), percentOf(progress.getNetworkTime(), elapsed),
+					percentOf(progress.getDiskTime(), elapsed)));
+			System.out.println();
+			width = 0;
+		}
+		if (active.size() == 1)
+			render(describe(active.iterator().next()));
+		else if (active.size() > 1)
+			render(describeAll());
+		else
+			clear();
+	}
+
+	/**
+	 * Auxiliary method that writes the line over the one written before
+	 *
+	 * @param line the line
+	 */
+	private void render(String line) {
+		StringBuilder text = new StringBuilder("\r").append(line);
+		for (int i = line.length(); i < width; i++)
+			text.append(' ');
+		System.out.print(text);
+		System.out.flush();
+		width = line.length();
+	}
+
+	/**
+	 * Auxiliary method that describes the progress of a transfer
+	 *
+	 * @param progress the transfer
+	 * @return the description
+	 */
+	private static String describe(TransferProgress progress) {
+		return String.format(Locale.ROOT, "%s: %s de %s (%.0f%%), %s, média %s, faltam %s", progress.getName(),
+				TransferProgress.formatSize(progress.getBytes()), TransferProgress.formatSize(progress.getSize()),
+				percentOf(progress.getBytes(), progress.getSize()), TransferProgress.formatRate(progress.getCurrentRate()),
+				TransferProgress.formatRate(progress.getAverageRate()), remaining(progress.getRemaining()));
+	}
+
+	/**
+	 * Auxiliary method that describes the progress of the transfers going on together
+	 *
+	 * @return the description
+	 */
+	private String describeAll() {
+		long bytes = 0;
+		long size = 0;
+		double rate = 0;
+		for (TransferProgress progress : active) {
+			bytes += progress.getBytes();
+			size += progress.getSize();
+			rate += progress.getCurrentRate();
+		}
+		long remaining = rate > 0 && size >= bytes ? (long) ((size - bytes) / rate * 1e9) : -1;
+		return String.format(Locale.ROOT, "%d ficheiros: %s de %s (%.0f%%), %s, faltam %s", active.size(),
+				TransferProgress.formatSize(bytes), TransferProgress.formatSize(size), percentOf(bytes, size),
+				TransferProgress.formatRate(rate), remaining(remaining));
+	}
+
+	/**
+	 * Auxiliary method that formats the time left of a transfer
+	 *
+	 * @param remaining the time, in nanoseconds, -1 if it cannot be told
+	 * @return the time, in seconds
+	 */
+	private static String remaining(long remaining) {
+		return remaining < 0 ? "?" : Math.round(remaining / 1e9) + " s";
+	}
+
+	/**
+	 * Auxiliary method that returns a part of a whole, in percent
+	 *
+	 * @param part the part
+	 * @param whole the whole
+	 * @return the percentage, at most 100
+	 */
+	private static double percentOf(long part, long whole) {
+		return whole <= 0 ? 0 : Math.min(100, part * 100.0 / whole);
+	}
+}
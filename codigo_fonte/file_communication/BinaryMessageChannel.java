@@ -0,0 +1,445 @@
+package file_communication;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Channel of the binary protocol. Every command, message and piece of a file is a
+ * frame with an opcode, the id of the request it belongs to and a length-prefixed
+ * payload, as described in Protocol. The fields of a command are encoded as a count
+ * followed by length-prefixed UTF-8 strings, and files are sent in chunks after a
+ * frame with their size
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class BinaryMessageChannel implements MessageChannel {
+
+	//size of the chunks in which the files are sent
+	private static final int CHUNK_SIZE = ChunkPool.CHUNK_SIZE;
+
+	//largest payload accepted for a frame that is not part of a file
+	private static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+	private DataInputStream input;
+	private DataOutputStream output;
+	private int version;
+
+	//id of the request being answered by the server, 0 while authenticating
+	private int currentRequest = 0;
+	private int nextRequest = 1;
+
+	//the transfer whose progress is measured, null if none
+	private TransferProgress progress = null;
+
+	//header of the last frame read
+	private byte frameOpcode;
+	private int frameRequest;
+	private int frameLength;
+
+	/**
+	 * Constructor. Initializes the channel once the handshake is done
+	 *
+	 * @param in stream with the bytes sent by the other side
+	 * @param out stream with the bytes sent to the other side
+	 * @param version version of the protocol agreed
+	 */
+	BinaryMessageChannel(InputStream in, OutputStream out, int version) {
+		this.input = new DataInputStream(in);
+		this.output = new DataOutputStream(new BufferedOutputStream(out, CHUNK_SIZE + 16));
+		this.version = version;
+	}
+
+	/**
+	 * Method that returns the version of the protocol agreed in the handshake
+	 *
+	 * @return the version of the protocol
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	public void sendMessage(String message) throws IOException {
+		writeMessage(currentRequest, message);
+	}
+
+	public String receiveMessage() throws IOException {
+		return readMessage(currentRequest);
+	}
+
+	/**
+	 * Method that sends a command to the server, tagged with a new request id.
+	 * The reply of the command must be exchanged through the channel returned, which
+	 * only accepts the frames of that request, so that several commands can be sent
+	 * before their replies are read
+	 */
+	public MessageChannel sendCommand(Command command) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeShort(command.getFieldCount());
+		for (int i = 0; i < command.getFieldCount(); i++) {
+			byte[] field = command.getField(i).getBytes(StandardCharsets.UTF_8);
+			payload.writeInt(field.length);
+			payload.write(field);
+		}
+
+		int request = nextRequest++;
+		writeHeader(Protocol.opcodeOf(command.getName()), request, bytes.size());
+		bytes.writeTo(output);
+		output.flush();
+		return new RequestChannel(request);
+	}
+
+	public Command receiveCommand() throws IOException {
+		readHeader();
+		String name = Protocol.commandOf(frameOpcode);
+		if (name == null)
+			throw new ProtocolException("Esperado um comando, recebido o opcode " + frameOpcode);
+		currentRequest = frameRequest;
+
+		DataInputStream payload = new DataInputStream(new ByteArrayInputStream(readPayload()));
+		String[] fields = new String[payload.readUnsignedShort()];
+		for (int i = 0; i < fields.length; i++) {
+			byte[] field = new byte[payload.readInt()];
+			payload.readFully(field);
+			fields[i] = new String(field, StandardCharsets.UTF_8);
+		}
+		return new Command(name, fields).withRequest(currentRequest);
+	}
+
+	/**
+	 * Method that returns the channel of the request of a command, whose replies
+	 * keep the id of that request even if they are sent after the next command arrives
+	 */
+	public MessageChannel requestChannel(Command command) {
+		return new RequestChannel(command.getRequest());
+	}
+
+	public boolean isMultiplexed() {
+		return false;
+	}
+
+	public boolean isResumable() {
+		return false;
+	}
+
+	public boolean isDeduplicated() {
+		return false;
+	}
+
+	public boolean isDeltaEncoded() {
+		return false;
+	}
+
+	public boolean isCompressed() {
+		return false;
+	}
+
+	public void endRequest(MessageChannel request) {
+		//in this version the replies are delimited by the next request
+	}
+
+	public void setTransferProgress(TransferProgress progress) {
+		this.progress = progress;
+	}
+
+	public void sendFile(String filename) throws IOException {
+		writeFile(currentRequest, filename, progress);
+	}
+
+	public File receiveFile(String filename) throws IOException {
+		return readFile(currentRequest, filename, progress);
+	}
+
+	public void sendStream(InputStream content, long size) throws IOException {
+		writeStream(currentRequest, content, size, progress);
+	}
+
+	public long receiveStream(OutputStream content) throws IOException {
+		return readStream(currentRequest, content, progress);
+	}
+
+	/**
+	 * Auxiliary method that sends a text message belonging to a request
+	 *
+	 * @param request id of the request
+	 * @param message the message to be sent
+	 * @throws IOException
+	 */
+	private void writeMessage(int request, String message) throws IOException {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		writeHeader(Protocol.MESSAGE, request, bytes.length);
+		output.write(bytes);
+		output.flush();
+	}
+
+	/**
+	 * Auxiliary method that receives a text message belonging to a request
+	 *
+	 * @param request id of the request
+	 * @return the message received
+	 * @throws IOException
+	 */
+	private String readMessage(int request) throws IOException {
+		readHeader(Protocol.MESSAGE, request);
+		return new String(readPayload(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Auxiliary method that sends a file belonging to a request
+	 *
+	 * @param request id of the request
+	 * @param filename name of the file to be sent
+	 * @param progress measures the file, null if none
+	 * @throws IOException
+	 */
+	private void writeFile(int request, String filename, TransferProgress progress) throws IOException {
+		File file = new File(filename);
+		FileInputStream fileInput = new FileInputStream(file);
+		try {
+			writeStream(request, fileInput, file.length(), progress);
+		}
+		finally {
+			fileInput.close();
+		}
+	}
+
+	/**
+	 * Auxiliary method that sends the content of a stream as a file belonging to a request
+	 *
+	 * @param request id of the request
+	 * @param content stream with the content to be sent
+	 * @param size number of bytes of the content
+	 * @param progress measures the content, null if none
+	 * @throws IOException
+	 */
+	private void writeStream(int request, InputStream content, long size, TransferProgress progress) throws IOException {
+		writeHeader(Protocol.FILE_BEGIN, request, Long.BYTES);
+		output.writeLong(size);
+		if (progress != null)
+			content = progress.meter(content, size);
+
+		byte[] chunk = ChunkPool.borrow();
+		try {
+			while (size > 0) {
+				int read = content.readNBytes(chunk, 0, (int) Math.min(CHUNK_SIZE, size));
+				if (read == 0)
+					throw new EOFException("Faltam " + size + " bytes do conteúdo a enviar");
+				writeHeader(Protocol.FILE_DATA, request, read);
+				output.write(chunk, 0, read);
+				size -= read;
+			}
+		}
+		finally {
+			ChunkPool.release(chunk);
+		}
+		output.flush();
+	}
+
+	/**
+	 * Auxiliary method that receives a file belonging to a request
+	 *
+	 * @param request id of the request
+	 * @param filename name of the file where the content will be stored
+	 * @param progress measures the file, null if none
+	 * @return the file received
+	 * @throws IOException
+	 */
+	private File readFile(int request, String filename, TransferProgress progress) throws IOException {
+		File file = new File(filename);
+		OutputStream fileOutput = new FileOutputStream(file);
+		try {
+			readStream(request, fileOutput, progress);
+		}
+		finally {
+			fileOutput.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Auxiliary method that receives a file belonging to a request and writes its content into a stream
+	 *
+	 * @param request id of the request
+	 * @param content stream where the content is written
+	 * @param progress measures the content, null if none
+	 * @return the number of bytes received
+	 * @throws IOException
+	 */
+	private long readStream(int request, OutputStream content, TransferProgress progress) throws IOException {
+		readHeader(Protocol.FILE_BEGIN, request);
+		long size = input.readLong();
+		if (size < 0)
+			throw new ProtocolException("Tamanho de ficheiro inválido: " + size);
+		long total = size;
+		if (progress != null)
+			content = progress.meter(content, size);
+
+		byte[] chunk = ChunkPool.borrow();
+		try {
+			while (size > 0) {
+				readHeader(Protocol.FILE_DATA, request);
+				if (frameLength > size)
+					throw new ProtocolException("Pedaço de ficheiro maior do que o anunciado");
+				int remaining = frameLength;
+				while (remaining > 0) {
+					int length = Math.min(remaining, CHUNK_SIZE);
+					input.readFully(chunk, 0, length);
+					content.write(chunk, 0, length);
+					remaining -= length;
+				}
+				size -= frameLength;
+			}
+		}
+		finally {
+			ChunkPool.release(chunk);
+		}
+		return total;
+	}
+
+	/**
+	 * Auxiliary method that writes the header of a frame
+	 *
+	 * @param opcode opcode of the frame
+	 * @param request id of the request the frame belongs to
+	 * @param length length of the payload
+	 * @throws IOException
+	 */
+	private void writeHeader(byte opcode, int request, int length) throws IOException {
+		output.writeByte(opcode);
+		output.writeInt(request);
+		output.writeInt(length);
+	}
+
+	/**
+	 * Auxiliary method that reads the header of the next frame
+	 *
+	 * @throws IOException
+	 */
+	private void readHeader() throws IOException {
+		frameOpcode = input.readByte();
+		frameRequest = input.readInt();
+		frameLength = input.readInt();
+		if (frameLength < 0)
+			throw new ProtocolException("Tamanho de frame inválido");
+	}
+
+	/**
+	 * Auxiliary method that reads the header of the next frame, which must have a given
+	 * opcode and belong to a given request
+	 *
+	 * @param expected the opcode expected
+	 * @param request the id of the request expected
+	 * @throws IOException
+	 */
+	private void readHeader(byte expected, int request) throws IOException {
+		readHeader();
+		if (frameOpcode != expected)
+			throw new ProtocolException("Esperado o opcode " + expected + ", recebido " + frameOpcode);
+		if (frameRequest != request)
+			throw new ProtocolException("Resposta do pedido " + frameRequest + " recebida no lugar do pedido " + request);
+	}
+
+	/**
+	 * Auxiliary method that reads the payload of the last frame whose header was read
+	 *
+	 * @return the payload
+	 * @throws IOException
+	 */
+	private byte[] readPayload() throws IOException {
+		if (frameLength > MAX_PAYLOAD)
+			throw new ProtocolException("Frame demasiado grande: " + frameLength + " bytes");
+		byte[] payload = new byte[frameLength];
+		input.readFully(payload);
+		return payload;
+	}
+
+	/**
+	 * View of the channel restricted to the frames of one request. The replies of the
+	 * server come in the order of the requests, so the views must be read in that order
+	 */
+	private class RequestChannel implements MessageChannel {
+
+		private int request;
+		private TransferProgress progress = null;
+
+		RequestChannel(int request) {
+			this.request = request;
+		}
+
+		public void sendMessage(String message) throws IOException {
+			writeMessage(request, message);
+		}
+
+		public String receiveMessage() throws IOException {
+			return readMessage(request);
+		}
+
+		public MessageChannel sendCommand(Command command) throws IOException {
+			return BinaryMessageChannel.this.sendCommand(command);
+		}
+
+		public Command receiveCommand() throws IOException {
+			return BinaryMessageChannel.this.receiveCommand();
+		}
+
+		public MessageChannel requestChannel(Command command) {
+			return this;
+		}
+
+		public boolean isMultiplexed() {
+			return false;
+		}
+
+		public boolean isResumable() {
+			return false;
+		}
+
+		public boolean isDeduplicated() {
+			return false;
+		}
+
+		public boolean isDeltaEncoded() {
+			return false;
+		}
+
+		public boolean isCompressed() {
+			return false;
+		}
+
+		public void endRequest(MessageChannel request) {
+			//in this version the replies are delimited by the next request
+		}
+
+		public void setTransferProgress(TransferProgress progress) {
+			this.progress = progress;
+		}
+
+		public void sendFile(String filename) throws IOException {
+			writeFile(request, filename, progress);
+		}
+
+		public File receiveFile(String filename) throws IOException {
+			return readFile(request, filename, progress);
+		}
+
+		public void sendStream(InputStream content, long size) throws IOException {
+			writeStream(request, content, size, progress);
+		}
+
+		public long receiveStream(OutputStream content) throws IOException {
+			return readStream(request, content, progress);
+		}
+	}
+}
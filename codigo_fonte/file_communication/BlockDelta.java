@@ -0,0 +1,513 @@
+package file_communication;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class that sends the chunks of a new version of a file as differences from the version
+ * the server already has, in the manner of rsync. The server divides the parts of the
+ * encrypted file it has that may have changed into blocks and sends the rolling checksum
+ * and the strong checksum of each one. The client slides a window over each encrypted
+ * chunk it has to send, and where the rolling checksum and then the strong checksum match
+ * a block, it sends a reference to the block instead of its bytes. The server rebuilds the
+ * chunk from the references and the literal bytes, and only keeps it if its hash is the
+ * one sent by the client.
+ *
+ * The encrypted blocks only repeat at the same offsets modulo the block size of AES, so
+ * the window only looks for blocks at multiples of it. The blocks are small, since the
+ * window does not cross the ends of a chunk, and larger only for files so large that
+ * their checksums would not fit in MAX_SUMS. Version 6 of the binary protocol sends every
+ * missing chunk this way, unless the server has no block to refer to
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class BlockDelta {
+
+	//smallest and largest size of the blocks, chosen from the size of the file
+	public static final int MIN_BLOCK_SIZE = 1024;
+	public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+	//size of the strong checksums, the start of the SHA-256 of the blocks
+	private static final int STRONG_SIZE = 16;
+
+	//blocks are only looked for at multiples of the block size of AES
+	private static final int ALIGNMENT = 16;
+
+	//operations of a delta
+	private static final byte LITERAL = 0;
+	private static final byte COPY = 1;
+	private static final byte END = 2;
+
+	//largest checksums received, and most blocks they have
+	private static final int MAX_SUMS = 64 * 1024 * 1024;
+	private static final int MAX_BLOCKS = (MAX_SUMS - Integer.BYTES) / (Integer.BYTES + STRONG_SIZE);
+
+	//largest delta of a chunk, a little more than the chunk itself sent as literal bytes
+	private static final int MAX_DELTA = 2 * ContentChunker.MAX_SIZE + 1024;
+
+	//checksums of no file, with which every chunk is sent as literal bytes
+	public static final Sums NONE = new Sums(MIN_BLOCK_SIZE, null, new int[0], new byte[0][]);
+
+	private BlockDelta() {
+	}
+
+	/**
+	 * File from which a chunk is rebuilt
+	 */
+	public interface Base {
+
+		/**
+		 * Method that reads bytes of the file
+		 *
+		 * @param offset offset of the bytes in the file
+		 * @param buffer where the bytes are read into
+		 * @param length number of bytes
+		 * @throws IOException
+		 */
+		void read(long offset, byte[] buffer, int length) throws IOException;
+	}
+
+	/**
+	 * Checksums of the blocks of a file
+	 */
+	public static class Sums {
+
+		private int blockSize;
+		//offset of each block in the file, only known by the server
+		private long[] offsets;
+		private int[] weak;
+		private byte[][] strong;
+		//blocks with each rolling checksum
+		private Map<Integer, List<Integer>> blocks = new HashMap<>();
+
+		/**
+		 * Constructor. Initializes the checksums
+		 *
+		 * @param blockSize the size of the blocks
+		 * @param offsets the offset of each block, null if they follow one another from the start of the file
+		 * @param weak the rolling checksum of each block
+		 * @param strong the strong checksum of each block
+		 */
+		public Sums(int blockSize, long[] offsets, int[] weak, byte[][] strong) {
+			this.blockSize = blockSize;
+			this.offsets = offsets;
+			this.weak = weak;
+			this.strong = strong;
+			for (int i = 0; i < weak.length; i++)
+				blocks.computeIfAbsent(weak[i], sum -> new ArrayList<>(1)).add(i);
+		}
+
+		/**
+		 * Method that returns the size of the blocks
+		 *
+		 * @return the size
+		 */
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		/**
+		 * Method that returns the number of blocks
+		 *
+		 * @return the number of blocks
+		 */
+		public int getBlocks() {
+			return weak.length;
+		}
+
+		/**
+		 * Method that returns the offset of a block in the file
+		 *
+		 * @param block the block
+		 * @return the offset
+		 */
+		long offsetOf(int block) {
+			return offsets == null ? (long) block * blockSize : offsets[block];
+		}
+	}
+
+	/**
+	 * Method that returns the size of the blocks of the parts of a file, the smallest
+	 * with which their checksums fit in MAX_SUMS
+	 *
+	 * @param length the size of the parts
+	 * @return the size of the blocks, a multiple of the block size of AES
+	 */
+	public static int blockSize(long length) {
+		long size = ((length / MAX_BLOCKS) / ALIGNMENT + 1) * ALIGNMENT;
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	/**
+	 * Method that reads parts of a file and calculates the checksums of their blocks,
+	 * leaving out the last block of a part if it is not whole
+	 *
+	 * @param file the file
+	 * @param parts the offset and the size of each part, the offsets multiples of the block size of AES
+	 * @param blockSize the size of the blocks
+	 * @return the checksums
+	 * @throws IOException
+	 */
+	public static Sums sums(Base file, List<long[]> parts, int blockSize) throws IOException {
+		MessageDigest digest = sha256();
+		long total = 0;
+		for (long[] part : parts)
+			total += part[1] / blockSize;
+		int count = (int) Math.min(total, MAX_BLOCKS);
+		long[] offsets = new long[count];
+		int[] weak = new int[count];
+		byte[][] strong = new byte[count][];
+		byte[] block = new byte[blockSize];
+		int i = 0;
+		for (long[] part : parts) {
+			for (long offset = part[0]; offset + blockSize <= part[0] + part[1] && i < count; offset += blockSize, i++) {
+				file.read(offset, block, blockSize);
+				offsets[i] = offset;
+				weak[i] = weakSum(block, 0, blockSize);
+				strong[i] = strongSum(digest, block, 0, blockSize);
+			}
+		}
+		return new Sums(blockSize, offsets, weak, strong);
+	}
+
+	/**
+	 * Method that sends the checksums of the blocks of a file
+	 *
+	 * @param channel channel through which they are sent
+	 * @param sums the checksums, NONE if there is no file
+	 * @throws IOException
+	 */
+	public static void sendSums(MessageChannel channel, Sums sums) throws IOException {
+		byte[] bytes = toBytes(sums);
+		channel.sendStream(new ByteArrayInputStream(bytes), bytes.length);
+	}
+
+	/**
+	 * Method that receives the checksums of the blocks of a file
+	 *
+	 * @param channel channel through which they are received
+	 * @return the checksums, of no blocks if there is no file
+	 * @throws IOException
+	 * @throws ProtocolException if the checksums are not valid
+	 */
+	public static Sums receiveSums(MessageChannel channel) throws IOException {
+		return fromBytes(ContentChunker.receiveBytes(channel, MAX_SUMS, "Somas de controlo demasiado grandes"));
+	}
+
+	/**
+	 * Method that writes the checksums of the blocks of a file as they are sent, the size
+	 * of the blocks followed by the two checksums of each block, without their offsets
+	 *
+	 * @param sums the checksums
+	 * @return the bytes of the checksums
+	 */
+	public static byte[] toBytes(Sums sums) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(Integer.BYTES + sums.weak.length * (Integer.BYTES + STRONG_SIZE));
+		DataOutputStream output = new DataOutputStream(bytes);
+		try {
+			output.writeInt(sums.blockSize);
+			for (int i = 0; i < sums.weak.length; i++) {
+				output.writeInt(sums.weak[i]);
+				output.write(sums.strong[i]);
+			}
+		} catch (IOException e) {
+			//written into memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Method that reads the checksums of the blocks of a file written by toBytes, taking
+	 * the blocks to follow one another from the start of the file
+	 *
+	 * @param bytes the bytes of the checksums
+	 * @return the checksums
+	 * @throws IOException
+	 * @throws ProtocolException if the checksums are not valid
+	 */
+	public static Sums fromBytes(byte[] bytes) throws IOException {
+		if (bytes.length < Integer.BYTES || (bytes.length - Integer.BYTES) % (Integer.BYTES + STRONG_SIZE) != 0)
+			throw new ProtocolException("Somas de controlo inválidas");
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+		int blockSize = input.readInt();
+		if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || blockSize % ALIGNMENT != 0)
+			throw new ProtocolException("Tamanho de bloco inválido: " + blockSize);
+		int count = (bytes.length - Integer.BYTES) / (Integer.BYTES + STRONG_SIZE);
+		int[] weak = new int[count];
+		byte[][] strong = new byte[count][STRONG_SIZE];
+		for (int i = 0; i < count; i++) {
+			weak[i] = input.readInt();
+			input.readFully(strong[i]);
+		}
+		return new Sums(blockSize, null, weak, strong);
+	}
+
+	/**
+	 * Method that sends an encrypted chunk as differences from the blocks of a file
+	 *
+	 * @param channel channel through which the chunk is sent
+	 * @param data the encrypted chunk
+	 * @param sums the checksums of the blocks of the file
+	 * @return the bytes of the delta sent
+	 * @throws IOException
+	 */
+	public static int sendDelta(MessageChannel channel, byte[] data, Sums sums) throws IOException {
+		byte[] delta = encode(data, sums);
+		channel.sendStream(new ByteArrayInputStream(delta), delta.length);
+		return delta.length;
+	}
+
+	/**
+	 * Method that receives the differences of an encrypted chunk, to be applied by apply
+	 *
+	 * @param channel channel through which the chunk is received
+	 * @return the delta
+	 * @throws IOException
+	 * @throws ProtocolException if the delta is too large
+	 */
+	public static byte[] receiveDelta(MessageChannel channel) throws IOException {
+		return ContentChunker.receiveBytes(channel, MAX_DELTA, "Diferenças demasiado grandes");
+	}
+
+	/**
+	 * Method that writes an encrypted chunk as references to the blocks of a file and the
+	 * bytes found in none of them, followed by the hash of the chunk. The chunk must start
+	 * at a multiple of the block size of AES
+	 *
+	 * @param data the encrypted chunk
+	 * @param sums the checksums of the blocks of the file
+	 * @return the delta
+	 */
+	private static byte[] encode(byte[] data, Sums sums) {
+		MessageDigest digest = sha256();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream delta = new DataOutputStream(bytes);
+		try {
+			int blockSize = sums.blockSize;
+			int literalStart = 0;
+			int position = 0;
+			//blocks of the last reference, which grows while the next blocks match
+			int copyFirst = -1;
+			int copyCount = 0;
+			int weak = data.length >= blockSize ? weakSum(data, 0, blockSize) : 0;
+			while (position + blockSize <= data.length) {
+				int block = findBlock(sums, digest, weak, data, position, copyFirst + copyCount);
+				if (block >= 0) {
+					if (literalStart < position || block != copyFirst + copyCount) {
+						writeCopy(delta, copyFirst, copyCount);
+						writeLiteral(delta, data, literalStart, position);
+						copyFirst = block;
+						copyCount = 0;
+					}
+					copyCount++;
+					position += blockSize;
+					literalStart = position;
+					if (position + blockSize <= data.length)
+						weak = weakSum(data, position, blockSize);
+					continue;
+				}
+				int next = position + ALIGNMENT;
+				for (; position < next && position + blockSize < data.length; position++)
+					weak = rollSum(weak, data[position], data[position + blockSize], blockSize);
+				position = next;
+			}
+			writeCopy(delta, copyFirst, copyCount);
+			writeLiteral(delta, data, literalStart, data.length);
+			delta.writeByte(END);
+			delta.write(digest.digest(data));
+		} catch (IOException e) {
+			//written into memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Method that rebuilds an encrypted chunk from its delta and the file the delta refers to
+	 *
+	 * @param delta the delta
+	 * @param sums the checksums of the blocks of the file
+	 * @param base the file
+	 * @param output where the chunk is written
+	 * @return the size of the chunk, or -1 if it does not match the hash sent with it
+	 * @throws IOException
+	 * @throws ProtocolException if the delta is not valid
+	 */
+	public static long apply(byte[] delta, Sums sums, Base base, OutputStream output) throws IOException {
+		MessageDigest digest = sha256();
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(delta));
+		byte[] buffer = new byte[sums.blockSize];
+		long size = 0;
+		try {
+			while (true) {
+				byte operation = input.readByte();
+				if (operation == END) {
+					byte[] hash = new byte[digest.getDigestLength()];
+					input.readFully(hash);
+					return MessageDigest.isEqual(hash, digest.digest()) ? size : -1;
+				}
+				if (operation == COPY) {
+					int first = input.readInt();
+					int count = input.readInt();
+					if (first < 0 || count <= 0 || count > sums.getBlocks() - first)
+						throw new ProtocolException("Referência a blocos que não existem");
+					for (int block = first; block < first + count; block++) {
+						base.read(sums.offsetOf(block), buffer, sums.blockSize);
+						output.write(buffer, 0, sums.blockSize);
+						digest.update(buffer, 0, sums.blockSize);
+					}
+					size += (long) count * sums.blockSize;
+				}
+				else if (operation == LITERAL) {
+					int length = input.readInt();
+					if (length < 0 || length > input.available())
+						throw new ProtocolException("Bytes literais inválidos");
+					byte[] literal = input.readNBytes(length);
+					output.write(literal);
+					digest.update(literal);
+					size += length;
+				}
+				else
+					throw new ProtocolException("Operação inválida: " + operation);
+			}
+		} catch (EOFException e) {
+			throw new ProtocolException("Delta terminado antes do fim");
+		}
+	}
+
+	/**
+	 * Auxiliary method that looks for a block with the bytes of a window, preferring the
+	 * block that follows the last one referenced
+	 *
+	 * @param sums the checksums of the blocks
+	 * @param digest calculates the strong checksums
+	 * @param weak the rolling checksum of the window
+	 * @param data the bytes
+	 * @param position the start of the window
+	 * @param preferred the block that follows the last one referenced
+	 * @return the block, or -1 if none matches
+	 */
+	private static int findBlock(Sums sums, MessageDigest digest, int weak, byte[] data, int position, int preferred) {
+		List<Integer> candidates = sums.blocks.get(weak);
+		if (candidates == null)
+			return -1;
+		byte[] strong = strongSum(digest, data, position, sums.blockSize);
+		if (preferred >= 0 && preferred < sums.getBlocks() && sums.weak[preferred] == weak
+				&& Arrays.equals(sums.strong[preferred], strong))
+			return preferred;
+		for (int block : candidates) {
+			if (Arrays.equals(sums.strong[block], strong))
+				return block;
+		}
+		return -1;
+	}
+
+	/**
+	 * Auxiliary method that writes a reference to consecutive blocks, if there are any
+	 *
+	 * @param delta where the reference is written
+	 * @param first the first block
+	 * @param count the number of blocks
+	 * @throws IOException
+	 */
+	private static void writeCopy(DataOutputStream delta, int first, int count) throws IOException {
+		if (count == 0)
+			return;
+		delta.writeByte(COPY);
+		delta.writeInt(first);
+		delta.writeInt(count);
+	}
+
+	/**
+	 * Auxiliary method that writes bytes found in no block, if there are any
+	 *
+	 * @param delta where the bytes are written
+	 * @param data the bytes of the chunk
+	 * @param from the first byte
+	 * @param to the end of the bytes
+	 * @throws IOException
+	 */
+	private static void writeLiteral(DataOutputStream delta, byte[] data, int from, int to) throws IOException {
+		if (from >= to)
+			return;
+		delta.writeByte(LITERAL);
+		delta.writeInt(to - from);
+		delta.write(data, from, to - from);
+	}
+
+	/**
+	 * Auxiliary method that calculates the rolling checksum of a window, made of the sum
+	 * of its bytes and of the sum of its bytes weighted by their distance to its end
+	 *
+	 * @param data the bytes
+	 * @param offset the start of the window
+	 * @param length the size of the window
+	 * @return the checksum
+	 */
+	private static int weakSum(byte[] data, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++) {
+			a += data[offset + i] & 0xFF;
+			b += (length - i) * (data[offset + i] & 0xFF);
+		}
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+	/**
+	 * Auxiliary method that slides the window of a rolling checksum by one byte
+	 *
+	 * @param sum the checksum of the window
+	 * @param out the byte that leaves the window
+	 * @param in the byte that enters the window
+	 * @param length the size of the window
+	 * @return the checksum of the window moved
+	 */
+	private static int rollSum(int sum, byte out, byte in, int length) {
+		int a = (sum & 0xFFFF) - (out & 0xFF) + (in & 0xFF);
+		int b = (sum >>> 16) - length * (out & 0xFF) + a;
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+	/**
+	 * Auxiliary method that calculates the strong checksum of a block
+	 *
+	 * @param digest calculates the checksum
+	 * @param data the bytes
+	 * @param offset the start of the block
+	 * @param length the size of the block
+	 * @return the checksum
+	 */
+	private static byte[] strongSum(MessageDigest digest, byte[] data, int offset, int length) {
+		digest.update(data, offset, length);
+		return Arrays.copyOf(digest.digest(), STRONG_SIZE);
+	}
+
+	/**
+	 * Auxiliary method that creates a MessageDigest of SHA-256
+	 *
+	 * @return the MessageDigest
+	 */
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
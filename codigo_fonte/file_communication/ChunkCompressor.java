@@ -0,0 +1,311 @@
+package file_communication;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Mac;
+
+import file_communication.ContentChunker.Chunk;
+
+/**
+ * Class that compresses the chunks of a file (ContentChunker) before they are encrypted,
+ * since the encrypted bytes can no longer be compressed. Each chunk is compressed on its
+ * own, so that the chunks an edit does not touch are compressed into the same bytes as
+ * before and are still found in the workspace.
+ *
+ * Each chunk becomes a frame, the method of the frame (STORED or DEFLATED), the size of
+ * its content and its content, padded with zeros to a multiple of the block size of AES
+ * unless it is the last frame of the file. A chunk is only stored compressed if that
+ * makes it smaller, and the files whose bytes sampled look random, such as images and
+ * archives, are not compressed at all.
+ *
+ * Version 7 of the binary protocol names the codec of each file uploaded, which the
+ * server keeps in its manifest and names again when the file is downloaded
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class ChunkCompressor {
+
+	//codecs of the files
+	public static final String NONE = "none";
+	public static final String DEFLATE = "deflate";
+
+	//frames are padded to multiples of the block size of AES
+	private static final int ALIGNMENT = 16;
+
+	//largest frame of a chunk once encrypted, the largest chunk stored with its header and padding
+	public static final int MAX_FRAME_SIZE = ContentChunker.MAX_SIZE + 2 * ALIGNMENT;
+
+	//methods of the frames
+	private static final byte STORED = 0;
+	private static final byte DEFLATED = 1;
+
+	//size of the header of a frame, its method and the size of its content
+	private static final int HEADER_SIZE = 1 + Integer.BYTES;
+
+	//first byte of the HMAC of a frame, after the ones of the chunks not compressed
+	private static final byte FRAME_ID = 2;
+
+	//number and size of the samples of a file whose entropy is measured
+	private static final int SAMPLES = 16;
+	private static final int SAMPLE_SIZE = 4096;
+
+	//bits of entropy per byte above which a file is taken as already compressed
+	private static final double MAX_ENTROPY = 7.5;
+
+	private ChunkCompressor() {
+	}
+
+	/**
+	 * Method that tells if a codec is known
+	 *
+	 * @param codec the codec
+	 * @return true if it is NONE or DEFLATE, false if not
+	 */
+	public static boolean isCodec(String codec) {
+		return NONE.equals(codec) || DEFLATE.equals(codec);
+	}
+
+	/**
+	 * Method that chooses the codec of a file from the entropy of the bytes of a few
+	 * samples spread over it
+	 *
+	 * @param file the file, open
+	 * @return DEFLATE if the samples look compressible, NONE if not
+	 * @throws IOException
+	 */
+	public static String chooseCodec(RandomAccessFile file) throws IOException {
+		long length = file.length();
+		long[] counts = new long[256];
+		long total = 0;
+		byte[] sample = new byte[SAMPLE_SIZE];
+		for (int i = 0; i < SAMPLES; i++) {
+			long offset = Math.max(0, length - SAMPLE_SIZE) * i / Math.max(1, SAMPLES - 1);
+			file.seek(offset);
+			int read = file.read(sample);
+			for (int j = 0; j < read; j++)
+				counts[sample[j] & 0xFF]++;
+			total += Math.max(read, 0);
+			if (length <= SAMPLE_SIZE)
+				break;
+		}
+		if (total == 0)
+			return NONE;
+		double entropy = 0;
+		for (long count : counts) {
+			if (count > 0) {
+				double p = (double) count / total;
+				entropy -= p * Math.log(p) / Math.log(2);
+			}
+		}
+		return entropy < MAX_ENTROPY ? DEFLATE : NONE;
+	}
+
+	/**
+	 * Method that turns the chunks of a file into frames, and names each frame after its
+	 * HMAC, so that a chunk compressed into other bytes, such as by another version of the
+	 * compressor, is never taken for it. The frames are named apart from the chunks that
+	 * are not compressed
+	 *
+	 * @param file the file, open
+	 * @param chunks the chunks of the file, cut without names
+	 * @param mac names the frames
+	 * @param deflater compresses the chunks
+	 * @return the frames, with their encrypted sizes and offsets
+	 * @throws IOException
+	 */
+	public static List<Chunk> frame(RandomAccessFile file, List<Chunk> chunks, Mac mac, Deflater deflater) throws IOException {
+		List<Chunk> frames = new ArrayList<>(chunks.size());
+		long offset = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			boolean last = i == chunks.size() - 1;
+			byte[] frame = encode(ContentChunker.read(file, chunks, i), last, deflater);
+			mac.update(FRAME_ID);
+			mac.update(frame);
+			int size = last ? (frame.length / ALIGNMENT + 1) * ALIGNMENT : frame.length;
+			frames.add(new Chunk(HexFormat.of().formatHex(mac.doFinal()), offset, size));
+			offset += size;
+		}
+		return frames;
+	}
+
+	/**
+	 * Method that turns a chunk into its frame, compressed if that makes it smaller
+	 *
+	 * @param chunk the bytes of the chunk
+	 * @param last true if it is the last chunk of the file, whose frame is not padded
+	 * @param deflater compresses the chunk
+	 * @return the frame
+	 */
+	public static byte[] encode(byte[] chunk, boolean last, Deflater deflater) {
+		deflater.reset();
+		deflater.setInput(chunk);
+		deflater.finish();
+		byte[] compressed = new byte[chunk.length];
+		int size = 0;
+		while (!deflater.finished() && size < compressed.length)
+			size += deflater.deflate(compressed, size, compressed.length - size);
+		boolean deflated = deflater.finished() && size < chunk.length;
+		byte[] content = deflated ? compressed : chunk;
+		int length = deflated ? size : chunk.length;
+
+		int frameSize = HEADER_SIZE + length;
+		if (!last)
+			frameSize = (frameSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+		byte[] frame = new byte[frameSize];
+		frame[0] = deflated ? DEFLATED : STORED;
+		frame[1] = (byte) (length >>> 24);
+		frame[2] = (byte) (length >>> 16);
+		frame[3] = (byte) (length >>> 8);
+		frame[4] = (byte) length;
+		System.arraycopy(content, 0, frame, HEADER_SIZE, length);
+		return frame;
+	}
+
+	/**
+	 * Method that returns a stream that writes the chunks of the frames written into it
+	 *
+	 * @param output where the chunks are written, closed with the stream
+	 * @return the stream
+	 */
+	public static OutputStream decoder(OutputStream output) {
+		return new FrameDecoder(output);
+	}
+
+	/**
+	 * Stream that reads the frames of a file as their bytes are written into it, and
+	 * writes the chunks they hold
+	 */
+	private static class FrameDecoder extends FilterOutputStream {
+
+		private Inflater inflater = new Inflater();
+		private byte[] inflated = new byte[64 * 1024];
+		private byte[] header = new byte[HEADER_SIZE];
+		//bytes of the header read, method of the frame, content still to be read and
+		//padding still to be skipped
+		private int headerRead = 0;
+		private byte method;
+		private int remaining = 0;
+		private int padding = 0;
+		//size of the frame so far
+		private int frameSize = 0;
+
+		FrameDecoder(OutputStream output) {
+			super(output);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int end = off + len;
+			while (off < end) {
+				if (padding > 0) {
+					int skipped = Math.min(padding, end - off);
+					padding -= skipped;
+					off += skipped;
+				}
+				else if (remaining > 0) {
+					int part = Math.min(remaining, end - off);
+					content(b, off, part);
+					remaining -= part;
+					off += part;
+					frameSize += part;
+					if (remaining == 0)
+						endFrame();
+				}
+				else {
+					int part = Math.min(HEADER_SIZE - headerRead, end - off);
+					System.arraycopy(b, off, header, headerRead, part);
+					headerRead += part;
+					off += part;
+					if (headerRead == HEADER_SIZE)
+						startFrame();
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				//the last frame is not padded
+				if (headerRead > 0 || remaining > 0)
+					throw new ProtocolException("Ficheiro comprimido terminado a meio de um bloco");
+			}
+			finally {
+				inflater.end();
+				super.close();
+			}
+		}
+
+		/**
+		 * Auxiliary method that starts a frame once its header is read
+		 *
+		 * @throws IOException
+		 */
+		private void startFrame() throws IOException {
+			method = header[0];
+			remaining = ((header[1] & 0xFF) << 24) | ((header[2] & 0xFF) << 16) | ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+			if ((method != STORED && method != DEFLATED) || remaining < 0 || remaining > MAX_FRAME_SIZE)
+				throw new ProtocolException("Bloco comprimido inválido");
+			headerRead = 0;
+			frameSize = HEADER_SIZE;
+			inflater.reset();
+			if (remaining == 0)
+				endFrame();
+		}
+
+		/**
+		 * Auxiliary method that writes the chunk of a part of the content of a frame
+		 *
+		 * @param b the bytes
+		 * @param off the start of the part
+		 * @param len the size of the part
+		 * @throws IOException
+		 */
+		private void content(byte[] b, int off, int len) throws IOException {
+			if (method == STORED) {
+				out.write(b, off, len);
+				return;
+			}
+			//the input of the inflater is not copied, so it is used up before returning
+			inflater.setInput(Arrays.copyOfRange(b, off, off + len));
+			try {
+				while (!inflater.needsInput()) {
+					int size = inflater.inflate(inflated);
+					out.write(inflated, 0, size);
+					if (inflater.finished() && inflater.getRemaining() > 0)
+						throw new ProtocolException("Bytes a mais num bloco comprimido");
+					if (size == 0 && (inflater.finished() || inflater.needsDictionary()))
+						break;
+				}
+			} catch (DataFormatException e) {
+				throw new ProtocolException("Bloco comprimido inválido: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Auxiliary method that ends a frame once its content is read
+		 *
+		 * @throws IOException
+		 */
+		private void endFrame() throws IOException {
+			if (method == DEFLATED && !inflater.finished())
+				throw new ProtocolException("Bloco comprimido incompleto");
+			padding = (ALIGNMENT - frameSize % ALIGNMENT) % ALIGNMENT;
+		}
+	}
+}
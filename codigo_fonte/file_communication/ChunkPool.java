@@ -0,0 +1,57 @@
+package file_communication;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that keeps the buffers in which the files are transferred, all of the same size,
+ * so that a transfer borrows a buffer and returns it when it ends, instead of allocating
+ * one for each chunk or keeping one for each connection. The size is a multiple of the
+ * size of the pages, so that the files are read at aligned positions. Only a limited
+ * number of idle buffers is kept, the ones returned past that limit are discarded
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+class ChunkPool {
+
+	//size of the buffers, and of the chunks in which the files are sent
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	//maximum number of idle buffers kept
+	private static final int MAX_IDLE = 64;
+
+	//buffers not being used, and their number
+	private static final Queue<byte[]> idle = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger idleCount = new AtomicInteger();
+
+	private ChunkPool() {
+	}
+
+	/**
+	 * Method that borrows a buffer, which must be returned once the transfer ends
+	 *
+	 * @return an idle buffer, or a new one if none is idle
+	 */
+	static byte[] borrow() {
+		byte[] chunk = idle.poll();
+		if (chunk == null)
+			return new byte[CHUNK_SIZE];
+		idleCount.decrementAndGet();
+		return chunk;
+	}
+
+	/**
+	 * Method that returns a borrowed buffer to the pool
+	 *
+	 * @param chunk the buffer, ignored if it is null or was not borrowed from the pool
+	 */
+	static void release(byte[] chunk) {
+		if (chunk == null || chunk.length != CHUNK_SIZE)
+			return;
+		if (idleCount.incrementAndGet() <= MAX_IDLE)
+			idle.offer(chunk);
+		else
+			idleCount.decrementAndGet();
+	}
+}
@@ -0,0 +1,135 @@
+package file_communication;
+import java.util.Arrays;
+
+/**
+ * Class that represents a command sent by the client to the server,
+ * made of its name (CREATE, ADD, UP, DW, RM, LW, LS or OFFSET) and its fields
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class Command {
+
+	//commands whose last field is a list of files
+	private static final String[] FILE_COMMANDS = { "UP", "DW", "RM" };
+
+	private String name;
+	private String[] fields;
+
+	//id of the request that carried the command, 0 in the serialized protocol
+	private int request = 0;
+
+	/**
+	 * Constructor. Initializes the command
+	 *
+	 * @param name name of the command
+	 * @param fields fields of the command, in the order the server expects them
+	 */
+	public Command(String name, String... fields) {
+		this.name = name;
+		this.fields = fields;
+	}
+
+	/**
+	 * Method that builds a command from the text format of the serialized protocol,
+	 * where the fields are separated by spaces and the files by commas
+	 *
+	 * @param action the command in text format
+	 * @return the command
+	 */
+	public static Command parse(String action) {
+		String[] partitionedAction = action.split(" ");
+		String name = partitionedAction[0];
+		String[] fields = Arrays.copyOfRange(partitionedAction, 1, partitionedAction.length);
+		if (hasFileList(name) && fields.length == 2) {
+			String[] files = fields[1].split(",");
+			String[] expanded = new String[files.length + 1];
+			expanded[0] = fields[0];
+			System.arraycopy(files, 0, expanded, 1, files.length);
+			fields = expanded;
+		}
+		return new Command(name, fields);
+	}
+
+	/**
+	 * Method that converts the command into the text format of the serialized protocol
+	 *
+	 * @return the command in text format
+	 */
+	public String toText() {
+		StringBuilder sb = new StringBuilder(name);
+		sb.append(" ");
+		if (hasFileList(name) && fields.length > 0) {
+			sb.append(fields[0]);
+			sb.append(" ");
+			for (int i = 1; i < fields.length; i++) {
+				sb.append(fields[i]);
+				sb.append(",");
+			}
+			return sb.toString();
+		}
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				sb.append(" ");
+			sb.append(fields[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Auxiliary method that checks if the last field of a command is a list of files
+	 *
+	 * @param name the name of the command
+	 * @return true if it is, false if not
+	 */
+	private static boolean hasFileList(String name) {
+		for (String command : FILE_COMMANDS) {
+			if (command.equals(name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Method used by the channels to record the request that carried the command
+	 *
+	 * @param request id of the request
+	 * @return this command
+	 */
+	Command withRequest(int request) {
+		this.request = request;
+		return this;
+	}
+
+	public int getRequest() {
+		return request;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getField(int index) {
+		return fields[index];
+	}
+
+	public int getFieldCount() {
+		return fields.length;
+	}
+
+	/**
+	 * Method that returns the fields starting at a given position,
+	 * such as the files of UP, DW and RM
+	 *
+	 * @param from position of the first field
+	 * @return the fields from that position onwards
+	 */
+	public String[] getFieldsFrom(int from) {
+		return Arrays.copyOfRange(fields, from, fields.length);
+	}
+
+	@Override
+	public String toString() {
+		return toText();
+	}
+}
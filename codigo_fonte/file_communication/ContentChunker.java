@@ -0,0 +1,338 @@
+package file_communication;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Class that cuts files into chunks by their content, so that the chunks a file shares
+ * with the files already uploaded to its workspace are not sent nor stored again.
+ *
+ * A rolling hash runs over the plain file and a chunk ends where its top bits are zero,
+ * so that an edit only changes the chunks around it. The chunks only end at multiples of
+ * the block size of AES and the files are encrypted in ECB mode, so that the chunks
+ * encrypted one by one are, put together, the same bytes as the whole file encrypted.
+ * Each chunk is named after its HMAC, under a key derived from the key of the workspace,
+ * so that the names say nothing about the chunks outside the workspace.
+ *
+ * Version 5 of the binary protocol exchanges the chunks of a file as a manifest with the
+ * name and the encrypted size of each chunk, answered with the chunks that are missing
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class ContentChunker {
+
+	//smallest and largest sizes of a chunk, except the last one of a file
+	public static final int MIN_SIZE = 16 * 1024;
+	public static final int MAX_SIZE = 256 * 1024;
+
+	//size of the names of the chunks, in bytes
+	public static final int ID_SIZE = 32;
+
+	//a chunk may only end at multiples of the block size of AES
+	private static final int ALIGNMENT = 16;
+
+	//top bits of the rolling hash that end a chunk when they are zero, about every 64 KiB
+	private static final long MASK = 0xFFF0000000000000L;
+
+	//largest manifest received, of files of tens of GB
+	private static final int MAX_MANIFEST = 64 * 1024 * 1024;
+
+	//random values of the bytes in the rolling hash. They must never change, or the
+	//files would no longer be cut where the files uploaded before were
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x4D53485243484E4BL);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = random.nextLong();
+	}
+
+	private ContentChunker() {
+	}
+
+	/**
+	 * Chunk of a file, at the same offset of the plain and of the encrypted file
+	 */
+	public static class Chunk {
+
+		private String id;
+		private long offset;
+		//size of the encrypted chunk, padded if it is the last one of the file
+		private int size;
+
+		/**
+		 * Constructor. Initializes the chunk
+		 *
+		 * @param id the name of the chunk, in hexadecimal
+		 * @param offset the offset of the chunk in the file
+		 * @param size the size of the encrypted chunk
+		 */
+		public Chunk(String id, long offset, int size) {
+			this.id = id;
+			this.offset = offset;
+			this.size = size;
+		}
+
+		/**
+		 * Method that returns the name of the chunk
+		 *
+		 * @return the name, in hexadecimal
+		 */
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * Method that returns the offset of the chunk in the file
+		 *
+		 * @return the offset
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Method that returns the size of the encrypted chunk
+		 *
+		 * @return the size
+		 */
+		public int getSize() {
+			return size;
+		}
+	}
+
+	/**
+	 * Method that creates the MAC that names the chunks of a workspace, under a key of
+	 * its own derived from the key of the workspace
+	 *
+	 * @param workspaceKey the key of the workspace
+	 * @return the MAC
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 */
+	public static Mac startMac(SecretKey workspaceKey) throws NoSuchAlgorithmException, InvalidKeyException {
+		Mac derivation = Mac.getInstance("HmacSHA256");
+		derivation.init(new SecretKeySpec(workspaceKey.getEncoded(), "HmacSHA256"));
+		byte[] idKey = derivation.doFinal("mysharing chunk ids".getBytes(StandardCharsets.UTF_8));
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(idKey, "HmacSHA256"));
+		return mac;
+	}
+
+	/**
+	 * Method that reads a plain file to its end and cuts it into chunks. The last chunk is
+	 * named apart from a chunk with the same bytes in the middle of a file, since only the
+	 * last one is padded once encrypted. The chunks that are compressed (ChunkCompressor)
+	 * are padded on their own, so they are cut at any byte, and named once compressed
+	 *
+	 * @param content stream with the file, which is not closed
+	 * @param mac names the chunks, null if they are compressed
+	 * @return the chunks, at least one, without names if the MAC is null
+	 * @throws IOException
+	 */
+	public static List<Chunk> split(InputStream content, Mac mac) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		byte[] buffer = new byte[MAX_SIZE];
+		int filled = 0;
+		long offset = 0;
+		boolean ended = false;
+		while (true) {
+			while (filled < buffer.length && !ended) {
+				int read = content.read(buffer, filled, buffer.length - filled);
+				if (read == -1)
+					ended = true;
+				else
+					filled += read;
+			}
+			int cut = findCut(buffer, filled, mac == null ? 1 : ALIGNMENT);
+			boolean last = ended && cut == filled;
+			String id = null;
+			if (mac != null) {
+				mac.update((byte) (last ? 1 : 0));
+				mac.update(buffer, 0, cut);
+				id = HexFormat.of().formatHex(mac.doFinal());
+			}
+			chunks.add(new Chunk(id, offset, last ? (cut / ALIGNMENT + 1) * ALIGNMENT : cut));
+			if (last)
+				return chunks;
+			System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+			filled -= cut;
+			offset += cut;
+		}
+	}
+
+	/**
+	 * Method that reads a chunk of a plain file
+	 *
+	 * @param file the file, open
+	 * @param chunks the chunks of the file, as cut by split
+	 * @param index the position of the chunk
+	 * @return the bytes of the chunk, without the padding of the last one
+	 * @throws IOException
+	 */
+	public static byte[] read(RandomAccessFile file, List<Chunk> chunks, int index) throws IOException {
+		Chunk chunk = chunks.get(index);
+		boolean last = index == chunks.size() - 1;
+		byte[] plain = new byte[(int) (last ? file.length() - chunk.getOffset() : chunk.getSize())];
+		file.seek(chunk.getOffset());
+		file.readFully(plain);
+		return plain;
+	}
+
+	/**
+	 * Method that returns the size of an encrypted file cut into chunks
+	 *
+	 * @param chunks the chunks of the file
+	 * @return the size of the encrypted file
+	 */
+	public static long sizeOf(List<Chunk> chunks) {
+		Chunk last = chunks.get(chunks.size() - 1);
+		return last.getOffset() + last.getSize();
+	}
+
+	/**
+	 * Method that sends the manifest of a file, with the name and the size of each of its chunks
+	 *
+	 * @param channel channel through which the manifest is sent
+	 * @param chunks the chunks of the file
+	 * @throws IOException
+	 */
+	public static void sendManifest(MessageChannel channel, List<Chunk> chunks) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunks.size() * (ID_SIZE + Integer.BYTES));
+		DataOutputStream manifest = new DataOutputStream(bytes);
+		for (Chunk chunk : chunks) {
+			manifest.write(HexFormat.of().parseHex(chunk.getId()));
+			manifest.writeInt(chunk.getSize());
+		}
+		channel.sendStream(new ByteArrayInputStream(bytes.toByteArray()), bytes.size());
+	}
+
+	/**
+	 * Method that receives the manifest of a file. Every chunk but the last must have a
+	 * size between MIN_SIZE and MAX_SIZE that is a multiple of the block size of AES, and
+	 * at most the largest frame if the chunks are compressed
+	 *
+	 * @param channel channel through which the manifest is received
+	 * @param compressed true if the chunks are compressed (ChunkCompressor)
+	 * @return the chunks of the file
+	 * @throws IOException
+	 * @throws ProtocolException if the manifest is not valid
+	 */
+	public static List<Chunk> receiveManifest(MessageChannel channel, boolean compressed) throws IOException {
+		byte[] bytes = receiveBytes(channel, MAX_MANIFEST, "Manifesto demasiado grande");
+		if (bytes.length == 0 || bytes.length % (ID_SIZE + Integer.BYTES) != 0)
+			throw new ProtocolException("Manifesto inválido");
+
+		int count = bytes.length / (ID_SIZE + Integer.BYTES);
+		List<Chunk> chunks = new ArrayList<>(count);
+		DataInputStream manifest = new DataInputStream(new ByteArrayInputStream(bytes));
+		byte[] id = new byte[ID_SIZE];
+		long offset = 0;
+		for (int i = 0; i < count; i++) {
+			manifest.readFully(id);
+			int size = manifest.readInt();
+			boolean valid;
+			if (compressed)
+				valid = size > 0 && size <= ChunkCompressor.MAX_FRAME_SIZE;
+			else
+				valid = (i == count - 1) ? size > 0 && size <= MAX_SIZE + ALIGNMENT
+						: size >= MIN_SIZE && size <= MAX_SIZE;
+			if (!valid || size % ALIGNMENT != 0)
+				throw new ProtocolException("Bloco de tamanho inválido no manifesto: " + size);
+			chunks.add(new Chunk(HexFormat.of().formatHex(id), offset, size));
+			offset += size;
+		}
+		return chunks;
+	}
+
+	/**
+	 * Method that sends which chunks of a manifest are missing
+	 *
+	 * @param channel channel through which they are sent
+	 * @param missing the positions of the missing chunks in the manifest
+	 * @throws IOException
+	 */
+	public static void sendMissing(MessageChannel channel, BitSet missing) throws IOException {
+		byte[] bytes = missing.toByteArray();
+		channel.sendStream(new ByteArrayInputStream(bytes), bytes.length);
+	}
+
+	/**
+	 * Method that receives which chunks of a manifest are missing
+	 *
+	 * @param channel channel through which they are received
+	 * @return the positions of the missing chunks in the manifest
+	 * @throws IOException
+	 */
+	public static BitSet receiveMissing(MessageChannel channel) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		channel.receiveStream(bytes);
+		return BitSet.valueOf(bytes.toByteArray());
+	}
+
+	/**
+	 * Method that receives a file small enough to be kept in memory
+	 *
+	 * @param channel channel through which the file is received
+	 * @param limit largest size accepted
+	 * @param error message of the exception thrown if the file is larger
+	 * @return the content of the file
+	 * @throws IOException
+	 * @throws ProtocolException if the file is larger than the limit
+	 */
+	static byte[] receiveBytes(MessageChannel channel, int limit, String error) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+			@Override
+			public void write(byte[] b, int off, int len) {
+				if (count + len > limit)
+					throw new IllegalStateException(error);
+				super.write(b, off, len);
+			}
+		};
+		try {
+			channel.receiveStream(bytes);
+		} catch (IllegalStateException e) {
+			throw new ProtocolException(e.getMessage());
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Auxiliary method that finds where the chunk at the start of a buffer ends. The hash
+	 * only starts a little before MIN_SIZE, since no chunk ends before it
+	 *
+	 * @param buffer the buffer
+	 * @param filled number of bytes in the buffer
+	 * @param alignment the size of the chunk must be a multiple of it
+	 * @return the size of the chunk
+	 */
+	private static int findCut(byte[] buffer, int filled, int alignment) {
+		if (filled <= MIN_SIZE)
+			return filled;
+		long hash = 0;
+		for (int i = MIN_SIZE - Long.SIZE; i < filled; i++) {
+			hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+			int length = i + 1;
+			if (length >= MIN_SIZE && length % alignment == 0 && (hash & MASK) == 0)
+				return length;
+		}
+		return filled;
+	}
+}
@@ -1,6 +1,5 @@
 package file_communication;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -11,51 +10,71 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 
 /**
- * Class used to transfer and receive files over a socket connection
+ * Class used to transfer and receive files over a socket connection.
+ * The files are moved in large chunks, through buffers borrowed from the ChunkPool,
+ * and the connection is only flushed once the whole file was written.
+ * The size of a file is sent as an Integer when it fits, as the first clients expect,
+ * and as a Long otherwise, so that files larger than 2 GB can be sent. The content
+ * of each file is measured by the TransferProgress given, if any
  * @author Diogo Oliveira fc59839
  * @author Rodrigo Neto fc59850
  * @author Vladislav Zavgorodnii fc59783
  */
 public class FileTransferer {
 
-    //buffer size used during the file exchange
-    private static final int BUFFER_SIZE = 1024;
-
     /**
      * Method that sends a given file through a connection
      * starts by sending the file size to the receiver, then opens an input stream.
      * and lastly sends the file
      * @param filename name of the file to be sent
      * @param output Output Stream of the connection
-     * @throws IOException 
+     * @param progress measures the file, null if none
+     * @throws IOException
      * @ensures the receiver will receive the file without any issue
      */
-    public static void sendFile(String filename, ObjectOutputStream output) throws IOException {
+    public static void sendFile(String filename, ObjectOutputStream output, TransferProgress progress) throws IOException {
         File file = new File(filename);
-        int size = (int) file.length();
-        output.writeObject(size);
-
-        FileInputStream fin = new FileInputStream(file);
-        InputStream input = new BufferedInputStream(fin);
+        FileInputStream input = new FileInputStream(file);
+        try {
+            sendStream(input, file.length(), output, progress);
+        }
+        finally {
+            input.close();
+        }
+    }
 
-        byte[] buffer = null;
-        int read = 0;
+    /**
+     * Method that sends the content of a stream through a connection, in the same
+     * format as a file. The stream is not closed
+     * @param content stream with the content to be sent
+     * @param size number of bytes of the content
+     * @param output Output Stream of the connection
+     * @param progress measures the content, null if none
+     * @throws IOException
+     * @throws EOFException if the stream ends before size bytes are read
+     */
+    public static void sendStream(InputStream content, long size, ObjectOutputStream output, TransferProgress progress) throws IOException {
+        if (size <= Integer.MAX_VALUE)
+            output.writeObject((int) size);
+        else
+            output.writeObject(size);
+        if (progress != null)
+            content = progress.meter(content, size);
 
-        while (size != 0) {
-            if (size <= BUFFER_SIZE) {
-                buffer = new byte[size];
-                read = input.read(buffer, 0, size);
-            }
-            else {
-                buffer = new byte[BUFFER_SIZE];
-                read = input.read(buffer, 0, BUFFER_SIZE);
+        byte[] buffer = ChunkPool.borrow();
+        try {
+            while (size > 0) {
+                int read = content.readNBytes(buffer, 0, (int) Math.min(size, buffer.length));
+                if (read == 0)
+                    throw new EOFException("Faltam " + size + " bytes do conteúdo a enviar");
+                output.write(buffer, 0, read);
+                size -= read;
             }
-            output.write(buffer, 0, read);
-            output.flush();
-            size -= read;
         }
-        input.close();
-        
+        finally {
+            ChunkPool.release(buffer);
+        }
+        output.flush();
     }
 
     /**
@@ -64,34 +83,56 @@ public class FileTransferer {
      * and lastly receives the content of the sent file and stores it in the given file
      * @param filename name of the file where the content will be stored
      * @param input Input Stream of the connection
-     * @throws ClassNotFoundException 
+     * @param progress measures the file, null if none
+     * @throws ClassNotFoundException
      * @ensures the sent file will be received without any issue
      */
-    public static File receiveFile(String filename, ObjectInputStream input) throws IOException, ClassNotFoundException {
+    public static File receiveFile(String filename, ObjectInputStream input, TransferProgress progress) throws IOException, 
+    ClassNotFoundException {
         File file = new File(filename);
-    	int size;
-        size = (int) input.readObject();
-        file.createNewFile();
-        FileOutputStream fout = new FileOutputStream(file);
-        OutputStream output = new BufferedOutputStream(fout);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            receiveStream(input, output, progress);
+        }
+        finally {
+            output.close();
+        }
+        return file;
+    }
 
-        byte[] buffer = null;
-        int read = 0;
+    /**
+     * Method that receives a file from a connection and writes its content into a stream,
+     * which is not closed
+     * @param input Input Stream of the connection
+     * @param content stream where the content is written
+     * @param progress measures the content, null if none
+     * @return the number of bytes received
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static long receiveStream(ObjectInputStream input, OutputStream content, TransferProgress progress) throws IOException, 
+    ClassNotFoundException {
+        Object sizeObject = input.readObject();
+        if (!(sizeObject instanceof Integer || sizeObject instanceof Long))
+            throw new ClassNotFoundException("Tamanho de ficheiro inválido");
+        long size = ((Number) sizeObject).longValue();
+        long total = size;
+        if (progress != null)
+            content = progress.meter(content, size);
 
-        while (size != 0) {
-            if (size <= BUFFER_SIZE) {
-                buffer = new byte[size];
-                read = input.read(buffer, 0, size);
+        byte[] buffer = ChunkPool.borrow();
+        try {
+            while (size > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(size, buffer.length));
+                if (read == -1)
+                    throw new EOFException("Ligação terminada a meio de um ficheiro");
+                content.write(buffer, 0, read);
+                size -= read;
             }
-            else {
-                buffer = new byte[BUFFER_SIZE];
-                read = input.read(buffer, 0, BUFFER_SIZE);
-            }
-            output.write(buffer, 0, read);
-            output.flush();
-            size -= read;
-            }
-        output.close();
-        return file;
+        }
+        finally {
+            ChunkPool.release(buffer);
+        }
+        return total;
     }
 }
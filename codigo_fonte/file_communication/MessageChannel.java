@@ -0,0 +1,153 @@
+package file_communication;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Channel through which the client and the server exchange commands, messages
+ * and files, independent of the protocol used to encode them
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public interface MessageChannel {
+
+	/**
+	 * Method that sends a text message, such as a status or a reply
+	 *
+	 * @param message the message to be sent
+	 * @throws IOException
+	 */
+	void sendMessage(String message) throws IOException;
+
+	/**
+	 * Method that receives a text message
+	 *
+	 * @return the message received
+	 * @throws IOException
+	 */
+	String receiveMessage() throws IOException;
+
+	/**
+	 * Method that sends a command to the server without waiting for its reply
+	 *
+	 * @param command the command to be sent
+	 * @return the channel through which the reply of the command is exchanged
+	 * @throws IOException
+	 */
+	MessageChannel sendCommand(Command command) throws IOException;
+
+	/**
+	 * Method that receives the next command of the client
+	 *
+	 * @return the command received, or null if a multiplexed channel only received
+	 * 		data of the requests already running and no more bytes are waiting
+	 * @throws IOException
+	 */
+	Command receiveCommand() throws IOException;
+
+	/**
+	 * Method used by the server to get the channel through which the reply
+	 * to a command received is exchanged
+	 *
+	 * @param command a command returned by receiveCommand
+	 * @return the channel of the request of the command
+	 */
+	MessageChannel requestChannel(Command command);
+
+	/**
+	 * Method that tells if several requests can be exchanged at the same time,
+	 * each through its own channel
+	 *
+	 * @return true if they can, false if each request must end before the next one starts
+	 */
+	boolean isMultiplexed();
+
+	/**
+	 * Method that tells if the transfers of files can resume where an interrupted one
+	 * stopped, in which case UP and DW exchange the bytes already stored before each file
+	 *
+	 * @return true if they can, false if every file is sent whole
+	 */
+	boolean isResumable();
+
+	/**
+	 * Method that tells if the uploads are cut into chunks by their content, in which
+	 * case UP only sends the chunks that the workspace does not have yet
+	 *
+	 * @return true if they are, false if every file is sent whole
+	 */
+	boolean isDeduplicated();
+
+	/**
+	 * Method that tells if the chunks that the workspace does not have are sent as
+	 * differences from the version of the file the server already has
+	 *
+	 * @return true if they are, false if they are sent whole
+	 */
+	boolean isDeltaEncoded();
+
+	/**
+	 * Method that tells if the chunks may be compressed before they are encrypted, in
+	 * which case UP and DW name the codec of each file before its chunks
+	 *
+	 * @return true if they may, false if the files are never compressed
+	 */
+	boolean isCompressed();
+
+	/**
+	 * Method used by the server to tell the client that a request has been answered
+	 *
+	 * @param request the channel of the request, returned by requestChannel
+	 * @throws IOException
+	 */
+	void endRequest(MessageChannel request) throws IOException;
+
+	/**
+	 * Method that sets the transfer whose progress is measured by the files sent and
+	 * received through this channel from then on
+	 *
+	 * @param progress the transfer, null to stop measuring the files
+	 */
+	void setTransferProgress(TransferProgress progress);
+
+	/**
+	 * Method that sends the content of a file
+	 *
+	 * @param filename name of the file to be sent
+	 * @throws IOException
+	 */
+	void sendFile(String filename) throws IOException;
+
+	/**
+	 * Method that receives the content of a file and stores it
+	 *
+	 * @param filename name of the file where the content will be stored
+	 * @return the file received
+	 * @throws IOException
+	 */
+	File receiveFile(String filename) throws IOException;
+
+	/**
+	 * Method that sends the content of a stream as a file, chunk by chunk as it is read,
+	 * so that it does not have to be stored first. The stream is not closed, and an
+	 * EOFException is thrown if it ends before size bytes are read
+	 *
+	 * @param content stream with the content to be sent
+	 * @param size number of bytes of the content
+	 * @throws IOException
+	 */
+	void sendStream(InputStream content, long size) throws IOException;
+
+	/**
+	 * Method that receives the content of a file and writes it into a stream chunk by
+	 * chunk as it arrives, so that it does not have to be stored first. The stream is
+	 * not closed
+	 *
+	 * @param content stream where the content is written
+	 * @return the number of bytes received
+	 * @throws IOException
+	 */
+	long receiveStream(OutputStream content) throws IOException;
+}
@@ -0,0 +1,579 @@
+package file_communication;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Channel of version 2 of the binary protocol, where every request is an independent
+ * stream of frames inside the same connection. The frames of the requests are read by
+ * a single reader and handed to the stream they belong to, and the streams take turns
+ * writing, one frame at a time, so a long transfer does not hold back the other requests.
+ *
+ * The chunks of a file are flow controlled: each stream may only send WINDOW_SIZE bytes
+ * that the other side has not yet consumed, and the other side returns credit with
+ * WINDOW_UPDATE frames as it stores the chunks. Stream 0 carries the authentication
+ * and the END frame closes the stream of a request once the server has answered it.
+ * From version 3 on, the chunks of a file are followed by a FILE_END frame with the
+ * number of bytes sent and their CRC32C, checked by the receiver.
+ *
+ * On the client the reader is a thread of the channel. On the server the reader is the
+ * thread of the session, while it waits for the next command in receiveCommand
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class MultiplexedChannel implements MessageChannel {
+
+	//size of the chunks in which the files are sent
+	private static final int CHUNK_SIZE = ChunkPool.CHUNK_SIZE;
+
+	//bytes of file a stream may send before the other side returns credit
+	private static final int WINDOW_SIZE = 1024 * 1024;
+
+	//largest payload accepted for a frame that is not part of a file
+	private static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+	//frame put in the queue of every stream when the connection fails
+	private static final Frame BROKEN = new Frame((byte) 0, 0, new byte[0], 0);
+
+	private DataInputStream input;
+	private DataOutputStream output;
+	private int version;
+	private boolean client;
+
+	//fair, so that the streams waiting to write take turns
+	private ReentrantLock writeLock = new ReentrantLock(true);
+
+	//streams that are open, by request id
+	private Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+	private Stream control;
+	private int nextRequest = 1;
+
+	//error that ended the connection, null while it is working
+	private volatile IOException failure;
+
+	/**
+	 * Constructor. Initializes the channel once the handshake is done
+	 *
+	 * @param in stream with the bytes sent by the other side
+	 * @param out stream with the bytes sent to the other side
+	 * @param version version of the protocol agreed
+	 * @param client true on the client, which reads the connection in its own thread
+	 */
+	MultiplexedChannel(InputStream in, OutputStream out, int version, boolean client) {
+		this.input = new DataInputStream(in);
+		this.output = new DataOutputStream(new BufferedOutputStream(out, CHUNK_SIZE + 16));
+		this.version = version;
+		this.client = client;
+		this.control = openStream(0);
+
+		if (client) {
+			Thread reader = new Thread(this::readFrames, "mysharing-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	/**
+	 * Method that returns the version of the protocol agreed in the handshake
+	 *
+	 * @return the version of the protocol
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	public void sendMessage(String message) throws IOException {
+		control.sendMessage(message);
+	}
+
+	public String receiveMessage() throws IOException {
+		return control.receiveMessage();
+	}
+
+	/**
+	 * Method that sends a command to the server in a new stream.
+	 * The reply of the command is exchanged through the stream returned
+	 */
+	public MessageChannel sendCommand(Command command) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeShort(command.getFieldCount());
+		for (int i = 0; i < command.getFieldCount(); i++) {
+			byte[] field = command.getField(i).getBytes(StandardCharsets.UTF_8);
+			payload.writeInt(field.length);
+			payload.write(field);
+		}
+
+		Stream stream;
+		synchronized (this) {
+			stream = openStream(nextRequest++);
+		}
+		writeFrame(Protocol.opcodeOf(command.getName()), stream.request, bytes.toByteArray(), bytes.size());
+		return stream;
+	}
+
+	/**
+	 * Method used by the server to receive the next command. While it waits, the
+	 * frames of the requests already running are handed to their streams. Once no
+	 * more bytes are waiting to be read after such frames it returns null, so that
+	 * the session does not hold its thread until the client sends something else
+	 */
+	public Command receiveCommand() throws IOException {
+		while (true) {
+			Frame frame = readFrame();
+			String name = Protocol.commandOf(frame.opcode);
+			if (name == null) {
+				route(frame);
+				if (input.available() == 0)
+					return null;
+				continue;
+			}
+			if (streams.containsKey(frame.request))
+				throw new ProtocolException("O pedido " + frame.request + " já está aberto");
+			openStream(frame.request);
+
+			DataInputStream payload = new DataInputStream(new ByteArrayInputStream(frame.payload));
+			String[] fields = new String[payload.readUnsignedShort()];
+			for (int i = 0; i < fields.length; i++) {
+				byte[] field = new byte[payload.readInt()];
+				payload.readFully(field);
+				fields[i] = new String(field, StandardCharsets.UTF_8);
+			}
+			return new Command(name, fields).withRequest(frame.request);
+		}
+	}
+
+	public MessageChannel requestChannel(Command command) {
+		Stream stream = streams.get(command.getRequest());
+		return stream == null ? control : stream;
+	}
+
+	public boolean isMultiplexed() {
+		return true;
+	}
+
+	public boolean isResumable() {
+		return version >= Protocol.RESUME_VERSION;
+	}
+
+	public boolean isDeduplicated() {
+		return version >= Protocol.DEDUP_VERSION;
+	}
+
+	public boolean isDeltaEncoded() {
+		return version >= Protocol.DELTA_VERSION;
+	}
+
+	public boolean isCompressed() {
+		return version >= Protocol.COMPRESSION_VERSION;
+	}
+
+	public void endRequest(MessageChannel request) throws IOException {
+		if (request instanceof Stream && request != control) {
+			Stream stream = (Stream) request;
+			streams.remove(stream.request);
+			writeFrame(Protocol.END, stream.request, null, 0);
+		}
+	}
+
+	public void setTransferProgress(TransferProgress progress) {
+		control.setTransferProgress(progress);
+	}
+
+	public void sendFile(String filename) throws IOException {
+		control.sendFile(filename);
+	}
+
+	public File receiveFile(String filename) throws IOException {
+		return control.receiveFile(filename);
+	}
+
+	public void sendStream(InputStream content, long size) throws IOException {
+		control.sendStream(content, size);
+	}
+
+	public long receiveStream(OutputStream content) throws IOException {
+		return control.receiveStream(content);
+	}
+
+	/**
+	 * Auxiliary method that registers a new stream
+	 *
+	 * @param request id of the request of the stream
+	 * @return the stream
+	 */
+	private Stream openStream(int request) {
+		Stream stream = new Stream(request);
+		streams.put(request, stream);
+		return stream;
+	}
+
+	/**
+	 * Auxiliary method executed by the reader thread of the client, which hands every
+	 * frame received to its stream until the connection ends
+	 */
+	private void readFrames() {
+		try {
+			while (true)
+				route(readFrame());
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Auxiliary method that hands a frame to the stream it belongs to
+	 *
+	 * @param frame the frame
+	 * @throws ProtocolException if the frame is a command sent to the client
+	 */
+	private void route(Frame frame) throws ProtocolException {
+		if (Protocol.commandOf(frame.opcode) != null)
+			throw new ProtocolException("Comando recebido pelo cliente");
+
+		Stream stream = streams.get(frame.request);
+		if (stream == null)
+			return; //the request already ended, such as a late WINDOW_UPDATE
+		if (frame.opcode == Protocol.WINDOW_UPDATE) {
+			stream.addCredit(ByteBuffer.wrap(frame.payload).getInt());
+			return;
+		}
+		if (frame.opcode == Protocol.END)
+			streams.remove(frame.request);
+		stream.frames.add(frame);
+	}
+
+	/**
+	 * Auxiliary method that ends every stream once the connection fails
+	 *
+	 * @param e the error of the connection
+	 */
+	private void fail(IOException e) {
+		failure = e;
+		for (Stream stream : streams.values()) {
+			stream.frames.add(BROKEN);
+			stream.addCredit(0);
+		}
+	}
+
+	/**
+	 * Auxiliary method that reads the next frame of the connection
+	 *
+	 * @return the frame
+	 * @throws IOException
+	 */
+	private Frame readFrame() throws IOException {
+		try {
+			byte opcode = input.readByte();
+			int request = input.readInt();
+			int length = input.readInt();
+			if (length < 0 || length > MAX_PAYLOAD)
+				throw new ProtocolException("Tamanho de frame inválido: " + length);
+			//the chunks of a file are read into pooled buffers, returned once they are stored
+			byte[] payload = (opcode == Protocol.FILE_DATA && length <= CHUNK_SIZE) ? ChunkPool.borrow() : new byte[length];
+			input.readFully(payload, 0, length);
+			return new Frame(opcode, request, payload, length);
+		} catch (IOException e) {
+			if (!client)
+				fail(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Auxiliary method that writes a frame. The output is only flushed when no other
+	 * stream is waiting to write, so that frames written in turn share the same flush
+	 *
+	 * @param opcode the opcode of the frame
+	 * @param request id of the request the frame belongs to
+	 * @param payload the payload, null if it is empty
+	 * @param length number of bytes of the payload to be written
+	 * @throws IOException
+	 */
+	private void writeFrame(byte opcode, int request, byte[] payload, int length) throws IOException {
+		if (failure != null)
+			throw failure;
+		writeLock.lock();
+		try {
+			output.writeByte(opcode);
+			output.writeInt(request);
+			output.writeInt(length);
+			if (length > 0)
+				output.write(payload, 0, length);
+			if (!writeLock.hasQueuedThreads())
+				output.flush();
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * A frame received, already read from the connection
+	 */
+	private static class Frame {
+
+		private byte opcode;
+		private int request;
+		private byte[] payload;
+		//bytes of the payload that belong to the frame
+		private int length;
+
+		Frame(byte opcode, int request, byte[] payload, int length) {
+			this.opcode = opcode;
+			this.request = request;
+			this.payload = payload;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * The stream of one request, through which its messages and files are exchanged
+	 */
+	private class Stream implements MessageChannel {
+
+		private int request;
+
+		//frames received for this request and not yet consumed
+		private BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+
+		//bytes of file this side may still send, and bytes received not yet acknowledged
+		private int credit = WINDOW_SIZE;
+		private int unacknowledged = 0;
+
+		//the transfer whose progress is measured, null if none
+		private TransferProgress progress = null;
+
+		Stream(int request) {
+			this.request = request;
+		}
+
+		public void sendMessage(String message) throws IOException {
+			byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+			writeFrame(Protocol.MESSAGE, request, bytes, bytes.length);
+		}
+
+		public String receiveMessage() throws IOException {
+			return new String(nextFrame(Protocol.MESSAGE).payload, StandardCharsets.UTF_8);
+		}
+
+		public MessageChannel sendCommand(Command command) throws IOException {
+			return MultiplexedChannel.this.sendCommand(command);
+		}
+
+		public Command receiveCommand() throws IOException {
+			return MultiplexedChannel.this.receiveCommand();
+		}
+
+		public MessageChannel requestChannel(Command command) {
+			return this;
+		}
+
+		public boolean isMultiplexed() {
+			return true;
+		}
+
+		public boolean isResumable() {
+			return MultiplexedChannel.this.isResumable();
+		}
+
+		public boolean isDeduplicated() {
+			return MultiplexedChannel.this.isDeduplicated();
+		}
+
+		public boolean isDeltaEncoded() {
+			return MultiplexedChannel.this.isDeltaEncoded();
+		}
+
+		public boolean isCompressed() {
+			return MultiplexedChannel.this.isCompressed();
+		}
+
+		public void endRequest(MessageChannel request) throws IOException {
+			MultiplexedChannel.this.endRequest(request);
+		}
+
+		public void setTransferProgress(TransferProgress progress) {
+			this.progress = progress;
+		}
+
+		public void sendFile(String filename) throws IOException {
+			File file = new File(filename);
+			FileInputStream fileInput = new FileInputStream(file);
+			try {
+				sendStream(fileInput, file.length());
+			}
+			finally {
+				fileInput.close();
+			}
+		}
+
+		public File receiveFile(String filename) throws IOException {
+			File file = new File(filename);
+			OutputStream fileOutput = new FileOutputStream(file);
+			try {
+				receiveStream(fileOutput);
+			}
+			finally {
+				fileOutput.close();
+			}
+			return file;
+		}
+
+		public void sendStream(InputStream content, long size) throws IOException {
+			byte[] sizeBytes = ByteBuffer.allocate(Long.BYTES).putLong(size).array();
+			writeFrame(Protocol.FILE_BEGIN, request, sizeBytes, sizeBytes.length);
+			if (progress != null)
+				content = progress.meter(content, size);
+
+			CRC32C checksum = new CRC32C();
+			long remaining = size;
+			byte[] chunk = ChunkPool.borrow();
+			try {
+				while (remaining > 0) {
+					int read = content.readNBytes(chunk, 0, (int) Math.min(CHUNK_SIZE, remaining));
+					if (read == 0)
+						throw new EOFException("Faltam " + remaining + " bytes do conteúdo a enviar");
+					takeCredit(read);
+					checksum.update(chunk, 0, read);
+					writeFrame(Protocol.FILE_DATA, request, chunk, read);
+					remaining -= read;
+				}
+			}
+			finally {
+				ChunkPool.release(chunk);
+			}
+			if (version >= Protocol.TRAILER_VERSION) {
+				byte[] trailer = ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(size).putInt((int) checksum.getValue()).array();
+				writeFrame(Protocol.FILE_END, request, trailer, trailer.length);
+			}
+		}
+
+		public long receiveStream(OutputStream content) throws IOException {
+			long size = ByteBuffer.wrap(nextFrame(Protocol.FILE_BEGIN).payload).getLong();
+			if (size < 0)
+				throw new ProtocolException("Tamanho de ficheiro inválido: " + size);
+			if (progress != null)
+				content = progress.meter(content, size);
+
+			CRC32C checksum = new CRC32C();
+			long remaining = size;
+			while (remaining > 0) {
+				Frame frame = nextFrame(Protocol.FILE_DATA);
+				if (frame.length > remaining)
+					throw new ProtocolException("Pedaço de ficheiro maior do que o anunciado");
+				checksum.update(frame.payload, 0, frame.length);
+				content.write(frame.payload, 0, frame.length);
+				ChunkPool.release(frame.payload);
+				remaining -= frame.length;
+				acknowledge(frame.length);
+			}
+			if (version >= Protocol.TRAILER_VERSION) {
+				Frame end = nextFrame(Protocol.FILE_END);
+				ByteBuffer trailer = ByteBuffer.wrap(end.payload, 0, end.length);
+				if (end.length != Long.BYTES + Integer.BYTES || trailer.getLong() != size || trailer.getInt() != (int) checksum.getValue())
+					throw new ProtocolException("O ficheiro recebido não corresponde ao seu trailer");
+			}
+			return size;
+		}
+
+		/**
+		 * Auxiliary method that waits for the next frame of this request,
+		 * which must have a given opcode
+		 *
+		 * @param expected the opcode expected
+		 * @return the frame
+		 * @throws IOException
+		 */
+		private Frame nextFrame(byte expected) throws IOException {
+			Frame frame;
+			if (!client && this == control) {
+				//before the first command the session reads the connection itself
+				while ((frame = frames.poll()) == null)
+					route(readFrame());
+			}
+			else {
+				try {
+					frame = frames.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Pedido " + request + " interrompido");
+				}
+			}
+
+			if (frame == BROKEN)
+				throw failure instanceof EOFException ? new EOFException() : new IOException("Ligação terminada", failure);
+			if (frame.opcode == Protocol.END)
+				throw new ProtocolException("O pedido " + request + " terminou antes do esperado");
+			if (frame.opcode != expected)
+				throw new ProtocolException("Esperado o opcode " + expected + ", recebido " + frame.opcode);
+			return frame;
+		}
+
+		/**
+		 * Auxiliary method that waits until the other side has credit
+		 * for a chunk of file and uses it
+		 *
+		 * @param length size of the chunk
+		 * @throws IOException if the connection ended while waiting
+		 */
+		private synchronized void takeCredit(int length) throws IOException {
+			while (credit < length && failure == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Pedido " + request + " interrompido");
+				}
+			}
+			if (failure != null)
+				throw new IOException("Ligação terminada", failure);
+			credit -= length;
+		}
+
+		/**
+		 * Auxiliary method that returns credit to this stream
+		 *
+		 * @param length number of bytes acknowledged by the other side
+		 */
+		private synchronized void addCredit(int length) {
+			credit += length;
+			notifyAll();
+		}
+
+		/**
+		 * Auxiliary method that records a chunk of file as stored, returning the
+		 * credit to the other side once half of the window has been used
+		 *
+		 * @param length size of the chunk
+		 * @throws IOException
+		 */
+		private void acknowledge(int length) throws IOException {
+			unacknowledged += length;
+			if (unacknowledged >= WINDOW_SIZE / 2) {
+				byte[] update = ByteBuffer.allocate(Integer.BYTES).putInt(unacknowledged).array();
+				writeFrame(Protocol.WINDOW_UPDATE, request, update, update.length);
+				unacknowledged = 0;
+			}
+		}
+	}
+}
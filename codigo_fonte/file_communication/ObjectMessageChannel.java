@@ -0,0 +1,118 @@
+package file_communication;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Channel of the original protocol, where every message is a serialized String
+ * and the files are sent by the FileTransferer. It is kept for the clients
+ * that do not speak the binary protocol
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class ObjectMessageChannel implements MessageChannel {
+
+	private ObjectInputStream input;
+	private ObjectOutputStream output;
+
+	//the transfer whose progress is measured, null if none
+	private TransferProgress progress = null;
+
+	/**
+	 * Constructor. Initializes the channel
+	 *
+	 * @param input stream of serialized objects sent by the other side
+	 * @param output stream of serialized objects sent to the other side
+	 */
+	public ObjectMessageChannel(ObjectInputStream input, ObjectOutputStream output) {
+		this.input = input;
+		this.output = output;
+	}
+
+	public void sendMessage(String message) throws IOException {
+		output.writeObject(message);
+		output.flush();
+	}
+
+	public String receiveMessage() throws IOException {
+		try {
+			return (String) input.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new StreamCorruptedException("Mensagem inesperada: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method that sends a command. The serialized protocol has no request ids,
+	 * so the reply is received through this same channel
+	 */
+	public MessageChannel sendCommand(Command command) throws IOException {
+		sendMessage(command.toText());
+		return this;
+	}
+
+	public Command receiveCommand() throws IOException {
+		return Command.parse(receiveMessage());
+	}
+
+	public MessageChannel requestChannel(Command command) {
+		return this;
+	}
+
+	public boolean isMultiplexed() {
+		return false;
+	}
+
+	public boolean isResumable() {
+		return false;
+	}
+
+	public boolean isDeduplicated() {
+		return false;
+	}
+
+	public boolean isDeltaEncoded() {
+		return false;
+	}
+
+	public boolean isCompressed() {
+		return false;
+	}
+
+	public void endRequest(MessageChannel request) {
+		//the replies are not delimited in the serialized protocol
+	}
+
+	public void setTransferProgress(TransferProgress progress) {
+		this.progress = progress;
+	}
+
+	public void sendFile(String filename) throws IOException {
+		FileTransferer.sendFile(filename, output, progress);
+	}
+
+	public File receiveFile(String filename) throws IOException {
+		try {
+			return FileTransferer.receiveFile(filename, input, progress);
+		} catch (ClassNotFoundException e) {
+			throw new StreamCorruptedException("Tamanho de ficheiro inválido");
+		}
+	}
+
+	public void sendStream(InputStream content, long size) throws IOException {
+		FileTransferer.sendStream(content, size, output, progress);
+	}
+
+	public long receiveStream(OutputStream content) throws IOException {
+		try {
+			return FileTransferer.receiveStream(input, content, progress);
+		} catch (ClassNotFoundException e) {
+			throw new StreamCorruptedException("Tamanho de ficheiro inválido");
+		}
+	}
+}
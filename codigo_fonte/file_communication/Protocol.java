@@ -0,0 +1,221 @@
+package file_communication;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+/**
+ * Class with the constants of the binary protocol and the negotiation that
+ * decides which protocol a connection uses.
+ *
+ * The server always starts by writing the header of a stream of serialized objects,
+ * which the clients of the serialized protocol wait for. A client of the binary
+ * protocol discards it and sends BINARY_MAGIC followed by the highest version it
+ * supports, and the server answers with BINARY_MAGIC and the version both will use.
+ * From then on every message is a frame:
+ *
+ *     opcode (1 byte) | request id (4 bytes) | payload length (4 bytes) | payload
+ *
+ * In version 1 the requests are answered one after the other (BinaryMessageChannel).
+ * Version 2 adds the END and WINDOW_UPDATE frames, with which the requests become
+ * independent streams that run at the same time (MultiplexedChannel). Version 3 ends
+ * every file with a FILE_END frame, whose trailer holds the number of bytes sent and
+ * their CRC32C, so that the receiver knows the file arrived whole before keeping it.
+ * Version 4 adds the OFFSET command, with which an interrupted upload or download
+ * resumes from the bytes the other side already stored. Version 5 uploads the files as
+ * chunks cut by their content, and only sends the chunks their workspace does not have
+ * yet (ContentChunker). Version 6 sends those chunks as differences from the blocks of
+ * the version of the file the server already has (BlockDelta). Version 7 compresses the
+ * chunks before they are encrypted, and names the codec of each file uploaded and
+ * downloaded (ChunkCompressor).
+ * The sizes of the files are 64-bit in every version
+ *
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class Protocol {
+
+	//names of the protocols, chosen by the client with the mysharing.protocol property
+	public static final String BINARY_PROTOCOL = "binary";
+	public static final String LEGACY_PROTOCOL = "legacy";
+
+	//bytes that open the handshake of the binary protocol
+	public static final byte[] BINARY_MAGIC = { 'M', 'S', 'H', 'R' };
+
+	//highest version of the binary protocol supported
+	public static final int VERSION = 7;
+
+	//first version in which the requests are multiplexed
+	public static final int MULTIPLEXED_VERSION = 2;
+
+	//first version in which the files end with a trailer
+	public static final int TRAILER_VERSION = 3;
+
+	//first version in which the transfers resume where an interrupted one stopped
+	public static final int RESUME_VERSION = 4;
+
+	//first version in which the uploads only send the chunks their workspace does not have
+	public static final int DEDUP_VERSION = 5;
+
+	//first version in which the missing chunks are sent as differences from the file before
+	public static final int DELTA_VERSION = 6;
+
+	//first version in which the chunks may be compressed before they are encrypted
+	public static final int COMPRESSION_VERSION = 7;
+
+	//opcodes of the frames that carry data
+	public static final byte MESSAGE = 0x01;
+	public static final byte FILE_BEGIN = 0x02;
+	public static final byte FILE_DATA = 0x03;
+
+	//opcodes of the frames that control the streams of version 2
+	public static final byte END = 0x04;
+	public static final byte WINDOW_UPDATE = 0x05;
+
+	//opcode of the frame that ends a file in version 3
+	public static final byte FILE_END = 0x06;
+
+	//opcodes of the frames that carry commands, in the order of COMMAND_NAMES
+	public static final byte FIRST_COMMAND = 0x10;
+	private static final String[] COMMAND_NAMES = { "CREATE", "ADD", "UP", "DW", "RM", "LW", "LS", "OFFSET" };
+
+	/**
+	 * Method that returns the opcode of a command
+	 *
+	 * @param name name of the command
+	 * @return the opcode of the command
+	 * @throws ProtocolException if the command does not exist
+	 */
+	public static byte opcodeOf(String name) throws ProtocolException {
+		for (int i = 0; i < COMMAND_NAMES.length; i++) {
+			if (COMMAND_NAMES[i].equals(name))
+				return (byte) (FIRST_COMMAND + i);
+		}
+		throw new ProtocolException("Comando desconhecido: " + name);
+	}
+
+	/**
+	 * Method that returns the name of the command of an opcode
+	 *
+	 * @param opcode opcode of the command
+	 * @return the name of the command, or null if the opcode is not a command
+	 */
+	public static String commandOf(byte opcode) {
+		int index = opcode - FIRST_COMMAND;
+		if (index < 0 || index >= COMMAND_NAMES.length)
+			return null;
+		return COMMAND_NAMES[index];
+	}
+
+	/**
+	 * Method used by the server to open the channel of a new connection, with the
+	 * protocol chosen by the client
+	 *
+	 * @param in stream with the bytes sent by the client
+	 * @param out stream with the bytes sent to the client
+	 * @return the channel of the connection
+	 * @throws IOException
+	 */
+	public static MessageChannel acceptChannel(InputStream in, OutputStream out) throws IOException {
+		ObjectOutputStream objectOutput = objectOutput(out);
+
+		PushbackInputStream pushback = new PushbackInputStream(in, 2);
+		int first = pushback.read();
+		int second = pushback.read();
+		if (second == -1)
+			throw new EOFException();
+		pushback.unread(second);
+		pushback.unread(first);
+
+		if (((first << 8) | second) == (ObjectStreamConstants.STREAM_MAGIC & 0xffff))
+			return new ObjectMessageChannel(new ObjectInputStream(pushback), objectOutput);
+
+		DataInputStream dataInput = new DataInputStream(pushback);
+		byte[] magic = new byte[BINARY_MAGIC.length];
+		dataInput.readFully(magic);
+		if (!Arrays.equals(magic, BINARY_MAGIC))
+			throw new ProtocolException("Protocolo desconhecido");
+		int version = Math.min(dataInput.readUnsignedShort(), VERSION);
+
+		DataOutputStream dataOutput = new DataOutputStream(out);
+		dataOutput.write(BINARY_MAGIC);
+		dataOutput.writeShort(version);
+		dataOutput.flush();
+		if (version < 1)
+			throw new ProtocolException("Versão do protocolo não suportada");
+		if (version >= MULTIPLEXED_VERSION)
+			return new MultiplexedChannel(pushback, out, version, false);
+		return new BinaryMessageChannel(pushback, out, version);
+	}
+
+	/**
+	 * Method used by the client to open the channel of a connection.
+	 * If the server answers the handshake of the binary protocol with a serialized
+	 * object, as it does when it refuses the connection, the channel falls back
+	 * to the serialized protocol so that the answer can still be read
+	 *
+	 * @param in stream with the bytes sent by the server
+	 * @param out stream with the bytes sent to the server
+	 * @param protocol BINARY_PROTOCOL or LEGACY_PROTOCOL
+	 * @return the channel of the connection
+	 * @throws IOException
+	 */
+	public static MessageChannel connectChannel(InputStream in, OutputStream out, String protocol) throws IOException {
+		if (protocol.equals(LEGACY_PROTOCOL)) {
+			ObjectInputStream objectInput = new ObjectInputStream(in);
+			return new ObjectMessageChannel(objectInput, objectOutput(out));
+		}
+
+		DataInputStream dataInput = new DataInputStream(in);
+		byte[] header = new byte[4];
+		dataInput.readFully(header);
+
+		DataOutputStream dataOutput = new DataOutputStream(out);
+		dataOutput.write(BINARY_MAGIC);
+		dataOutput.writeShort(VERSION);
+		dataOutput.flush();
+
+		PushbackInputStream pushback = new PushbackInputStream(in, BINARY_MAGIC.length);
+		byte[] magic = new byte[BINARY_MAGIC.length];
+		new DataInputStream(pushback).readFully(magic);
+		if (!Arrays.equals(magic, BINARY_MAGIC)) {
+			pushback.unread(magic);
+			InputStream objectStream = new SequenceInputStream(new ByteArrayInputStream(header), pushback);
+			return new ObjectMessageChannel(new ObjectInputStream(objectStream), objectOutput(out));
+		}
+		int version = new DataInputStream(pushback).readUnsignedShort();
+		if (version < 1)
+			throw new ProtocolException("Versão do protocolo não suportada pelo servidor");
+		if (version >= MULTIPLEXED_VERSION)
+			return new MultiplexedChannel(pushback, out, version, true);
+		return new BinaryMessageChannel(pushback, out, version);
+	}
+
+	/**
+	 * Auxiliary method that opens the stream of serialized objects of a connection and
+	 * sends its header. The stream is buffered, so that the blocks in which it writes
+	 * the data of the files reach the connection together rather than one by one, and
+	 * it must be flushed at the end of each message
+	 *
+	 * @param out stream with the bytes sent to the other side
+	 * @return the stream of serialized objects
+	 * @throws IOException
+	 */
+	private static ObjectOutputStream objectOutput(OutputStream out) throws IOException {
+		ObjectOutputStream objectOutput = new ObjectOutputStream(new BufferedOutputStream(out, ChunkPool.CHUNK_SIZE));
+		objectOutput.flush();
+		return objectOutput;
+	}
+}
@@ -0,0 +1,25 @@
+package file_communication;
+
+/**
+ * Listener told of the progress of a transfer (TransferProgress) as the channel
+ * sends or receives its bytes
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public interface TransferListener {
+
+	/**
+	 * Method called a few times per second while the bytes of the transfer are sent or received
+	 *
+	 * @param progress the transfer
+	 */
+	void transferProgressed(TransferProgress progress);
+
+	/**
+	 * Method called once the transfer ends
+	 *
+	 * @param progress the transfer
+	 */
+	void transferEnded(TransferProgress progress);
+}
@@ -0,0 +1,278 @@
+package file_communication;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a transfer of one or more files through a channel. While it is set on a
+ * channel (MessageChannel.setTransferProgress), the channel measures the content of the
+ * files it sends and receives: the bytes transferred, the time spent reading or writing
+ * the content, taken as the time waiting for the disk, and the time between two reads or
+ * writes of the same file, taken as the time waiting for the network.
+ *
+ * The rate of the transfer is sampled a few times per second, and the listener is told
+ * of each sample
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class TransferProgress {
+
+	//time between two samples of the rate, in nanoseconds
+	private static final long SAMPLE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+
+	//weight of the last sample in the current rate
+	private static final double SAMPLE_WEIGHT = 0.5;
+
+	private String name;
+	private TransferListener listener;
+
+	//bytes of the transfer, the sum of the sizes of its files if it was not given
+	private long size;
+	private boolean sizeGiven;
+
+	//bytes transferred, and times waited for the network and for the disk, in nanoseconds
+	private long bytes = 0;
+	private long networkTime = 0;
+	private long diskTime = 0;
+
+	private long started = System.nanoTime();
+	private long ended = 0;
+	//end of the last read or write of the content
+	private long lastMark = started;
+
+	//the last sample and the rate up to it, in bytes per second, negative before the first sample
+	private long sampleTime = started;
+	private long sampleBytes = 0;
+	private double currentRate = -1;
+
+	/**
+	 * Constructor. Initializes the progress
+	 *
+	 * @param name the name of the transfer, such as the name of its file
+	 * @param size the number of bytes of the transfer, -1 if it is the sum of the sizes
+	 * 		of the files transferred
+	 * @param listener told of the progress, null if none
+	 */
+	public TransferProgress(String name, long size, TransferListener listener) {
+		this.name = name;
+		this.size = Math.max(size, 0);
+		this.sizeGiven = size >= 0;
+		this.listener = listener;
+	}
+
+	/**
+	 * Method used by the channels that returns a stream that measures the content of a file sent
+	 *
+	 * @param content the stream with the content of the file
+	 * @param fileSize the size of the file
+	 * @return the stream
+	 */
+	public InputStream meter(InputStream content, long fileSize) {
+		begin(fileSize);
+		return new FilterInputStream(content) {
+			@Override
+			public int read() throws IOException {
+				long start = System.nanoTime();
+				int read = super.read();
+				record(start, read == -1 ? 0 : 1);
+				return read;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				long start = System.nanoTime();
+				int read = super.read(b, off, len);
+				record(start, Math.max(read, 0));
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Method used by the channels that returns a stream that measures the content of a
+	 * file received. The stream given is not closed with it
+	 *
+	 * @param content the stream where the content of the file is written
+	 * @param fileSize the size of the file
+	 * @return the stream
+	 */
+	public OutputStream meter(OutputStream content, long fileSize) {
+		begin(fileSize);
+		return new FilterOutputStream(content) {
+			@Override
+			public void write(int b) throws IOException {
+				long start = System.nanoTime();
+				out.write(b);
+				record(start, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				long start = System.nanoTime();
+				out.write(b, off, len);
+				record(start, len);
+			}
+		};
+	}
+
+	/**
+	 * Method that ends the transfer and tells the listener
+	 */
+	public void end() {
+		synchronized (this) {
+			ended = System.nanoTime();
+		}
+		if (listener != null)
+			listener.transferEnded(this);
+	}
+
+	/**
+	 * Method that returns the name of the transfer
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Method that returns the number of bytes of the transfer
+	 *
+	 * @return the size given, or else the sum of the sizes of the files started so far
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Method that returns the number of bytes transferred
+	 *
+	 * @return the bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Method that returns the time since the transfer started, until it ended
+	 *
+	 * @return the time, in nanoseconds
+	 */
+	public synchronized long getElapsed() {
+		return (ended != 0 ? ended : System.nanoTime()) - started;
+	}
+
+	/**
+	 * Method that returns the rate of the whole transfer
+	 *
+	 * @return the rate, in bytes per second
+	 */
+	public synchronized double getAverageRate() {
+		return bytes * 1e9 / Math.max(getElapsed(), 1);
+	}
+
+	/**
+	 * Method that returns the rate of the last samples of the transfer
+	 *
+	 * @return the rate, in bytes per second, the average rate before the first sample
+	 */
+	public synchronized double getCurrentRate() {
+		return currentRate < 0 ? getAverageRate() : currentRate;
+	}
+
+	/**
+	 * Method that returns the time the transfer still takes at its current rate
+	 *
+	 * @return the time, in nanoseconds, -1 if it cannot be told
+	 */
+	public synchronized long getRemaining() {
+		double rate = getCurrentRate();
+		if (rate <= 0 || bytes > size)
+			return -1;
+		return (long) ((size - bytes) / rate * 1e9);
+	}
+
+	/**
+	 * Method that returns the time waited for the network, between two reads or writes of a file
+	 *
+	 * @return the time, in nanoseconds
+	 */
+	public synchronized long getNetworkTime() {
+		return networkTime;
+	}
+
+	/**
+	 * Method that returns the time waited for the disk, reading or writing the content of the files
+	 *
+	 * @return the time, in nanoseconds
+	 */
+	public synchronized long getDiskTime() {
+		return diskTime;
+	}
+
+	/**
+	 * Method that formats a number of bytes
+	 *
+	 * @param bytes the number of bytes
+	 * @return the number, in KiB or MiB
+	 */
+	public static String formatSize(long bytes) {
+		if (bytes < 1024 * 1024)
+			return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024.0);
+		return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024));
+	}
+
+	/**
+	 * Method that formats a rate
+	 *
+	 * @param bytesPerSecond the rate
+	 * @return the rate, in KiB/s or MiB/s
+	 */
+	public static String formatRate(double bytesPerSecond) {
+		if (bytesPerSecond < 1024 * 1024)
+			return String.format(Locale.ROOT, "%.1f KiB/s", bytesPerSecond / 1024);
+		return String.format(Locale.ROOT, "%.1f MiB/s", bytesPerSecond / (1024 * 1024));
+	}
+
+	/**
+	 * Auxiliary method that starts to measure a file
+	 *
+	 * @param fileSize the size of the file
+	 */
+	private synchronized void begin(long fileSize) {
+		if (!sizeGiven)
+			size += fileSize;
+		//the time before the file is neither the network's nor the disk's
+		lastMark = System.nanoTime();
+	}
+
+	/**
+	 * Auxiliary method that measures a read or a write of the content of a file, and takes
+	 * a sample of the rate once every interval
+	 *
+	 * @param start the time the read or write started
+	 * @param length the number of bytes read or written
+	 */
+	private void record(long start, long length) {
+		long end = System.nanoTime();
+		synchronized (this) {
+			networkTime += start - lastMark;
+			diskTime += end - start;
+			lastMark = end;
+			bytes += length;
+			if (end - sampleTime < SAMPLE_INTERVAL)
+				return;
+			double rate = (bytes - sampleBytes) * 1e9 / (end - sampleTime);
+			currentRate = currentRate < 0 ? rate : SAMPLE_WEIGHT * rate + (1 - SAMPLE_WEIGHT) * currentRate;
+			sampleTime = end;
+			sampleBytes = bytes;
+		}
+		if (listener != null)
+			listener.transferProgressed(this);
+	}
+}
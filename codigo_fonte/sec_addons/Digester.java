@@ -1,7 +1,8 @@
 package sec_addons;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * Class used to digest a given set of data
@@ -11,27 +12,54 @@ import java.security.NoSuchAlgorithmException;
  */
 public class Digester{
 
-    //tool that performs the hash/digest
-    private MessageDigest digester;
+    //size of the parts in which a stream is read to be hashed
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    //tools that perform the hash/digest, each used by one thread at a time
+    private EnginePool<MessageDigest> digesters;
 
     /**
-     * Contructor. Initializes the digester with the SHA-256 algorithm, which
+     * Contructor. Initializes the digesters with the SHA-256 algorithm, which
      * is considered safe
      */
     public Digester() {
-        try {
-			this.digester = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
+        this.digesters = EnginePool.digests("SHA-256");
     }
 
     /**
-     * Method that takes a set of data and returns its hash
+     * Method that takes a set of data and returns its hash.
+     * Each call borrows a MessageDigest of its own, so that threads hash at the same time
      * @param messageBytes data in byte[] format
      * @return the hash of that data, in byte[] format
      */ 
     public byte[] hash(byte[] messageBytes){
-        return digester.digest(messageBytes);
+        MessageDigest digester = digesters.borrow();
+        try {
+            return digester.digest(messageBytes);
+        }
+        finally {
+            digesters.release(digester);
+        }
+    }
+
+    /**
+     * Method that reads a stream to its end and returns the hash of its content,
+     * which is hashed part by part so that it is never whole in memory
+     * @param content stream with the data, which is not closed
+     * @return the hash of that data, in byte[] format
+     * @throws IOException
+     */
+    public byte[] hash(InputStream content) throws IOException {
+        MessageDigest digester = digesters.borrow();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = content.read(buffer)) != -1)
+                digester.update(buffer, 0, read);
+            return digester.digest();
+        }
+        finally {
+            digesters.release(digester);
+        }
     }
-}
\ No newline at end of file
+}
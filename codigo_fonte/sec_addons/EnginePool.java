@@ -0,0 +1,127 @@
+package sec_addons;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+
+/**
+ * Class that keeps a pool of engines, such as Mac or MessageDigest objects, which hold
+ * state while they are used and cannot be shared by threads. A thread borrows an engine,
+ * uses it alone and returns it, so that the threads hash in parallel without waiting for
+ * each other, and without creating an engine for each use. Only a limited number of idle
+ * engines is kept, the ones returned past that limit are discarded
+ * @param <T> type of the engines
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class EnginePool<T> {
+
+    /**
+     * Code that creates a new engine of the pool
+     * @param <T> type of the engines
+     */
+    public interface Factory<T> {
+
+        /**
+         * Method that creates a new engine
+         * @return the engine
+         * @throws GeneralSecurityException
+         */
+        T create() throws GeneralSecurityException;
+    }
+
+    /**
+     * Code that prepares an engine to be used again
+     * @param <T> type of the engines
+     */
+    public interface Reset<T> {
+
+        /**
+         * Method that discards what an engine was given
+         * @param engine the engine
+         */
+        void reset(T engine);
+    }
+
+    //default number of idle engines kept by a pool
+    private static final int DEFAULT_MAX_IDLE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private Factory<T> factory;
+    private Reset<T> reset;
+    private int maxIdle;
+
+    //engines not being used, and their number
+    private Queue<T> idle = new ConcurrentLinkedQueue<>();
+    private AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Constructor. Initializes an empty pool, whose engines are created when needed
+     * @param factory creates the engines
+     * @param reset prepares an engine to be used again
+     * @param maxIdle maximum number of idle engines kept
+     */
+    public EnginePool(Factory<T> factory, Reset<T> reset, int maxIdle) {
+        this.factory = factory;
+        this.reset = reset;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Method that creates a pool of MessageDigest objects
+     * @param algorithm the algorithm of the digests
+     * @return the pool
+     */
+    public static EnginePool<MessageDigest> digests(String algorithm) {
+        return new EnginePool<>(() -> MessageDigest.getInstance(algorithm), MessageDigest::reset, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Method that creates a pool of Mac objects, all initialized with the same key
+     * @param algorithm the algorithm of the MACs
+     * @param key the key of the MACs
+     * @return the pool
+     */
+    public static EnginePool<Mac> macs(String algorithm, Key key) {
+        return new EnginePool<>(() -> {
+            Mac mac = Mac.getInstance(algorithm);
+            mac.init(key);
+            return mac;
+        }, Mac::reset, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Method that borrows an engine, which must be returned once it is no longer used
+     * @return an idle engine, or a new one if none is idle
+     * @throws IllegalStateException if the engine could not be created
+     */
+    public T borrow() {
+        T engine = idle.poll();
+        if (engine != null) {
+            idleCount.decrementAndGet();
+            return engine;
+        }
+        try {
+            return factory.create();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Method that returns a borrowed engine to the pool
+     * @param engine the engine
+     */
+    public void release(T engine) {
+        reset.reset(engine);
+        if (idleCount.incrementAndGet() <= maxIdle)
+            idle.offer(engine);
+        else
+            idleCount.decrementAndGet();
+    }
+}
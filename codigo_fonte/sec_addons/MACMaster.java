@@ -3,25 +3,55 @@ package sec_addons;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.crypto.Mac;
 import server_tools.FileScanner;
 
 /**
- * Class that performs all tasks related to MAC
+ * Class that performs all tasks related to MAC.
+ *
+ * The MAC of some files is the MAC of the roots of their hash trees, kept in memory,
+ * so that when some records of a file change, only their blocks and the nodes on the
+ * way to the root are hashed again before the MAC is written, and a single record can
+ * be checked by checking only its way to the root.
+ *
+ * Once the content of some files matches their MAC, the size, modification time and
+ * identity of the files and of the file with the MAC are kept, and the files are only
+ * read again when one of them changes, or when the directories of the files report a
+ * change. Without those reports, a file modified less than two seconds before it was
+ * checked is read again the next time, as its modification time may not tell apart
+ * two changes made close together
  * @author Diogo Oliveira fc59839
  * @author Rodrigo Neto fc59850
  * @author Vladislav Zavgorodnii fc59783
  */
 public class MACMaster {
     
-    //executes MAC operations
-    private Mac mac;
+    //algorithm of the MAC
+    private static final String ALGORITHM = "HmacSHA1";
+
+    //Mac objects that execute MAC operations, each used by one thread at a time, null until the key is set
+    private volatile EnginePool<Mac> macs;
 
     //file that stores in text the MAC since the last operation
     private File fileWithMAC;
@@ -29,6 +59,22 @@ public class MACMaster {
     //will be false if the server's administrator chose not to use a mac
     private boolean allowed;
 
+    //hash trees of the files covered by the MAC, null until they are built
+    private MerkleTree[] trees;
+    //parts of the files changed since their trees were last updated
+    private Map<File, List<long[]>> changes = new HashMap<>();
+
+    //time during which a change to a file may keep its modification time, in milliseconds
+    private static final long RACY_INTERVAL = 2000;
+
+    //files whose content was last found to match the MAC, and their state at the time
+    private File[] verifiedFiles;
+    private List<Object> verifiedState;
+
+    //reports the changes made to the directories of the verified files, null if not available
+    private WatchService watcher;
+    private Set<Path> watchedFiles = new HashSet<>();
+
     /**
      * Constructor. Initializes the MACMaster
      * @param fileWithMAC file where the mac will be written
@@ -37,33 +83,160 @@ public class MACMaster {
      */
     public MACMaster(File fileWithMAC, boolean allowed) throws NoSuchAlgorithmException {
         this.fileWithMAC = fileWithMAC;
-        mac = Mac.getInstance("HmacSHA1");
+        //fails at once if the algorithm is not available
+        Mac.getInstance(ALGORITHM);
         this.allowed = allowed;
     }
 
     /**
-     * Method that sets the key for the Mac object to use
-     * @param key key for the Mac object to use
+     * Method that sets the key for the Mac objects to use
+     * @param key key for the Mac objects to use
      * @throws InvalidKeyException
      */
     public void setKey(Key key) throws InvalidKeyException {
-        mac.init(key);
+        EnginePool<Mac> pool = EnginePool.macs(ALGORITHM, key);
+        try {
+            pool.release(pool.borrow());
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof InvalidKeyException)
+                throw (InvalidKeyException) e.getCause();
+            throw e;
+        }
+        macs = pool;
     }
 
     /**
-     * Method that calculates the MAC of a certain data file, and then writes it into 
-     * the file responsible for storing the MAC
-     * @param dataFile file whose MAC will be calculated
+     * Method that tells that a part of a file was changed where it is, so that its blocks
+     * are hashed again the next time the MAC is written. Appending to a file, truncating
+     * it and replacing it by another file are noticed without being told
+     * @param dataFile the file
+     * @param offset position of the part
+     * @param length size of the part
+     */
+    public synchronized void markChanged(File dataFile, long offset, long length) {
+        changes.computeIfAbsent(dataFile, f -> new ArrayList<>()).add(new long[] { offset, length });
+    }
+
+    /**
+     * Method that calculates the MAC of certain data files, and then writes it into 
+     * the file responsible for storing the MAC. If the trees of the files exist, only
+     * the blocks changed since they were last updated are hashed
+     * @param dataFiles files whose MAC will be calculated, one after the other
      * @throws IOException
      * @throws NoSuchAlgorithmException
      */
-    public void writeMACIntoFile(File dataFile) throws IOException, NoSuchAlgorithmException {
+    public synchronized void writeMACIntoFile(File... dataFiles) throws IOException, NoSuchAlgorithmException {
         if (allowed) {
-            byte[] userFileBytes = Files.readAllBytes(dataFile.toPath());
-            mac.update(userFileBytes);
+            if (trees != null && Arrays.equals(dataFiles, filesOf(trees))) {
+                for (MerkleTree tree : trees)
+                    tree.update(changes.getOrDefault(tree.getFile(), new ArrayList<>()));
+            } else {
+                trees = buildTrees(dataFiles);
+            }
+            changes.clear();
+            String finalMAC = getMACFromTrees(trees);
             MACWriter writer = new MACWriter(fileWithMAC);
-            writer.writeMAC(getFinalMAC());
+            writer.writeMAC(finalMAC);
+            remember(dataFiles, stateOf(dataFiles));
+        }
+    }
+
+    /**
+     * Method that checks if the content of some files matches the MAC written into the
+     * file that stores it. The files are only read if they, or that file, changed since
+     * they were last found to match
+     * @param dataFiles files whose MAC is checked, one after the other
+     * @return true if the content of the files matches the MAC
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public boolean verifyFiles(File... dataFiles) throws IOException, NoSuchAlgorithmException {
+        //the state is taken before the content, so that a change made while reading is seen next time
+        List<Object> state = stateOf(dataFiles);
+        synchronized (this) {
+            if (state.equals(verifiedState) && Arrays.equals(dataFiles, verifiedFiles))
+                return true;
+        }
+        MerkleTree[] built = buildTrees(dataFiles);
+        if (!getMACFromTrees(built).equals(getExistingMAC())) {
+            forget();
+            return false;
         }
+        synchronized (this) {
+            trees = built;
+            changes.clear();
+        }
+        watch(dataFiles);
+        remember(dataFiles, state);
+        return true;
+    }
+
+    /**
+     * Method that checks if a part of a file matches the MAC, by hashing only its blocks
+     * and the nodes on their way to the root of the tree of the file. If the tree of the
+     * file was not built, the whole file is checked
+     * @param dataFile the file
+     * @param offset position of the part
+     * @param length size of the part
+     * @return true if the part matches the MAC
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public synchronized boolean verifyRange(File dataFile, long offset, long length) throws IOException, NoSuchAlgorithmException {
+        if (!allowed)
+            return true;
+        if (trees == null || !Arrays.asList(filesOf(trees)).contains(dataFile))
+            return verifyFiles(dataFile);
+        for (MerkleTree tree : trees) {
+            if (tree.getFile().equals(dataFile) && !tree.verify(offset, length))
+                return false;
+        }
+        return getMACFromTrees(trees).equals(getExistingMAC());
+    }
+
+    /**
+     * Method that makes the next check of the files read them, even if they did not change
+     */
+    public void invalidate() {
+        forget();
+    }
+
+    /**
+     * Method that calculates the MAC of the content of some files, one after the other
+     * @param dataFiles files whose MAC will be calculated
+     * @return the MAC of that content in String format
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String getMACFromFiles(File... dataFiles) throws IOException, NoSuchAlgorithmException {
+        return getMACFromTrees(buildTrees(dataFiles));
+    }
+
+    /**
+     * Method that replaces a MAC written before the MAC covered the hash trees of the
+     * files, calculated over their whole content, by the MAC of their trees
+     * @param dataFiles files covered by the MAC, one after the other
+     * @return true if the MAC was replaced
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public synchronized boolean upgradeMAC(File... dataFiles) throws IOException, NoSuchAlgorithmException {
+        if (!allowed)
+            return false;
+        String wholeContentMAC;
+        Mac mac = macs.borrow();
+        try {
+            for (File dataFile : dataFiles)
+                mac.update(Files.readAllBytes(dataFile.toPath()));
+            wholeContentMAC = getFinalMAC(mac);
+        }
+        finally {
+            macs.release(mac);
+        }
+        if (!wholeContentMAC.equals(getExistingMAC()))
+            return false;
+        writeMACIntoFile(dataFiles);
+        return true;
     }
 
     /**
@@ -74,8 +247,14 @@ public class MACMaster {
      * @throws IllegalStateException
      */
     public String getMACFromData(byte[] data) throws UnsupportedEncodingException, IllegalStateException {
-        mac.update(data);
-        return getFinalMAC();
+        Mac mac = macs.borrow();
+        try {
+            mac.update(data);
+            return getFinalMAC(mac);
+        }
+        finally {
+            macs.release(mac);
+        }
     }
 
     /**
@@ -91,13 +270,175 @@ public class MACMaster {
     }
 
     /**
-     * Auxiliary method that calls the doFinal method of the Mac object, and returns 
+     * Auxiliary method that builds the hash trees of some files
+     * @param dataFiles the files
+     * @return their trees
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private static MerkleTree[] buildTrees(File[] dataFiles) throws IOException, NoSuchAlgorithmException {
+        MerkleTree[] built = new MerkleTree[dataFiles.length];
+        for (int i = 0; i < dataFiles.length; i++)
+            built[i] = MerkleTree.build(dataFiles[i]);
+        return built;
+    }
+
+    /**
+     * Auxiliary method that returns the files of some hash trees
+     * @param fileTrees the trees
+     * @return their files
+     */
+    private static File[] filesOf(MerkleTree[] fileTrees) {
+        File[] files = new File[fileTrees.length];
+        for (int i = 0; i < fileTrees.length; i++)
+            files[i] = fileTrees[i].getFile();
+        return files;
+    }
+
+    /**
+     * Auxiliary method that calculates the MAC of the roots of some hash trees
+     * @param fileTrees the trees
+     * @return the MAC in String format
+     * @throws UnsupportedEncodingException
+     */
+    private String getMACFromTrees(MerkleTree[] fileTrees) throws UnsupportedEncodingException {
+        Mac mac = macs.borrow();
+        try {
+            for (MerkleTree tree : fileTrees)
+                mac.update(tree.getRoot());
+            return getFinalMAC(mac);
+        }
+        finally {
+            macs.release(mac);
+        }
+    }
+
+    /**
+     * Auxiliary method that keeps the state of some files whose content matches the MAC,
+     * unless a later change to them could go unnoticed
+     * @param dataFiles the files
+     * @param state their state, and the state of the file that stores the MAC
+     */
+    private synchronized void remember(File[] dataFiles, List<Object> state) {
+        if (watcher == null) {
+            long now = System.currentTimeMillis();
+            for (int i = 1; i < state.size(); i += 3) {
+                if (now - (Long) state.get(i) < RACY_INTERVAL) {
+                    forget();
+                    return;
+                }
+            }
+        }
+        verifiedFiles = dataFiles.clone();
+        verifiedState = state;
+    }
+
+    /**
+     * Auxiliary method that discards the state of the files last found to match the MAC,
+     * so that they are read on the next check
+     */
+    private synchronized void forget() {
+        verifiedFiles = null;
+        verifiedState = null;
+    }
+
+    /**
+     * Auxiliary method that returns the size, modification time and identity of some files
+     * and of the file that stores the MAC
+     * @param dataFiles the files
+     * @return for each file, its size, modification time and identity, one after the other
+     * @throws IOException
+     */
+    private List<Object> stateOf(File[] dataFiles) throws IOException {
+        List<Object> state = new ArrayList<>();
+        for (File file : dataFiles)
+            addState(state, file);
+        addState(state, fileWithMAC);
+        return state;
+    }
+
+    /**
+     * Auxiliary method that adds the state of a file to the state of a set of files
+     * @param state the state of the set of files
+     * @param file the file
+     * @throws IOException
+     */
+    private static void addState(List<Object> state, File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        state.add(attributes.size());
+        state.add(attributes.lastModifiedTime().toMillis());
+        state.add(attributes.fileKey() != null ? attributes.fileKey() : attributes.lastModifiedTime());
+    }
+
+    /**
+     * Auxiliary method that starts watching the directories of some files and of the file
+     * that stores the MAC, so that a change to any of them makes the files be read on the
+     * next check. If watching is not available, only the state of the files is compared
+     * @param dataFiles the files
+     */
+    private synchronized void watch(File[] dataFiles) {
+        List<Path> files = new ArrayList<>();
+        for (File file : dataFiles)
+            files.add(file.toPath().toAbsolutePath().normalize());
+        files.add(fileWithMAC.toPath().toAbsolutePath().normalize());
+        if (watchedFiles.containsAll(files))
+            return;
+        try {
+            if (watcher == null) {
+                watcher = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(this::receiveChanges, "mysharing-mac-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            for (Path file : files) {
+                if (watchedFiles.add(file))
+                    file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Não é possível vigiar as alterações aos ficheiros do MAC: " + e.getMessage());
+            watchedFiles.clear();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Auxiliary method executed by the thread that receives the changes made to the watched
+     * directories, and discards the state of the files when one of them changes
+     */
+    private void receiveChanges() {
+        WatchService service;
+        synchronized (this) {
+            service = watcher;
+        }
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object changed = event.context();
+                    synchronized (this) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || watchedFiles.contains(directory.resolve((Path) changed)))
+                            forget();
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            return;
+        }
+    }
+
+    /**
+     * Auxiliary method that calls the doFinal method of a Mac object, and returns 
      * the result in string format
+     * @param mac the Mac object
      * @return
      * @throws UnsupportedEncodingException
      * @throws IllegalStateException
      */
-    private String getFinalMAC() throws UnsupportedEncodingException, IllegalStateException {
+    private static String getFinalMAC(Mac mac) throws UnsupportedEncodingException, IllegalStateException {
         String finalMAC = Base64.getEncoder().encodeToString(mac.doFinal());
         return finalMAC;
     }
@@ -0,0 +1,331 @@
+package sec_addons;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Class that keeps the hash tree of the content of a file. The file is divided into
+ * blocks of records, each hashed into a leaf of the tree, and each node of the tree
+ * is the hash of its two children, so that the root covers the whole file.
+ *
+ * When some blocks change, only their leaves and the nodes on their way to the root
+ * are hashed again, and a block is checked by hashing it and the nodes on its way to
+ * the root. When the tree is built from the file, its subtrees are hashed in parallel
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class MerkleTree {
+
+    //size of the blocks of the file, each hashed into a leaf
+    public static final int BLOCK_SIZE = 4096;
+
+    //number of leaves below which a subtree is hashed by a single thread
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    //prefixes that keep the leaves, the nodes and the root from being taken for one another
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+    private static final byte ROOT = 2;
+
+    //hash of the leaves past the end of the file
+    private static final byte[] EMPTY = new byte[32];
+
+    //calculate the hashes of the subtrees built in parallel
+    private static final EnginePool<MessageDigest> DIGESTS = EnginePool.digests("SHA-256");
+
+    //the file, and its size and identity when the tree was last updated
+    private File file;
+    private long length;
+    private Object fileKey;
+
+    //nodes of the tree, the root first and the children of node i at 2i and 2i + 1
+    private byte[][] nodes;
+    //number of leaves, a power of two, and the first of them in the nodes
+    private int capacity;
+
+    //calculates the hashes when the tree is updated
+    private MessageDigest digest;
+
+    /**
+     * Constructor. Initializes an empty tree
+     * @param file the file covered by the tree
+     * @throws NoSuchAlgorithmException
+     */
+    private MerkleTree(File file) throws NoSuchAlgorithmException {
+        this.file = file;
+        this.digest = MessageDigest.getInstance("SHA-256");
+    }
+
+    /**
+     * Method that builds the tree of a file, hashing its subtrees in parallel
+     * @param file the file
+     * @return the tree
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static MerkleTree build(File file) throws IOException, NoSuchAlgorithmException {
+        MerkleTree tree = new MerkleTree(file);
+        tree.rebuild();
+        return tree;
+    }
+
+    /**
+     * Method that returns the root of the tree, which also covers the size of the file
+     * @return the root
+     */
+    public byte[] getRoot() {
+        digest.update(ROOT);
+        digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, length).array());
+        digest.update(nodes[1]);
+        return digest.digest();
+    }
+
+    /**
+     * Method that updates the tree after some parts of the file changed. Besides the given
+     * parts, the blocks past the former end of the file are hashed again, and the whole
+     * tree is built again if the file was replaced by another one
+     * @param changes the parts of the file that changed, each with its position and its size
+     * @throws IOException
+     */
+    public void update(List<long[]> changes) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (!Objects.equals(attributes.fileKey(), fileKey) || attributes.fileKey() == null) {
+            rebuild();
+            return;
+        }
+        long oldLength = length;
+        length = attributes.size();
+        int leaves = leavesOf(length);
+        if (leaves > capacity || (capacity > 1 && leaves <= capacity / 2)) {
+            resize(leaves);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (long[] change : changes)
+                updateBlocks(channel, change[0], change[0] + change[1]);
+            updateBlocks(channel, Math.min(oldLength, length), Math.max(oldLength, length));
+        }
+    }
+
+    /**
+     * Method that checks a part of the file against the tree, hashing only its blocks
+     * and the nodes on their way to the root
+     * @param offset position of the part
+     * @param size size of the part
+     * @return true if the part matches the tree
+     * @throws IOException
+     */
+    public boolean verify(long offset, long size) throws IOException {
+        if (file.length() != length)
+            return false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long first = offset / BLOCK_SIZE;
+            long last = Math.min((offset + Math.max(size, 1) - 1) / BLOCK_SIZE, leavesOf(length) - 1L);
+            for (long block = first; block <= last; block++) {
+                byte[] hash = hashLeaf(digest, channel, block);
+                int node = capacity + (int) block;
+                while (node > 1) {
+                    if (!Arrays.equals(hash, nodes[node]))
+                        return false;
+                    hash = (node % 2 == 0) ? hashNode(digest, hash, nodes[node + 1]) : hashNode(digest, nodes[node - 1], hash);
+                    node /= 2;
+                }
+                if (!Arrays.equals(hash, nodes[1]))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method that returns the file covered by the tree
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Auxiliary method that builds the whole tree from the file
+     * @throws IOException
+     */
+    private void rebuild() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        length = attributes.size();
+        fileKey = attributes.fileKey();
+        capacity = capacityFor(leavesOf(length));
+        nodes = new byte[2 * capacity][];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            new Subtree(channel, 1, 0, capacity).invoke();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Auxiliary method that changes the number of leaves of the tree, keeping the leaves
+     * that still exist, and hashes the nodes again
+     * @param leaves the number of leaves of the file
+     */
+    private void resize(int leaves) {
+        int newCapacity = capacityFor(leaves);
+        byte[][] newNodes = new byte[2 * newCapacity][];
+        for (int leaf = 0; leaf < newCapacity; leaf++)
+            newNodes[newCapacity + leaf] = leaf < capacity ? nodes[capacity + leaf] : EMPTY;
+        for (int node = newCapacity - 1; node >= 1; node--)
+            newNodes[node] = hashNode(digest, newNodes[2 * node], newNodes[2 * node + 1]);
+        nodes = newNodes;
+        capacity = newCapacity;
+    }
+
+    /**
+     * Auxiliary method that hashes again the blocks of a part of the file, and the
+     * nodes on their way to the root
+     * @param channel the file
+     * @param from position of the part
+     * @param to position of the end of the part
+     * @throws IOException
+     */
+    private void updateBlocks(FileChannel channel, long from, long to) throws IOException {
+        if (to <= from)
+            return;
+        long first = from / BLOCK_SIZE;
+        long last = Math.min((to - 1) / BLOCK_SIZE, capacity - 1L);
+        for (long block = first; block <= last; block++) {
+            int node = capacity + (int) block;
+            nodes[node] = block < leavesOf(length) ? hashLeaf(digest, channel, block) : EMPTY;
+            for (node /= 2; node >= 1; node /= 2)
+                nodes[node] = hashNode(digest, nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    /**
+     * Auxiliary method that returns the number of blocks of a file
+     * @param length the size of the file
+     * @return the number of blocks
+     */
+    private static int leavesOf(long length) {
+        long leaves = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (leaves > Integer.MAX_VALUE / 4)
+            throw new IllegalArgumentException("Ficheiro demasiado grande para a árvore de hashes");
+        return (int) leaves;
+    }
+
+    /**
+     * Auxiliary method that returns the number of leaves of a tree for a number of blocks
+     * @param leaves the number of blocks
+     * @return the smallest power of two that is not smaller than the number of blocks
+     */
+    private static int capacityFor(int leaves) {
+        int capacity = 1;
+        while (capacity < leaves)
+            capacity *= 2;
+        return capacity;
+    }
+
+    /**
+     * Auxiliary method that reads a block of the file and hashes it into a leaf
+     * @param digest calculates the hash
+     * @param channel the file
+     * @param block the number of the block
+     * @return the leaf
+     * @throws IOException
+     */
+    private static byte[] hashLeaf(MessageDigest digest, FileChannel channel, long block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        long position = block * BLOCK_SIZE;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                break;
+        }
+        buffer.flip();
+        digest.update(LEAF);
+        digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, block).array());
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    /**
+     * Auxiliary method that hashes two children into their node
+     * @param digest calculates the hash
+     * @param left the left child
+     * @param right the right child
+     * @return the node
+     */
+    private static byte[] hashNode(MessageDigest digest, byte[] left, byte[] right) {
+        digest.update(NODE);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    /**
+     * Task that hashes a subtree, forking the hashing of its two halves while they are large
+     */
+    private class Subtree extends RecursiveTask<byte[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private FileChannel channel;
+        private int node;
+        private int firstLeaf;
+        private int leaves;
+
+        Subtree(FileChannel channel, int node, int firstLeaf, int leaves) {
+            this.channel = channel;
+            this.node = node;
+            this.firstLeaf = firstLeaf;
+            this.leaves = leaves;
+        }
+
+        @Override
+        protected byte[] compute() {
+            if (leaves > PARALLEL_THRESHOLD) {
+                Subtree left = new Subtree(channel, 2 * node, firstLeaf, leaves / 2);
+                Subtree right = new Subtree(channel, 2 * node + 1, firstLeaf + leaves / 2, leaves / 2);
+                left.fork();
+                byte[] rightHash = right.compute();
+                byte[] leftHash = left.join();
+                MessageDigest nodeDigest = DIGESTS.borrow();
+                try {
+                    nodes[node] = hashNode(nodeDigest, leftHash, rightHash);
+                }
+                finally {
+                    DIGESTS.release(nodeDigest);
+                }
+                return nodes[node];
+            }
+            MessageDigest subtreeDigest = DIGESTS.borrow();
+            try {
+                int blocks = leavesOf(length);
+                for (int leaf = firstLeaf; leaf < firstLeaf + leaves; leaf++)
+                    nodes[capacity + leaf] = leaf < blocks ? hashLeaf(subtreeDigest, channel, leaf) : EMPTY;
+                int first = (capacity + firstLeaf) / 2;
+                for (int level = leaves / 2; level >= 1; level /= 2, first /= 2) {
+                    for (int parent = first; parent < first + level; parent++)
+                        nodes[parent] = hashNode(subtreeDigest, nodes[2 * parent], nodes[2 * parent + 1]);
+                }
+                return nodes[node];
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            finally {
+                DIGESTS.release(subtreeDigest);
+            }
+        }
+    }
+}
@@ -20,6 +20,9 @@ import javax.crypto.NoSuchPaddingException;
  * @author Vladislav Zavgorodnii fc59783
  */
 public class SymmetricCipher {
+
+    //size of the blocks of AES, to which the encrypted files are padded
+    public static final int BLOCK_SIZE = 16;
     
     /**
 	 * Starts a cipher with the AES algorithm ready to be used for encryption
@@ -35,6 +38,22 @@ public class SymmetricCipher {
         return AESCipher;
     }
 
+    /**
+	 * Starts a cipher with the AES algorithm ready to encrypt the chunks of a file that are
+	 * not its last one. It does not pad them, so that they are the same bytes as the ones
+	 * of the whole file encrypted by the cipher of startEncryptCipher
+	 * @param key AES key used for encryption
+	 * @return the AES cipher ready to be used
+	 * @throws InvalidKeyException
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 */
+    public static Cipher startChunkEncryptCipher(Key key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
+    	Cipher AESCipher = Cipher.getInstance("AES/ECB/NoPadding");
+        AESCipher.init(Cipher.ENCRYPT_MODE, key);
+        return AESCipher;
+    }
+
     /**
 	 * Starts a cipher with the AES algorithm ready to be used for decryption
 	 * @param key AES key used for decryption
@@ -49,6 +68,17 @@ public class SymmetricCipher {
 	    return AESCipher;
 	}
 
+    /**
+     * Method that returns the size of a file once encrypted by a cipher of this class,
+     * which pads it up to the next whole block, so that an encrypted file can be sent
+     * as it is encrypted without being stored first
+     * @param length the size of the file
+     * @return the size of the encrypted file
+     */
+    public static long encryptedSize(long length) {
+        return (length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
     /**
      * Method that either encrypts or decrypts a source file, and stores the result in a 
      * destination file
@@ -0,0 +1,340 @@
+package server_tools;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import file_communication.TransferProgress;
+
+/**
+ * Class that limits the rate at which the server receives the files uploaded (UP) and
+ * sends the files downloaded (DW), with a token bucket for the whole server, one for
+ * each user and one for each workspace, in each direction. A transfer takes the tokens of
+ * a few KiB at a time from the buckets of the server, of its user and of its workspace,
+ * and waits for the bucket furthest in debt. Each bucket serves the tokens in the order
+ * they were asked for, so the transfers that share a bucket take turns and each gets
+ * the same share of it.
+ *
+ * The rate of each active transfer, what is left of it, and the parts of the time it
+ * waited for its buckets, for the network and for the disk (TransferProgress), are
+ * reported every few seconds in which files were transferred, and each transfer is
+ * summed up once it ends
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class BandwidthShaper {
+
+	//default time between two reports of the rates, in seconds
+	public static final long DEFAULT_REPORT_INTERVAL = 10;
+
+	//largest number of bytes taken from the buckets at once, so the transfers take turns often
+	static final int QUANTUM = 16 * 1024;
+
+	//time of tokens a bucket keeps while no transfer uses it, in seconds
+	private static final double BURST = 0.25;
+
+	//directions of the transfers, as seen by the server
+	public static final int RECEIVED = 0;
+	public static final int SENT = 1;
+	private static final String[] DIRECTIONS = { "up", "down" };
+
+	//the limits of each direction
+	private Limits[] limits = new Limits[2];
+
+	//the active transfers
+	private List<Transfer> transfers = new CopyOnWriteArrayList<>();
+
+	//bytes transferred in each direction since the server started
+	private AtomicLong[] totals = { new AtomicLong(), new AtomicLong() };
+
+	//time between two reports, in nanoseconds, 0 if the rates are never reported
+	private long reportInterval;
+	private volatile long lastReport = System.nanoTime();
+	private long[] reportedTotals = new long[2];
+
+	/**
+	 * Constructor. Initializes the limits
+	 *
+	 * @param rates the bytes per second of the server, of each user and of each workspace,
+	 * 		for the files received and for the files sent, 0 if unlimited
+	 * @param reportInterval seconds between two reports of the rates, 0 to never report them
+	 */
+	public BandwidthShaper(long[][] rates, long reportInterval) {
+		for (int direction = RECEIVED; direction <= SENT; direction++)
+			limits[direction] = new Limits(rates[direction][0], rates[direction][1], rates[direction][2]);
+		this.reportInterval = TimeUnit.SECONDS.toNanos(reportInterval);
+	}
+
+	/**
+	 * Method that creates the limits given by the mysharing.rate.up.* (files received) and
+	 * mysharing.rate.down.* (files sent) system properties, in bytes per second for the
+	 * whole server (global), for each user (user) and for each workspace (workspace), and
+	 * reports the rates every mysharing.rate.report seconds
+	 *
+	 * @return the limits
+	 */
+	public static BandwidthShaper fromSystemProperties() {
+		long[][] rates = new long[2][];
+		for (int direction = RECEIVED; direction <= SENT; direction++) {
+			String prefix = "mysharing.rate." + DIRECTIONS[direction] + ".";
+			rates[direction] = new long[] { Long.getLong(prefix + "global", 0), Long.getLong(prefix + "user", 0),
+					Long.getLong(prefix + "workspace", 0) };
+		}
+		return new BandwidthShaper(rates, Long.getLong("mysharing.rate.report", DEFAULT_REPORT_INTERVAL));
+	}
+
+	/**
+	 * Method that starts a transfer, limited from then on by the buckets of its user and
+	 * of its workspace, until it is closed
+	 *
+	 * @param user the user of the transfer
+	 * @param workspace the workspace of the transfer
+	 * @param command the command of the transfer, such as UP or DW
+	 * @return the transfer
+	 */
+	public Transfer start(String user, String workspace, String command) {
+		Transfer transfer = new Transfer(user, workspace, command);
+		transfers.add(transfer);
+		return transfer;
+	}
+
+	/**
+	 * Method that returns the rates of the active transfers since the last report
+	 *
+	 * @return the rates
+	 */
+	public synchronized String getStatistics() {
+		long now = System.nanoTime();
+		double seconds = Math.max(now - lastReport, 1) / 1e9;
+		StringBuilder statistics = new StringBuilder(String.format(Locale.ROOT,
+				"Transferências: %d ativas, recebidos %s, enviados %s", transfers.size(),
+				TransferProgress.formatRate((totals[RECEIVED].get() - reportedTotals[RECEIVED]) / seconds),
+				TransferProgress.formatRate((totals[SENT].get() - reportedTotals[SENT]) / seconds)));
+		Map<String, Long> users = new TreeMap<>();
+		for (Transfer transfer : transfers) {
+			TransferProgress progress = transfer.progress;
+			long bytes = transfer.bytes.get() - transfer.reportedBytes;
+			long waited = transfer.waited.get() - transfer.reportedWaited;
+			long network = progress.getNetworkTime() - transfer.reportedNetwork;
+			long disk = progress.getDiskTime() - transfer.reportedDisk;
+			double elapsed = Math.max(now - Math.max(transfer.started, lastReport), 1) / 1e9;
+			long remaining = progress.getRemaining();
+			statistics.append(String.format(Locale.ROOT, "%n    %s %s %s: %s, %s de %s, faltam %s, %s",
+					transfer.command, transfer.user, transfer.workspace, TransferProgress.formatRate(bytes / elapsed),
+					TransferProgress.formatSize(progress.getBytes()), TransferProgress.formatSize(progress.getSize()),
+					remaining < 0 ? "?" : Math.round(remaining / 1e9) + " s", waits(waited, network, disk, elapsed * 1e9)));
+			users.merge(transfer.user, bytes, Long::sum);
+		}
+		if (users.size() > 1) {
+			for (Map.Entry<String, Long> user : users.entrySet())
+				statistics.append(String.format(Locale.ROOT, "%n    utilizador %s: %s", user.getKey(), TransferProgress.formatRate(user.getValue() / seconds)));
+		}
+		return statistics.toString();
+	}
+
+	/**
+	 * Auxiliary method that reports the rates once every interval, and starts the next one
+	 */
+	private synchronized void report() {
+		long now = System.nanoTime();
+		if (now - lastReport < reportInterval)
+			return;
+		System.out.println(getStatistics());
+		for (Transfer transfer : transfers) {
+			transfer.reportedBytes = transfer.bytes.get();
+			transfer.reportedWaited = transfer.waited.get();
+			transfer.reportedNetwork = transfer.progress.getNetworkTime();
+			transfer.reportedDisk = transfer.progress.getDiskTime();
+		}
+		reportedTotals[RECEIVED] = totals[RECEIVED].get();
+		reportedTotals[SENT] = totals[SENT].get();
+		lastReport = now;
+	}
+
+	/**
+	 * Auxiliary method that formats the parts of a time a transfer waited for its buckets,
+	 * for the network and for the disk. The buckets are waited for while the content is
+	 * read or written, so that time is not the disk's
+	 *
+	 * @param waited time waited for the buckets
+	 * @param network time waited for the network
+	 * @param disk time spent reading or writing the content, with the time waited for the buckets
+	 * @param elapsed the whole time
+	 * @return the parts of the time
+	 */
+	private static String waits(long waited, long network, long disk, double elapsed) {
+		return String.format(Locale.ROOT, "%.0f%% do tempo limitado, %.0f%% à espera da rede, %.0f%% do disco",
+				Math.min(100, waited * 100 / elapsed), Math.min(100, network * 100 / elapsed),
+				Math.min(100, Math.max(0, disk - waited) * 100 / elapsed));
+	}
+
+
+	/**
+	 * A transfer of the files of a command, limited by the buckets of its user and of its workspace
+	 */
+	public class Transfer implements AutoCloseable {
+
+		private String user;
+		private String workspace;
+		private String command;
+		private long started = System.nanoTime();
+		private volatile boolean open = true;
+
+		//bytes transferred and time waited for the buckets, in nanoseconds
+		private AtomicLong bytes = new AtomicLong();
+		private AtomicLong waited = new AtomicLong();
+		//measures the files of the transfer
+		private TransferProgress progress;
+		//the values at the last report
+		private long reportedBytes;
+		private long reportedWaited;
+		private long reportedNetwork;
+		private long reportedDisk;
+
+		private Transfer(String user, String workspace, String command) {
+			this.user = user;
+			this.workspace = workspace;
+			this.command = command;
+			this.progress = new TransferProgress(command + " " + workspace, -1, null);
+		}
+
+		/**
+		 * Method that returns the progress of the transfer, which measures its files
+		 *
+		 * @return the progress
+		 */
+		public TransferProgress getProgress() {
+			return progress;
+		}
+
+		/**
+		 * Method that tells if the transfer is still limited
+		 *
+		 * @return true if it is, false if it was closed
+		 */
+		public boolean isOpen() {
+			return open;
+		}
+
+		/**
+		 * Method that takes the tokens of bytes about to be transferred, and waits until
+		 * the buckets of the transfer have them
+		 *
+		 * @param direction RECEIVED or SENT
+		 * @param length number of bytes, at most QUANTUM
+		 * @throws InterruptedIOException if the thread is interrupted while waiting
+		 */
+		public void acquire(int direction, int length) throws InterruptedIOException {
+			long wait = limits[direction].reserve(user, workspace, length);
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Transferência interrompida");
+				}
+				waited.addAndGet(wait);
+			}
+			bytes.addAndGet(length);
+			totals[direction].addAndGet(length);
+			if (reportInterval > 0 && System.nanoTime() - lastReport >= reportInterval)
+				report();
+		}
+
+		/**
+		 * Method that ends the transfer, and sums it up if the rates are reported
+		 */
+		@Override
+		public void close() {
+			open = false;
+			transfers.remove(this);
+			progress.end();
+			if (reportInterval > 0 && progress.getBytes() > 0) {
+				double elapsed = Math.max(progress.getElapsed(), 1);
+				System.out.println(String.format(Locale.ROOT, "Transferência %s %s %s terminada: %s em %.1f s, média %s, %s",
+						command, user, workspace, TransferProgress.formatSize(progress.getBytes()), elapsed / 1e9,
+						TransferProgress.formatRate(progress.getAverageRate()), waits(waited.get(), progress.getNetworkTime(), progress.getDiskTime(), elapsed)));
+			}
+		}
+	}
+
+	/**
+	 * The buckets of a direction
+	 */
+	private static class Limits {
+
+		private TokenBucket global;
+		private long userRate;
+		private long workspaceRate;
+		private Map<String, TokenBucket> users = new ConcurrentHashMap<>();
+		private Map<String, TokenBucket> workspaces = new ConcurrentHashMap<>();
+
+		Limits(long globalRate, long userRate, long workspaceRate) {
+			this.global = globalRate > 0 ? new TokenBucket(globalRate) : null;
+			this.userRate = userRate;
+			this.workspaceRate = workspaceRate;
+		}
+
+		/**
+		 * Method that takes the tokens of bytes from the buckets of the server, of a user
+		 * and of a workspace
+		 *
+		 * @param user the user
+		 * @param workspace the workspace
+		 * @param length number of bytes
+		 * @return the time to wait until every bucket has the tokens, in nanoseconds
+		 */
+		long reserve(String user, String workspace, int length) {
+			List<TokenBucket> buckets = new ArrayList<>(3);
+			if (global != null)
+				buckets.add(global);
+			if (userRate > 0)
+				buckets.add(users.computeIfAbsent(user, name -> new TokenBucket(userRate)));
+			if (workspaceRate > 0)
+				buckets.add(workspaces.computeIfAbsent(workspace, name -> new TokenBucket(workspaceRate)));
+			long wait = 0;
+			for (TokenBucket bucket : buckets)
+				wait = Math.max(wait, bucket.reserve(length));
+			return wait;
+		}
+	}
+
+	/**
+	 * Bucket that fills with tokens at a fixed rate, up to BURST seconds of them. The
+	 * tokens taken may put it in debt, which the one who took them waits to be paid
+	 */
+	private static class TokenBucket {
+
+		private double rate;
+		private double capacity;
+		private double tokens;
+		private long lastFill = System.nanoTime();
+
+		TokenBucket(long rate) {
+			this.rate = rate;
+			this.capacity = Math.max(rate * BURST, QUANTUM);
+			this.tokens = capacity;
+		}
+
+		/**
+		 * Method that takes tokens from the bucket
+		 *
+		 * @param length number of tokens
+		 * @return the time until the debt of the bucket is paid, in nanoseconds
+		 */
+		synchronized long reserve(int length) {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - lastFill) * rate / 1e9);
+			lastFill = now;
+			tokens -= length;
+			return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+		}
+	}
+}
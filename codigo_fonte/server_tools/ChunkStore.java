@@ -0,0 +1,705 @@
+package server_tools;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import file_communication.BlockDelta;
+import file_communication.BlockDelta.Sums;
+import file_communication.ChunkCompressor;
+import file_communication.ContentChunker;
+import file_communication.ContentChunker.Chunk;
+import file_communication.MessageChannel;
+
+/**
+ * Class that keeps the chunks of the files of a workspace uploaded by their content
+ * (ContentChunker), each chunk stored once however many files have it. Such a file is
+ * kept in its workspace as a manifest with the name and the size of each of its chunks,
+ * and is put together from them when it is downloaded. Every chunk counts the manifests
+ * that reference it, and is removed once none does. The counts are not written anywhere:
+ * they are counted from the manifests when the store of a workspace is first used, so
+ * that they always agree with them.
+ *
+ * A chunk is received into a temporary file and moved into the store once whole, so that
+ * the chunks received before an upload was interrupted are not sent again when it is
+ * repeated. A chunk may also be received as differences from the version of its file the
+ * workspace already has (BlockDelta). The block checksums of a version kept whole, from
+ * before the uploads were cut into chunks, are kept in the store until it changes.
+ * The chunks that no manifest references, and the checksums not used for as long,
+ * are removed when the server starts.
+ *
+ * A file is downloaded from a snapshot taken with the lock of its workspace held, so
+ * that it can be sent after the lock is released. The snapshot counts as one more
+ * reference to the chunks of the file until it is closed
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class ChunkStore {
+
+	//first line of a manifest, and start of the line that follows it if its chunks are compressed
+	private static final String HEADER = "MYSHARING-CHUNKS 1";
+	private static final String CODEC = "codec ";
+
+	//directory of the checksums of the blocks of the files, and ending of their files
+	private static final String SUMS_DIRECTORY = "sums";
+	private static final String SUMS = ".sums";
+
+	//stores of the workspaces already used, by directory
+	private static final Map<String, ChunkStore> stores = new HashMap<>();
+
+	private File directory;
+	//manifests that reference each chunk, and size of each chunk referenced
+	private Map<String, Integer> references = new HashMap<>();
+	private Map<String, Integer> sizes = new HashMap<>();
+	//size of the files kept as manifests, and of the chunks they reference
+	private long logicalBytes = 0;
+	private long storedBytes = 0;
+
+	/**
+	 * Constructor. Initializes an empty store
+	 *
+	 * @param directory directory of the chunks of the workspace
+	 */
+	private ChunkStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Method that returns the store of a workspace, counting the references of its chunks
+	 * from the manifests of the workspace the first time it is used
+	 *
+	 * @param chunksDirectory directory of the chunks of every workspace
+	 * @param workspaceDirectory directory of the workspace
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static ChunkStore of(File chunksDirectory, File workspaceDirectory) throws IOException {
+		File directory = new File(chunksDirectory, workspaceDirectory.getName());
+		String key = directory.getAbsoluteFile().toPath().normalize().toString();
+		synchronized (stores) {
+			ChunkStore store = stores.get(key);
+			if (store == null) {
+				store = new ChunkStore(directory);
+				File[] files = workspaceDirectory.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						if (isManifest(file))
+							store.reference(readManifest(file));
+					}
+				}
+				stores.put(key, store);
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * Method that removes the chunks of every workspace that no manifest references and
+	 * that were not changed for a given time, such as the ones of interrupted uploads
+	 *
+	 * @param chunksDirectory directory of the chunks of every workspace
+	 * @param serverDirectory directory of the workspaces
+	 * @param hours time after which a chunk is removed
+	 * @throws IOException
+	 */
+	public static void removeUnreferenced(File chunksDirectory, File serverDirectory, long hours) throws IOException {
+		File[] workspaces = chunksDirectory.listFiles();
+		if (workspaces == null)
+			return;
+		long cutoff = System.currentTimeMillis() - hours * 3600 * 1000;
+		for (File workspace : workspaces) {
+			ChunkStore store = of(chunksDirectory, new File(serverDirectory, workspace.getName()));
+			synchronized (store) {
+				store.removeOlderThan(workspace, cutoff);
+			}
+		}
+	}
+
+	/**
+	 * Method that tells if a file of a workspace is a manifest
+	 *
+	 * @param file the file
+	 * @return true if it is a manifest, false if it is the encrypted file itself
+	 */
+	public static boolean isManifest(File file) {
+		byte[] header = (HEADER + "\n").getBytes(StandardCharsets.UTF_8);
+		try (InputStream input = new FileInputStream(file)) {
+			return Arrays.equals(input.readNBytes(header.length), header);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Method that reads the chunks of a manifest
+	 *
+	 * @param file the manifest
+	 * @return the chunks, in the order of the file
+	 * @throws IOException if the manifest is not valid
+	 */
+	public static List<Chunk> readManifest(File file) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(reader.readLine()))
+				throw new IOException("Manifesto inválido: " + file.getName());
+			long offset = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (offset == 0 && line.startsWith(CODEC))
+					continue;
+				String[] entry = line.split(" ");
+				try {
+					int size = Integer.parseInt(entry[1]);
+					if (!entry[0].matches("[0-9a-f]{" + 2 * ContentChunker.ID_SIZE + "}") || size <= 0)
+						throw new IOException("Manifesto inválido: " + file.getName());
+					chunks.add(new Chunk(entry[0], offset, size));
+					offset += size;
+				} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					throw new IOException("Manifesto inválido: " + file.getName());
+				}
+			}
+		}
+		if (chunks.isEmpty())
+			throw new IOException("Manifesto inválido: " + file.getName());
+		return chunks;
+	}
+
+	/**
+	 * Method that returns the codec with which the chunks of a file of a workspace were
+	 * compressed (ChunkCompressor)
+	 *
+	 * @param file the file, a manifest or the encrypted file itself
+	 * @return the codec, NONE if they were not compressed
+	 * @throws IOException
+	 */
+	public static String codecOf(File file) throws IOException {
+		if (!isManifest(file))
+			return ChunkCompressor.NONE;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			reader.readLine();
+			String line = reader.readLine();
+			return line != null && line.startsWith(CODEC) ? line.substring(CODEC.length()) : ChunkCompressor.NONE;
+		}
+	}
+
+	/**
+	 * Method that writes a manifest
+	 *
+	 * @param file the manifest
+	 * @param chunks the chunks of the file, in its order
+	 * @param codec the codec with which the chunks were compressed
+	 * @throws IOException
+	 */
+	public static void writeManifest(File file, List<Chunk> chunks, String codec) throws IOException {
+		StringBuilder manifest = new StringBuilder(HEADER + "\n");
+		if (!codec.equals(ChunkCompressor.NONE))
+			manifest.append(CODEC + codec + "\n");
+		for (Chunk chunk : chunks)
+			manifest.append(chunk.getId() + " " + chunk.getSize() + "\n");
+		Files.write(file.toPath(), manifest.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Method that returns which chunks of a file the store does not have, each named once
+	 * even if the file has it more than once
+	 *
+	 * @param chunks the chunks of the file
+	 * @return the positions of the missing chunks in the file
+	 */
+	public BitSet missing(List<Chunk> chunks) {
+		BitSet missing = new BitSet(chunks.size());
+		Set<String> named = new HashSet<>();
+		for (int i = 0; i < chunks.size(); i++) {
+			Chunk chunk = chunks.get(i);
+			if (named.add(chunk.getId()) && chunkFile(chunk.getId()).length() != chunk.getSize())
+				missing.set(i);
+		}
+		return missing;
+	}
+
+	/**
+	 * Method that receives a chunk and stores it, once whole
+	 *
+	 * @param chunk the chunk
+	 * @param channel channel through which the chunk is received
+	 * @throws IOException
+	 * @throws ProtocolException if the chunk does not have the size of the manifest
+	 */
+	public void receive(Chunk chunk, MessageChannel channel) throws IOException {
+		File file = chunkFile(chunk.getId());
+		file.getParentFile().mkdirs();
+		File temporary = File.createTempFile("chunk", ".part", file.getParentFile());
+		try {
+			long received;
+			try (OutputStream output = new FileOutputStream(temporary)) {
+				received = channel.receiveStream(output);
+			}
+			if (received != chunk.getSize())
+				throw new ProtocolException("Bloco com tamanho diferente do anunciado: " + received);
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Method that receives a chunk as differences from a version of its file, and stores
+	 * it once whole if it has the size of the manifest and the hash sent by the client.
+	 * The whole delta is received before the chunk is rebuilt, so that the connection
+	 * stays in step if the chunk is discarded
+	 *
+	 * @param chunk the chunk
+	 * @param channel channel through which the delta is received
+	 * @param sums the checksums of the blocks of the version
+	 * @param version the version, open to be read
+	 * @return the bytes of the delta, or -1 if the chunk was discarded
+	 * @throws IOException
+	 * @throws ProtocolException if the delta is not valid
+	 */
+	public long receiveDelta(Chunk chunk, MessageChannel channel, Sums sums, StoredFile version) throws IOException {
+		byte[] delta = BlockDelta.receiveDelta(channel);
+		File file = chunkFile(chunk.getId());
+		file.getParentFile().mkdirs();
+		File temporary = File.createTempFile("chunk", ".part", file.getParentFile());
+		try {
+			long rebuilt;
+			try (OutputStream output = new FileOutputStream(temporary)) {
+				rebuilt = BlockDelta.apply(delta, sums, version, output);
+			} catch (FileNotFoundException e) {
+				//a chunk of the version was removed with it by another upload
+				return -1;
+			}
+			if (rebuilt != chunk.getSize())
+				return -1;
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return delta.length;
+		}
+		finally {
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Method that opens a file of the workspace to be read at any offset, as it is sent
+	 * to the clients. The chunks of a manifest are the ones it had when it was opened
+	 *
+	 * @param file the file, a manifest or the encrypted file itself
+	 * @return the file, open
+	 * @throws IOException
+	 */
+	public StoredFile openStored(File file) throws IOException {
+		if (isManifest(file))
+			return new StoredFile(readManifest(file), null);
+		return new StoredFile(null, new RandomAccessFile(file, "r"));
+	}
+
+	/**
+	 * Method that returns the checksums of the blocks of the parts of a file of the
+	 * workspace that a new version may have changed. Those of a manifest are its chunks
+	 * that the new version does not have, read when the version is received. Those of the
+	 * encrypted file itself are the whole file, whose checksums are calculated the first
+	 * time and kept in the store with the size and the date of the file, so that they are
+	 * calculated again only once the file changes
+	 *
+	 * @param file the file, a manifest or the encrypted file itself
+	 * @param stored the file, open
+	 * @param chunks the chunks of the new version
+	 * @return the checksums
+	 * @throws IOException
+	 */
+	public Sums sumsOf(File file, StoredFile stored, List<Chunk> chunks) throws IOException {
+		if (stored.chunks != null) {
+			Set<String> kept = new HashSet<>();
+			for (Chunk chunk : chunks)
+				kept.add(chunk.getId());
+			List<long[]> parts = new ArrayList<>();
+			long length = 0;
+			for (Chunk chunk : stored.chunks) {
+				if (kept.add(chunk.getId())) {
+					parts.add(new long[] { chunk.getOffset(), chunk.getSize() });
+					length += chunk.getSize();
+				}
+			}
+			return BlockDelta.sums(stored, parts, BlockDelta.blockSize(length));
+		}
+		File sumsFile = new File(new File(directory, SUMS_DIRECTORY), file.getName() + SUMS);
+		long length = file.length();
+		long lastModified = file.lastModified();
+		if (sumsFile.isFile()) {
+			try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(sumsFile)))) {
+				if (input.readLong() == length && input.readLong() == lastModified) {
+					sumsFile.setLastModified(System.currentTimeMillis());
+					return BlockDelta.fromBytes(input.readAllBytes());
+				}
+			} catch (IOException e) {
+				//the checksums are calculated again
+			}
+		}
+		long size = stored.length();
+		Sums sums = BlockDelta.sums(stored, List.of(new long[] { 0, size }), BlockDelta.blockSize(size));
+		sumsFile.getParentFile().mkdirs();
+		File temporary = File.createTempFile("sums", ".part", sumsFile.getParentFile());
+		try {
+			try (DataOutputStream output = new DataOutputStream(new FileOutputStream(temporary))) {
+				output.writeLong(length);
+				output.writeLong(lastModified);
+				output.write(BlockDelta.toBytes(sums));
+			}
+			Files.move(temporary.toPath(), sumsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			temporary.delete();
+		}
+		return sums;
+	}
+
+	/**
+	 * Method that counts the references of a manifest to its chunks if the store has every
+	 * one of them. Both are done at once, as a snapshot closed without the lock of the
+	 * workspace may remove a chunk in between
+	 *
+	 * @param chunks the chunks of the manifest
+	 * @return true if it has them all and they were counted, false if not
+	 */
+	public synchronized boolean referenceIfPresent(List<Chunk> chunks) {
+		if (!missing(chunks).isEmpty())
+			return false;
+		reference(chunks);
+		return true;
+	}
+
+	/**
+	 * Method that counts the references of a manifest to its chunks
+	 *
+	 * @param chunks the chunks of the manifest
+	 */
+	public synchronized void reference(List<Chunk> chunks) {
+		logicalBytes += ContentChunker.sizeOf(chunks);
+		for (Chunk chunk : chunks) {
+			if (references.merge(chunk.getId(), 1, Integer::sum) == 1) {
+				sizes.put(chunk.getId(), chunk.getSize());
+				storedBytes += chunk.getSize();
+			}
+		}
+	}
+
+	/**
+	 * Method that removes the references of a file of the workspace to its chunks, if it
+	 * is a manifest, before it is removed or replaced. The chunks no longer referenced
+	 * are removed. It must be called with the lock of the workspace held
+	 *
+	 * @param file the file
+	 * @throws IOException
+	 */
+	public synchronized void release(File file) throws IOException {
+		if (!isManifest(file))
+			return;
+		List<Chunk> chunks = readManifest(file);
+		logicalBytes -= ContentChunker.sizeOf(chunks);
+		unreference(chunks);
+	}
+
+	/**
+	 * Auxiliary method that removes one reference to each of the chunks given, removing
+	 * the chunks no longer referenced
+	 *
+	 * @param chunks the chunks
+	 */
+	private synchronized void unreference(List<Chunk> chunks) {
+		for (Chunk chunk : chunks) {
+			Integer left = references.computeIfPresent(chunk.getId(), (id, count) -> count == 1 ? null : count - 1);
+			if (left == null && sizes.containsKey(chunk.getId())) {
+				storedBytes -= sizes.remove(chunk.getId());
+				chunkFile(chunk.getId()).delete();
+			}
+		}
+	}
+
+	/**
+	 * Method that takes a snapshot of a file of the workspace to be sent to the clients.
+	 * It must be called with the lock of the workspace held, and the snapshot is then read
+	 * without it: a file kept whole stays open, and the chunks of a manifest are kept in
+	 * the store, so the snapshot is not changed if the file is replaced or removed
+	 *
+	 * @param file the file, a manifest or the encrypted file itself
+	 * @return the snapshot, to be closed once the file is sent
+	 * @throws IOException
+	 */
+	public synchronized Snapshot snapshot(File file) throws IOException {
+		if (!isManifest(file))
+			return new Snapshot(new FileInputStream(file), file.length(), null);
+		List<Chunk> chunks = readManifest(file);
+		for (Chunk chunk : chunks)
+			references.merge(chunk.getId(), 1, Integer::sum);
+		return new Snapshot(null, ContentChunker.sizeOf(chunks), chunks);
+	}
+
+	/**
+	 * Method that returns the files of the chunks of a manifest
+	 *
+	 * @param chunks the chunks of the manifest
+	 * @return the files of the chunks
+	 */
+	public List<File> chunkFiles(List<Chunk> chunks) {
+		List<File> files = new ArrayList<>();
+		for (Chunk chunk : chunks)
+			files.add(chunkFile(chunk.getId()));
+		return files;
+	}
+
+	/**
+	 * Method that returns how many times larger the files kept as manifests are than the
+	 * chunks stored for them
+	 *
+	 * @return the ratio, 1 if there are no manifests
+	 */
+	public synchronized double getRatio() {
+		return storedBytes == 0 ? 1 : (double) logicalBytes / storedBytes;
+	}
+
+	/**
+	 * Auxiliary method that returns the file of a chunk, in a subdirectory named after
+	 * the start of its name, so that no directory holds too many chunks
+	 *
+	 * @param id the name of the chunk
+	 * @return the file
+	 */
+	private File chunkFile(String id) {
+		return new File(new File(directory, id.substring(0, 2)), id);
+	}
+
+	/**
+	 * Auxiliary method that removes the files of a directory of the store that are not
+	 * referenced chunks and were not changed since a given instant, and the directories
+	 * left empty
+	 *
+	 * @param directory the directory
+	 * @param cutoff the instant, in milliseconds
+	 */
+	private void removeOlderThan(File directory, long cutoff) {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				removeOlderThan(file, cutoff);
+				String[] left = file.list();
+				if (left != null && left.length == 0)
+					file.delete();
+			}
+			else if (file.lastModified() < cutoff && !references.containsKey(file.getName()))
+				file.delete();
+		}
+	}
+
+	/**
+	 * File of the workspace read at any offset, from its chunks if it is a manifest
+	 */
+	public class StoredFile implements BlockDelta.Base, Closeable {
+
+		private List<Chunk> chunks;
+		private RandomAccessFile content;
+		//chunk open, of a manifest
+		private int current = -1;
+
+		StoredFile(List<Chunk> chunks, RandomAccessFile content) {
+			this.chunks = chunks;
+			this.content = content;
+		}
+
+		/**
+		 * Method that returns the size of the file as it is sent to the clients
+		 *
+		 * @return the size of the encrypted file
+		 * @throws IOException
+		 */
+		public long length() throws IOException {
+			return chunks == null ? content.length() : ContentChunker.sizeOf(chunks);
+		}
+
+		@Override
+		public void read(long offset, byte[] buffer, int length) throws IOException {
+			if (chunks == null) {
+				content.seek(offset);
+				content.readFully(buffer, 0, length);
+				return;
+			}
+			int done = 0;
+			while (done < length) {
+				long position = offset + done;
+				int chunk = findChunk(position);
+				if (chunk != current) {
+					close();
+					content = new RandomAccessFile(chunkFile(chunks.get(chunk).getId()), "r");
+					current = chunk;
+				}
+				Chunk open = chunks.get(chunk);
+				int part = (int) Math.min(length - done, open.getOffset() + open.getSize() - position);
+				content.seek(position - open.getOffset());
+				content.readFully(buffer, done, part);
+				done += part;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (content != null)
+				content.close();
+			content = null;
+			current = -1;
+		}
+
+		/**
+		 * Auxiliary method that finds the chunk of the manifest that has a byte of the file
+		 *
+		 * @param position the offset of the byte
+		 * @return the position of the chunk in the manifest
+		 * @throws IOException if the file is shorter
+		 */
+		private int findChunk(long position) throws IOException {
+			int low = 0;
+			int high = chunks.size() - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (chunks.get(middle).getOffset() <= position)
+					low = middle;
+				else
+					high = middle - 1;
+			}
+			Chunk chunk = chunks.get(low);
+			if (position < 0 || position >= chunk.getOffset() + chunk.getSize())
+				throw new IOException("Leitura para lá do fim do ficheiro");
+			return low;
+		}
+	}
+
+	/**
+	 * Snapshot of a file of the workspace, taken to send it to a client
+	 */
+	public class Snapshot implements Closeable {
+
+		//the file kept whole, or else the chunks of the manifest
+		private InputStream whole;
+		private List<Chunk> chunks;
+		private long size;
+
+		Snapshot(InputStream whole, long size, List<Chunk> chunks) {
+			this.whole = whole;
+			this.size = size;
+			this.chunks = chunks;
+		}
+
+		/**
+		 * Method that returns the size of the file as it is sent to the clients
+		 *
+		 * @return the size of the encrypted file
+		 */
+		public long size() {
+			return size;
+		}
+
+		/**
+		 * Method that opens the file from an offset, putting it together from its chunks
+		 * if it is a manifest. It is only opened once
+		 *
+		 * @param offset the offset
+		 * @return stream with the encrypted file from the offset
+		 * @throws IOException
+		 */
+		public InputStream open(long offset) throws IOException {
+			if (whole != null) {
+				whole.skipNBytes(offset);
+				return whole;
+			}
+			int first = 0;
+			while (first < chunks.size() - 1 && chunks.get(first).getOffset() + chunks.get(first).getSize() <= offset)
+				first++;
+			return new ManifestInputStream(chunks.subList(first, chunks.size()).iterator(), offset - chunks.get(first).getOffset());
+		}
+
+		/**
+		 * Method that closes the file, or removes the references of the snapshot to the chunks
+		 */
+		public void close() throws IOException {
+			if (whole != null)
+				whole.close();
+			if (chunks != null) {
+				unreference(chunks);
+				chunks = null;
+			}
+		}
+	}
+
+	/**
+	 * Stream that reads the chunks of a file one after the other, opening each one only
+	 * once the one before it ends
+	 */
+	private class ManifestInputStream extends InputStream {
+
+		private Iterator<Chunk> remaining;
+		private InputStream current;
+		//bytes of the first chunk before the offset
+		private long skip;
+
+		ManifestInputStream(Iterator<Chunk> remaining, long skip) {
+			this.remaining = remaining;
+			this.skip = skip;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (true) {
+				if (current == null) {
+					if (!remaining.hasNext())
+						return -1;
+					current = new FileInputStream(chunkFile(remaining.next().getId()));
+					current.skipNBytes(skip);
+					skip = 0;
+				}
+				int read = current.read(b, off, len);
+				if (read != -1)
+					return read;
+				current.close();
+				current = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (current != null)
+				current.close();
+		}
+	}
+}
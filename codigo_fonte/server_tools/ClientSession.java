@@ -0,0 +1,26 @@
+package server_tools;
+
+/**
+ * Session of a client, independent of the transport that carries it.
+ * The blocking transport drives it from a single thread, while the NIO
+ * transport only runs it when there is data to be processed
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public interface ClientSession {
+
+	/**
+	 * Method that opens the session, preparing the streams and authenticating the client
+	 *
+	 * @return true if the session may continue, false if it must be closed
+	 */
+	boolean open();
+
+	/**
+	 * Method that receives and executes the next action of the client
+	 *
+	 * @return true if the session may continue, false if it must be closed
+	 */
+	boolean processNextAction();
+}
@@ -1,12 +1,12 @@
 package server_tools;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.NoSuchAlgorithmException;
-import sec_addons.*;
+import java.util.List;
 
 /**
  * Class used to write into a text file
@@ -48,62 +48,32 @@ public class FileModifier {
     	writer.close();
     }
     /**
-     * Method that writes a new user into the file 
-     * @param user User to be written
+     * Method that writes new lines at the end of the file, all at once
+     * @param lines the lines to be written
      * @throws IOException 
      */
-    public void writeNewUser(String user, String password) throws IOException {
+    public void appendLines(List<String> lines) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (String line : lines)
+            content.append(line).append('\n');
         FileWriter writer = openWriter();
-        byte[] salt = SaltMaster.giftSalt();
-        String hashedAndSaltedPassword = RealDigester.hashPasswordWithSalt(password, salt);
-        String saltString = RealDigester.encodeSaltIntoString(salt);
-        writer.write(user + ":" + hashedAndSaltedPassword + ":" + saltString + "\n");
+        writer.write(content.toString());
         closeWriter(writer);
     }
 
     /**
-     * Method that writes a new workspace into the file
-     * @param workspace Workspace to be written
-     * @throws IOException 
-     */
-    public void writeNewWorkspace(String workspace, String owner) throws IOException {
-        FileWriter writer = openWriter();
-        writer.write(workspace + ":" + owner + ":" + owner + "\n");
-        closeWriter(writer);
-    }
-    
-    /**
-     * Method that adds a new user into the workspace
+     * Method that replaces the content of the file. The content is written into a
+     * temporary file first, which then takes the place of the file at once, so the
+     * file is never left half written
      * 
-     * @param userToAdd the user to be added
-     * @param workspace workspace which the user will be added
+     * @param content the new content of the file
      * @throws IOException
      */
-    public void writeNewUserIntoWorkspace(String userToAdd, String workspace) throws IOException  {
-        BufferedReader fileReader = new BufferedReader(new FileReader(this.file));
-        StringBuffer inputBuffer = new StringBuffer();
-        String toChange;
-
-        while ((toChange = fileReader.readLine()) != null) {
-            String[] lineToChange = toChange.split(":");
-            if (lineToChange[0].equals(workspace) && !lineToChange[2].contains(userToAdd)) {
-                toChange =  toChange + "," + userToAdd;
-                inputBuffer.append(toChange);
-                inputBuffer.append('\n');
-            }
-            else {
-                inputBuffer.append(toChange);
-                inputBuffer.append('\n');
-            }
-            
-        }
-        fileReader.close();
-
-        FileOutputStream fileOut = new FileOutputStream(this.file);
-        fileOut.write(inputBuffer.toString().getBytes());
+    public void replaceContent(String content) throws IOException {
+        File temporary = new File(this.file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temporary);
+        fileOut.write(content.getBytes());
         fileOut.close();
+        Files.move(temporary.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
 }
-
-
-
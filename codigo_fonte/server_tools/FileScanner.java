@@ -3,11 +3,11 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.Set;
-
-import sec_addons.*;
 
 /**
  * Class used to read a text file
@@ -62,122 +62,37 @@ public class FileScanner {
     }
 
     /**
-     * Method that reads the file, and verifies if a given user was written into the file
-     * @param user the user to be verified
-     * @return the password if the user exists, null if it not
-     * @throws FileNotFoundException 
+     * Method that reads the file of the users, and returns the password of each user
+     * @return a map from each user to its hashed password and salt, separated by ':'
+     * @throws IOException
      */
-    private String checkUserExists(String user) throws IOException {
+    public Map<String, String> readUsers() throws IOException {
         Scanner reader = createReader();
+        Map<String, String> users = new HashMap<>();
         while(reader.hasNextLine()) {
             String line = reader.nextLine();
             String[] userInfo = line.split(":");
-            if (user.equals(userInfo[0])) {
-                closeReader(reader);
-                return (userInfo[1]+":"+userInfo[2]);
-            }
+            if (userInfo.length == 3)
+                users.putIfAbsent(userInfo[0], userInfo[1] + ":" + userInfo[2]);
         }
         closeReader(reader);
-        return null;
-}
-    /**
-     * Method that reads the file, and tries to authenticate the user, by comparing its password to the
-     * one present on the file
-     * @param user the user to be authenticated
-     * @assumes user exists on the file
-     * @return true if the user was successfully authenticated, false if not
-     * @throws IOException 
-     * @throws FileNotFoundException 
-     */
-    public String authenticateUser(String user, String password) throws IOException {
-    	String userPassword = checkUserExists(user); 
-    	if (userPassword == null) {
-    		return "OK-NEW-USER";
-    	}
-        String[] passInFile = userPassword.split(":");
-        String hashedPassword = RealDigester.hashPasswordWithSalt(password, passInFile[1]);
-        if (hashedPassword.equals(passInFile[0])) {
-    	   return "OK-USER";
-        }
-        return "WRONG-PWD";
-    }
-    
-    /**
-     * Method that reads the file and returns the workspaces of the user
-     * 
-     * @param user the user to get the workspaces
-     * @return a set with the user workspaces
-     * @throws IOException
-     */
-    public Set<String> getUserWorkspaces(String user) throws IOException {
-    	Scanner scanner = createReader();
-    	Set<String> workspaceList = new HashSet<>();
-    	
-    	while(scanner.hasNextLine()) {
-    		String[] partitionedLine = scanner.nextLine().split(":");
-    		String[] members = partitionedLine[2].split(",");
-    		for (String member : members) {
-    			if (member.equals(user)) {
-    				workspaceList.add(partitionedLine[0]);
-    				break;
-    			}
-    		}
-    	}
-    	closeReader(scanner);
-    	return workspaceList;
-    }
-    
-    /**
-     * Method that checks if the user is the owner of the workspace
-     * 
-     * @param user the user to check
-     * @param workspace workspace whose owner we want to get
-     * @return NOWS if workspace does not exist. 
-     * 		   OK if user is owner, NOPERM if it is not. 
-     * @throws IOException
-     */
-    protected String checkUserIsOwner(String user, String workspace) throws IOException {
-        Scanner sc = createReader();
-
-        while (sc.hasNextLine()) {
-            String[] workspaceInfo = sc.nextLine().split(":");
-            if (workspaceInfo[0].equals(workspace) && workspaceInfo[1].equals(user)) {
-            	closeReader(sc);
-                return "OK";
-            }
-            else if (workspaceInfo[0].equals(workspace) && !workspaceInfo[1].equals(user)) {
-            	closeReader(sc);
-                return "NOPERM";
-            }
-        }
-        closeReader(sc);
-        return "NOWS";
+        return users;
     }
     
     /**
-     * Method that checks if the user is a member of the workspace
-     * 
-     * @param user the user to be checked
-     * @param workspace workspace whose members we want to check
-     * @return NOWS if workspace does not exist. 
-     * 		   OK if user is member, NOPERM if it is not. 
+     * Method that reads the file of the workspaces, and returns the fields of each workspace
+     * @return for each workspace, its name, its owner and its members, separated by ','
      * @throws IOException
      */
-    protected String checkUserInWorkspace(String user, String workspace) throws IOException {
-    	Scanner sc = createReader();
-
-        while (sc.hasNextLine()) {
-            String[] workspaceInfo = sc.nextLine().split(":");
-            if (workspaceInfo[0].equals(workspace) && workspaceInfo[2].contains(user)) {
-            	closeReader(sc);
-                return "OK";
-            }
-            else if (workspaceInfo[0].equals(workspace) && !workspaceInfo[2].contains(user)) {
-            	closeReader(sc);
-                return "NOPERM";
-            }
+    public List<String[]> readWorkspaces() throws IOException {
+        Scanner reader = createReader();
+        List<String[]> workspaces = new ArrayList<>();
+        while(reader.hasNextLine()) {
+            String[] workspaceInfo = reader.nextLine().split(":");
+            if (workspaceInfo.length == 3)
+                workspaces.add(workspaceInfo);
         }
-        closeReader(sc);
-        return "NOWS";
+        closeReader(reader);
+        return workspaces;
     }
 }
@@ -0,0 +1,271 @@
+package server_tools;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import sec_addons.MACMaster;
+
+/**
+ * Class that writes the changes made to a file of the server in batches. The changes
+ * made at about the same time by different sessions are collected by a thread of their
+ * own, which writes them all at once while holding the lock of the file, then, if asked
+ * to, forces them to the disk, and then updates the MAC of the file a single time. A
+ * change waits for the batch it is in to be written before it returns.
+ *
+ * A batch starts with the first change that arrives and collects the changes that arrive
+ * until a maximum delay has passed. The number of changes of the batches and the time the
+ * changes waited for their batch are reported every minute in which changes were written
+ * @param <T> type of the changes
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class GroupCommit<T> {
+
+	//default maximum time, in milliseconds, that a batch waits for more changes
+	public static final long DEFAULT_MAX_DELAY = 2;
+
+	//maximum number of changes of a batch
+	private static final int MAX_BATCH = 1024;
+
+	//time between two reports of the statistics, in nanoseconds
+	private static final long REPORT_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+	/**
+	 * Code that writes the changes of a batch, called while holding the lock of the file
+	 * @param <T> type of the changes
+	 */
+	public interface Writer<T> {
+
+		/**
+		 * Method that writes the changes of a batch
+		 *
+		 * @param changes the changes, in the order they arrived
+		 * @throws IOException
+		 */
+		void write(List<T> changes) throws IOException;
+	}
+
+	private String name;
+	private Lock lock;
+	private MACMaster macMaster;
+	private File[] files;
+	private Writer<T> writer;
+	private long maxDelay;
+	private boolean fsync;
+
+	//changes waiting for a batch
+	private BlockingQueue<Change<T>> queue = new LinkedBlockingQueue<>();
+
+	//statistics since the last report
+	private long batches = 0;
+	private long changes = 0;
+	private long totalLatency = 0;
+	private long maxLatency = 0;
+	private long lastReport = System.nanoTime();
+
+	/**
+	 * Constructor. Initializes the batches and starts the thread that writes them
+	 *
+	 * @param name name of what is written, used in the reports
+	 * @param lock synchronization lock for the files
+	 * @param macMaster responsible for the MAC of the files
+	 * @param files files written, whose content is covered by the MAC, in that order
+	 * @param writer code that writes the changes of a batch
+	 * @param maxDelay maximum time, in milliseconds, that a batch waits for more changes
+	 * @param fsync true if the files are forced to the disk after each batch
+	 */
+	public GroupCommit(String name, Lock lock, MACMaster macMaster, File[] files, Writer<T> writer, long maxDelay, boolean fsync) {
+		this.name = name;
+		this.lock = lock;
+		this.macMaster = macMaster;
+		this.files = files;
+		this.writer = writer;
+		this.maxDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelay));
+		this.fsync = fsync;
+
+		Thread thread = new Thread(this::run, "mysharing-commit-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Method that creates the batches with the configuration given by the system properties
+	 * mysharing.commit.maxDelay and mysharing.commit.fsync
+	 *
+	 * @param name name of what is written, used in the reports
+	 * @param lock synchronization lock for the files
+	 * @param macMaster responsible for the MAC of the files
+	 * @param files files written, whose content is covered by the MAC, in that order
+	 * @param writer code that writes the changes of a batch
+	 * @param <T> type of the changes
+	 * @return the batches
+	 */
+	public static <T> GroupCommit<T> fromSystemProperties(String name, Lock lock, MACMaster macMaster, File[] files, Writer<T> writer) {
+		return new GroupCommit<>(name, lock, macMaster, files, writer,
+				Long.getLong("mysharing.commit.maxDelay", DEFAULT_MAX_DELAY), Boolean.getBoolean("mysharing.commit.fsync"));
+	}
+
+	/**
+	 * Method that hands a change to the next batch and waits until the batch is written
+	 *
+	 * @param change the change
+	 * @throws IOException if the batch could not be written
+	 */
+	public void commit(T change) throws IOException {
+		Change<T> pending = new Change<>(change);
+		queue.add(pending);
+		try {
+			pending.committed.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Escrita interrompida", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Method that returns the statistics of the batches written since the last report
+	 *
+	 * @return the statistics
+	 */
+	public synchronized String getStatistics() {
+		if (batches == 0)
+			return "Escritas (" + name + "): nenhum lote";
+		return String.format(Locale.ROOT, "Escritas (%s): %d lotes, %.1f alterações por lote, espera média %.2f ms, máxima %.2f ms",
+				name, batches, (double) changes / batches, totalLatency / 1e6 / changes, maxLatency / 1e6);
+	}
+
+	/**
+	 * Auxiliary method executed by the thread that writes the batches
+	 */
+	private void run() {
+		List<Change<T>> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + maxDelay;
+				while (batch.size() < MAX_BATCH) {
+					queue.drainTo(batch, MAX_BATCH - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0 || batch.size() >= MAX_BATCH)
+						break;
+					Change<T> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Auxiliary method that writes a batch and tells its changes the result
+	 *
+	 * @param batch the changes of the batch
+	 */
+	private void write(List<Change<T>> batch) {
+		List<T> contents = new ArrayList<>(batch.size());
+		for (Change<T> change : batch)
+			contents.add(change.content);
+		IOException failure = null;
+		lock.lock();
+		try {
+			try {
+				writer.write(contents);
+				if (fsync)
+					force();
+			} catch (IOException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				failure = new IOException(e);
+			}
+			//even if the batch failed, part of it may have been written
+			macMaster.writeMACIntoFile(files);
+		} catch (IOException e) {
+			failure = failure != null ? failure : e;
+		} catch (NoSuchAlgorithmException e) {
+			failure = new IOException(e);
+		} finally {
+			lock.unlock();
+		}
+
+		long now = System.nanoTime();
+		for (Change<T> change : batch) {
+			if (failure == null)
+				change.committed.complete(null);
+			else
+				change.committed.completeExceptionally(failure);
+		}
+		record(batch, now);
+	}
+
+	/**
+	 * Auxiliary method that forces the files to the disk
+	 *
+	 * @throws IOException
+	 */
+	private void force() throws IOException {
+		for (File file : files) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+		}
+	}
+
+	/**
+	 * Auxiliary method that adds a batch to the statistics, and reports them once a minute
+	 *
+	 * @param batch the changes of the batch
+	 * @param now the time the batch was written
+	 */
+	private synchronized void record(List<Change<T>> batch, long now) {
+		batches++;
+		changes += batch.size();
+		for (Change<T> change : batch) {
+			long latency = now - change.arrival;
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, latency);
+		}
+		if (now - lastReport >= REPORT_INTERVAL) {
+			System.out.println(getStatistics());
+			batches = 0;
+			changes = 0;
+			totalLatency = 0;
+			maxLatency = 0;
+			lastReport = now;
+		}
+	}
+
+	/**
+	 * A change waiting for its batch
+	 */
+	private static class Change<T> {
+
+		private T content;
+		private long arrival = System.nanoTime();
+		private CompletableFuture<Void> committed = new CompletableFuture<>();
+
+		Change(T content) {
+			this.content = content;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package server_tools;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import sec_addons.MACMaster;
+
+/**
+ * Class that checks the integrity of the files of the server in the background. Every
+ * so often, a thread of its own checks the MACs of the files of the users and of the
+ * workspaces, and walks the directory of each workspace, checking that every file has
+ * its signature, that every signature has its file and that every member has its copy
+ * of the key of the workspace. Every file is also read to the end, so that a file that
+ * can no longer be read is found before a client asks for it. The files kept as manifests
+ * have their chunks read instead, and the chunks that are missing are reported.
+ *
+ * The files are read at a limited number of bytes per second, and the locks are only
+ * held to read the metadata and to list a directory, so that the clients are not held
+ * back. The problems found are written into a report, replaced at the end of each check
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class IntegrityScrubber {
+
+	//default time between two checks, in minutes
+	public static final long DEFAULT_INTERVAL = 60;
+
+	//default number of bytes read per second
+	public static final long DEFAULT_RATE = 4L * 1024 * 1024;
+
+	//size of the parts in which the files are read
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	//what is in the directory of a workspace, besides the files
+	private static final String SIGNATURE = ".signed.";
+	private static final String KEY = ".key.";
+
+	private File serverDirectory;
+	private File chunksDirectory;
+	private File reportFile;
+	private UserRegistry userRegistry;
+	private WorkspaceRegistry workspaceRegistry;
+	private LockManager locks;
+	//null if the server does not use a MAC
+	private MACMaster usersMacMaster;
+	private MACMaster workspacesMacMaster;
+	private long interval;
+	private long rate;
+
+	//bytes read during the current check, and when it started
+	private long checkBytes;
+	private long checkStart;
+
+	/**
+	 * Constructor. Initializes the checks, which only start once start is called
+	 *
+	 * @param serverDirectory directory with the files of the server and the workspaces
+	 * @param reportFile file where the problems found are written
+	 * @param userRegistry the users of the server
+	 * @param workspaceRegistry the workspaces of the server
+	 * @param locks synchronization locks of the server
+	 * @param usersMacMaster responsible for the MAC of the users, null if there is no MAC
+	 * @param workspacesMacMaster responsible for the MAC of the workspaces, null if there is no MAC
+	 * @param interval time between two checks, in minutes
+	 * @param rate number of bytes read per second
+	 */
+	public IntegrityScrubber(File serverDirectory, File reportFile, UserRegistry userRegistry, WorkspaceRegistry workspaceRegistry,
+			LockManager locks, MACMaster usersMacMaster, MACMaster workspacesMacMaster, long interval, long rate) {
+		this.serverDirectory = serverDirectory;
+		this.chunksDirectory = new File(serverDirectory, ".chunks");
+		this.reportFile = reportFile;
+		this.userRegistry = userRegistry;
+		this.workspaceRegistry = workspaceRegistry;
+		this.locks = locks;
+		this.usersMacMaster = usersMacMaster;
+		this.workspacesMacMaster = workspacesMacMaster;
+		this.interval = interval;
+		this.rate = Math.max(1, rate);
+	}
+
+	/**
+	 * Method that creates the checks with the time between them and the number of bytes
+	 * read per second given by the mysharing.scrub.interval and mysharing.scrub.rate
+	 * system properties
+	 *
+	 * @param serverDirectory directory with the files of the server and the workspaces
+	 * @param reportFile file where the problems found are written
+	 * @param userRegistry the users of the server
+	 * @param workspaceRegistry the workspaces of the server
+	 * @param locks synchronization locks of the server
+	 * @param usersMacMaster responsible for the MAC of the users, null if there is no MAC
+	 * @param workspacesMacMaster responsible for the MAC of the workspaces, null if there is no MAC
+	 * @return the checks
+	 */
+	public static IntegrityScrubber fromSystemProperties(File serverDirectory, File reportFile, UserRegistry userRegistry,
+			WorkspaceRegistry workspaceRegistry, LockManager locks, MACMaster usersMacMaster, MACMaster workspacesMacMaster) {
+		return new IntegrityScrubber(serverDirectory, reportFile, userRegistry, workspaceRegistry, locks, usersMacMaster,
+				workspacesMacMaster, Long.getLong("mysharing.scrub.interval", DEFAULT_INTERVAL),
+				Long.getLong("mysharing.scrub.rate", DEFAULT_RATE));
+	}
+
+	/**
+	 * Method that starts the thread that runs the checks, the first one after the time
+	 * between two checks. Nothing is started if that time is not positive
+	 */
+	public void start() {
+		if (interval <= 0)
+			return;
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "mysharing-scrubber");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::runCheck, interval, interval, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Method that checks the files of the server once, and writes the problems found into the report
+	 *
+	 * @return the problems found
+	 * @throws InterruptedException
+	 */
+	private List<String> check() throws InterruptedException {
+		checkBytes = 0;
+		checkStart = System.nanoTime();
+		List<String> problems = new ArrayList<>();
+		if (usersMacMaster != null)
+			checkMAC(problems, "utilizadores", usersMacMaster, locks.getUsersLock().readLock(), userRegistry.getFile());
+		if (workspacesMacMaster != null)
+			checkMAC(problems, "workspaces", workspacesMacMaster, locks.getWorkspacesLock().readLock(), workspaceRegistry.getFiles());
+		int files = 0;
+		for (String workspace : workspaceRegistry.getWorkspaces())
+			files += checkWorkspace(problems, workspace);
+
+		StringBuilder report = new StringBuilder();
+		report.append("Verificação de " + LocalDateTime.now().withNano(0) + ": " + files + " ficheiros, " + checkBytes
+				+ " bytes lidos, " + problems.size() + " problemas\n");
+		for (String problem : problems)
+			report.append(problem + "\n");
+		try {
+			new FileModifier(reportFile).replaceContent(report.toString());
+		} catch (IOException | NoSuchAlgorithmException e) {
+			System.err.println("Não foi possível escrever o relatório de integridade: " + e.getMessage());
+		}
+		if (!problems.isEmpty())
+			System.err.println("Verificação de integridade: " + problems.size() + " problemas, ver " + reportFile.getPath());
+		return problems;
+	}
+
+	/**
+	 * Auxiliary method executed by the thread of the checks
+	 */
+	private void runCheck() {
+		try {
+			check();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			System.err.println("Erro na verificação de integridade: " + e);
+		}
+	}
+
+	/**
+	 * Auxiliary method that checks the content of some files against their MAC, reading
+	 * them whole even if they did not change since they were last checked. If they do not
+	 * match, the checks made before each command are told to read them again
+	 *
+	 * @param problems the problems found
+	 * @param name name of the files, used in the report
+	 * @param macMaster responsible for the MAC of the files
+	 * @param lock lock that keeps the files from being changed while they are read
+	 * @param dataFiles the files
+	 * @throws InterruptedException
+	 */
+	private void checkMAC(List<String> problems, String name, MACMaster macMaster, Lock lock, File... dataFiles) throws InterruptedException {
+		long bytes = 0;
+		lock.lock();
+		try {
+			for (File dataFile : dataFiles)
+				bytes += dataFile.length();
+			if (!macMaster.getMACFromFiles(dataFiles).equals(macMaster.getExistingMAC())) {
+				problems.add("MAC dos " + name + " não corresponde aos ficheiros");
+				macMaster.invalidate();
+			}
+		} catch (IOException | NoSuchAlgorithmException e) {
+			problems.add("Não foi possível verificar o MAC dos " + name + ": " + e.getMessage());
+		}
+		finally {
+			lock.unlock();
+		}
+		throttle(bytes);
+	}
+
+	/**
+	 * Auxiliary method that checks the directory of a workspace, and reads its files
+	 *
+	 * @param problems the problems found
+	 * @param workspace the workspace
+	 * @return the number of files read
+	 * @throws InterruptedException
+	 */
+	private int checkWorkspace(List<String> problems, String workspace) throws InterruptedException {
+		File directory = new File(serverDirectory, workspace);
+		File[] contents;
+		Lock workspaceLock = locks.getWorkspaceLock(workspace).readLock();
+		workspaceLock.lock();
+		try {
+			contents = directory.listFiles();
+		}
+		finally {
+			workspaceLock.unlock();
+		}
+		if (contents == null) {
+			problems.add(workspace + ": diretoria do workspace não existe");
+			return 0;
+		}
+
+		Set<String> names = new HashSet<>();
+		for (File file : contents)
+			names.add(file.getName());
+		Set<String> members = workspaceRegistry.getMembers(workspace);
+		for (String member : members) {
+			if (!names.contains(workspace + KEY + member))
+				problems.add(workspace + ": falta a chave do membro " + member);
+		}
+		Set<String> signed = new HashSet<>();
+		for (String name : names) {
+			int signature = name.lastIndexOf(SIGNATURE);
+			if (signature < 0)
+				continue;
+			String file = name.substring(0, signature);
+			String signer = name.substring(signature + SIGNATURE.length());
+			signed.add(file);
+			if (!names.contains(file))
+				problems.add(workspace + ": assinatura " + name + " sem o seu ficheiro");
+			if (!members.contains(signer))
+				problems.add(workspace + ": assinatura " + name + " de quem não é membro");
+		}
+		for (String name : names) {
+			if (!name.contains(SIGNATURE) && !name.startsWith(workspace + KEY) && !signed.contains(name))
+				problems.add(workspace + ": ficheiro " + name + " sem assinatura");
+		}
+
+		int read = 0;
+		for (File file : contents) {
+			if (!file.isFile())
+				continue;
+			try {
+				if (ChunkStore.isManifest(file))
+					readChunks(problems, workspace, file);
+				else
+					readWhole(file);
+				read++;
+			} catch (NoSuchFileException e) {
+				//removed by a client since the directory was listed
+			} catch (IOException e) {
+				problems.add(workspace + ": não foi possível ler " + file.getName() + ": " + e.getMessage());
+			}
+		}
+		return read;
+	}
+
+	/**
+	 * Auxiliary method that reads the chunks of a file kept as a manifest
+	 *
+	 * @param problems the problems found
+	 * @param workspace the workspace
+	 * @param manifest the manifest
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void readChunks(List<String> problems, String workspace, File manifest) throws IOException, InterruptedException {
+		ChunkStore store = ChunkStore.of(chunksDirectory, manifest.getParentFile());
+		for (File chunk : store.chunkFiles(ChunkStore.readManifest(manifest))) {
+			try {
+				readWhole(chunk);
+			} catch (NoSuchFileException e) {
+				//the chunks of a file removed by a client since the directory was listed are removed with it
+				if (manifest.exists())
+					problems.add(workspace + ": falta o bloco " + chunk.getName() + " de " + manifest.getName());
+			}
+		}
+	}
+
+	/**
+	 * Auxiliary method that reads a file to its end, at the number of bytes per second of the checks
+	 *
+	 * @param file the file
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void readWhole(File file) throws IOException, InterruptedException {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int read;
+			while ((read = in.read(chunk)) != -1)
+				throttle(read);
+		}
+	}
+
+	/**
+	 * Auxiliary method that counts bytes read and, if they were read faster than the
+	 * number of bytes per second of the checks, waits until they were not
+	 *
+	 * @param bytes the bytes read
+	 * @throws InterruptedException
+	 */
+	private void throttle(long bytes) throws InterruptedException {
+		checkBytes += bytes;
+		long due = checkStart + (long) (checkBytes * 1e9 / rate);
+		long wait = due - System.nanoTime();
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}
+}
@@ -0,0 +1,79 @@
+package server_tools;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Class that holds the synchronization locks of the server. The files of the users
+ * and of the workspaces, and their MACs, have a lock each. The files inside the
+ * workspaces are locked by workspace, so that commands on different workspaces do
+ * not wait for each other. The workspaces share a fixed number of locks, chosen by
+ * the name of the workspace, so that the memory used does not grow with the number
+ * of workspaces. Every lock is shared by the commands that only read, and exclusive
+ * for the commands that change what it protects
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class LockManager {
+
+	//default number of locks shared by the workspaces
+	public static final int DEFAULT_STRIPES = 64;
+
+	//locks for the 'server_users.txt' and 'server_workspaces.txt' files and their MACs
+	private ReadWriteLock usersLock = new ReentrantReadWriteLock();
+	private ReadWriteLock workspacesLock = new ReentrantReadWriteLock();
+
+	//locks for the files inside the workspaces
+	private ReadWriteLock[] workspaceLocks;
+
+	/**
+	 * Constructor. Initializes the locks
+	 *
+	 * @param stripes number of locks shared by the workspaces
+	 */
+	public LockManager(int stripes) {
+		workspaceLocks = new ReadWriteLock[Math.max(1, stripes)];
+		for (int i = 0; i < workspaceLocks.length; i++)
+			workspaceLocks[i] = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Method that creates the locks with the number of locks shared by the workspaces
+	 * given by the mysharing.locks.stripes system property
+	 *
+	 * @return the locks
+	 */
+	public static LockManager fromSystemProperties() {
+		return new LockManager(Integer.getInteger("mysharing.locks.stripes", DEFAULT_STRIPES));
+	}
+
+	/**
+	 * Method that returns the lock for the file of the users and its MAC
+	 *
+	 * @return the lock
+	 */
+	public ReadWriteLock getUsersLock() {
+		return usersLock;
+	}
+
+	/**
+	 * Method that returns the lock for the file of the workspaces and its MAC
+	 *
+	 * @return the lock
+	 */
+	public ReadWriteLock getWorkspacesLock() {
+		return workspacesLock;
+	}
+
+	/**
+	 * Method that returns the lock for the files inside a workspace
+	 *
+	 * @param workspace the workspace
+	 * @return the lock, which may be shared with other workspaces
+	 */
+	public ReadWriteLock getWorkspaceLock(String workspace) {
+		int hash = workspace.hashCode();
+		hash ^= hash >>> 16;
+		return workspaceLocks[(hash & 0x7FFFFFFF) % workspaceLocks.length];
+	}
+}
@@ -0,0 +1,352 @@
+package server_tools;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class that stores the users of the server in a binary file, mapped into memory. The
+ * file is a hash table of fixed size records, one per user, found by the hash of the
+ * name of the user, so that a user is looked up by reading its record where it is,
+ * without reading the rest of the file or keeping the users in the heap.
+ *
+ * The file starts with a header (magic number, size of the records, number of records
+ * and number of users), followed by the records. Each record has its state, the name of
+ * the user and the hashed password and salt of the user, each preceded by its length.
+ * When more than half of the records are used, the users are moved into a file with
+ * twice the records. The parts of the file written where they are, records and header,
+ * are kept until they are taken, so that the MAC of the file hashes only them again
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class MappedUserStore {
+
+	//identifies the files of this store
+	private static final int MAGIC = 0x4D535553;
+
+	//layout of the header
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE_OFFSET = 4;
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int COUNT_OFFSET = 12;
+
+	//layout of a record
+	private static final int RECORD_SIZE = 128;
+	private static final int STATE_OFFSET = 0;
+	private static final int NAME_OFFSET = 1;
+	private static final int MAX_NAME = 45;
+	private static final int ENTRY_OFFSET = 47;
+	private static final int MAX_ENTRY = 80;
+
+	//states of a record
+	private static final byte FREE = 0;
+	private static final byte USED = 1;
+
+	//number of records of a new store
+	private static final int INITIAL_CAPACITY = 1024;
+
+	//file of the store and its mapping into memory
+	private File file;
+	private MappedByteBuffer records;
+	private int capacity;
+	private int count;
+
+	//parts of the file written since they were last taken, each with its position and size
+	private List<long[]> changes = new ArrayList<>();
+
+	/**
+	 * Constructor. Maps the file of the store into memory
+	 *
+	 * @param file the file of the store
+	 * @throws IOException if the file is not a store of users
+	 */
+	private MappedUserStore(File file) throws IOException {
+		this.file = file;
+		map();
+	}
+
+	/**
+	 * Method that opens the store in the given file, creating it if it does not exist
+	 *
+	 * @param file the file of the store
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static MappedUserStore open(File file) throws IOException {
+		if (!file.exists())
+			create(file, INITIAL_CAPACITY);
+		return new MappedUserStore(file);
+	}
+
+	/**
+	 * Method that creates a store with the users of the text file of the users,
+	 * replacing the store that may exist in the given file
+	 *
+	 * @param usersFile the text file of the users
+	 * @param file the file of the store
+	 * @return the store
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static MappedUserStore migrate(File usersFile, File file) throws IOException, NoSuchAlgorithmException {
+		Map<String, String> users = new FileScanner(usersFile).readUsers();
+		File temporary = new File(file.getPath() + ".tmp");
+		int capacity = INITIAL_CAPACITY;
+		while (users.size() * 2 > capacity)
+			capacity *= 2;
+		create(temporary, capacity);
+		MappedUserStore store = new MappedUserStore(temporary);
+		for (Map.Entry<String, String> user : users.entrySet())
+			store.add(user.getKey(), user.getValue());
+		store.records.force();
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		store.file = file;
+		return store;
+	}
+
+	/**
+	 * Method that returns the hashed password and salt of a user
+	 *
+	 * @param user the user
+	 * @return the hashed password and the salt, separated by ':', null if the user does not exist
+	 */
+	public synchronized String get(String user) {
+		byte[] name = user.getBytes(StandardCharsets.UTF_8);
+		if (name.length > MAX_NAME)
+			return null;
+		int record = find(name);
+		if (records.get(position(record) + STATE_OFFSET) == FREE)
+			return null;
+		return readField(position(record) + ENTRY_OFFSET);
+	}
+
+	/**
+	 * Method that adds a user to the store
+	 *
+	 * @param user the user
+	 * @param entry the hashed password and the salt of the user, separated by ':'
+	 * @return true if the user was added, false if it already existed
+	 * @throws IOException if the user or the entry do not fit in a record
+	 */
+	public synchronized boolean add(String user, String entry) throws IOException {
+		if (!fits(user, entry))
+			throw new IOException("Utilizador demasiado longo para o ficheiro binário: " + user);
+		byte[] name = user.getBytes(StandardCharsets.UTF_8);
+		byte[] value = entry.getBytes(StandardCharsets.UTF_8);
+		if ((count + 1) * 2 > capacity)
+			grow();
+		int record = find(name);
+		int position = position(record);
+		if (records.get(position + STATE_OFFSET) == USED)
+			return false;
+		writeField(position + NAME_OFFSET, name);
+		writeField(position + ENTRY_OFFSET, value);
+		records.put(position + STATE_OFFSET, USED);
+		count++;
+		records.putInt(COUNT_OFFSET, count);
+		changes.add(new long[] { position, RECORD_SIZE });
+		changes.add(new long[] { 0, HEADER_SIZE });
+		return true;
+	}
+
+	/**
+	 * Method that returns the position of the record of a user in the file
+	 *
+	 * @param user the user
+	 * @return the position of the record, -1 if the user does not exist
+	 */
+	public synchronized long positionOf(String user) {
+		byte[] name = user.getBytes(StandardCharsets.UTF_8);
+		if (name.length > MAX_NAME)
+			return -1;
+		int record = find(name);
+		if (records.get(position(record) + STATE_OFFSET) == FREE)
+			return -1;
+		return position(record);
+	}
+
+	/**
+	 * Method that returns the size of the records of the store
+	 *
+	 * @return the size of a record, in bytes
+	 */
+	public int getRecordSize() {
+		return RECORD_SIZE;
+	}
+
+	/**
+	 * Method that returns the parts of the file written where they are since this method
+	 * was last called. When the file is replaced by a bigger one, nothing is returned for it
+	 *
+	 * @return the parts of the file, each with its position and its size
+	 */
+	public synchronized List<long[]> takeChanges() {
+		List<long[]> taken = changes;
+		changes = new ArrayList<>();
+		return taken;
+	}
+
+	/**
+	 * Method that checks if a user fits in a record
+	 *
+	 * @param user the user
+	 * @param entry the hashed password and the salt of the user, separated by ':'
+	 * @return true if both fit in a record
+	 */
+	public static boolean fits(String user, String entry) {
+		return user.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME
+				&& entry.getBytes(StandardCharsets.UTF_8).length <= MAX_ENTRY;
+	}
+
+	/**
+	 * Method that returns the file of the store
+	 *
+	 * @return the file of the store
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Auxiliary method that finds the record of a user, or the free record where it
+	 * would be written
+	 *
+	 * @param name the name of the user, in bytes
+	 * @return the number of the record
+	 */
+	private int find(byte[] name) {
+		int record = (hash(name) & 0x7FFFFFFF) % capacity;
+		while (records.get(position(record) + STATE_OFFSET) == USED && !nameEquals(position(record) + NAME_OFFSET, name))
+			record = (record + 1) % capacity;
+		return record;
+	}
+
+	/**
+	 * Auxiliary method that compares the name of a record, where it is, with a given name
+	 *
+	 * @param offset position of the name of the record
+	 * @param name the name, in bytes
+	 * @return true if they are equal
+	 */
+	private boolean nameEquals(int offset, byte[] name) {
+		if ((records.get(offset) & 0xFF) != name.length)
+			return false;
+		for (int i = 0; i < name.length; i++) {
+			if (records.get(offset + 1 + i) != name[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Auxiliary method that moves the users into a file with twice the records,
+	 * which then takes the place of the file of the store
+	 *
+	 * @throws IOException
+	 */
+	private void grow() throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		create(temporary, capacity * 2);
+		MappedUserStore bigger = new MappedUserStore(temporary);
+		for (int record = 0; record < capacity; record++) {
+			int position = position(record);
+			if (records.get(position + STATE_OFFSET) == USED)
+				bigger.add(readField(position + NAME_OFFSET), readField(position + ENTRY_OFFSET));
+		}
+		bigger.records.force();
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		map();
+		changes.clear();
+	}
+
+	/**
+	 * Auxiliary method that maps the file of the store into memory
+	 *
+	 * @throws IOException if the file is not a store of users
+	 */
+	private void map() throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			records = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		}
+		if (records.capacity() < HEADER_SIZE || records.getInt(0) != MAGIC || records.getInt(RECORD_SIZE_OFFSET) != RECORD_SIZE)
+			throw new IOException("O ficheiro " + file + " não é um ficheiro binário de utilizadores");
+		capacity = records.getInt(CAPACITY_OFFSET);
+		count = records.getInt(COUNT_OFFSET);
+		if (records.capacity() != HEADER_SIZE + (long) capacity * RECORD_SIZE)
+			throw new IOException("O ficheiro " + file + " está incompleto");
+	}
+
+	/**
+	 * Auxiliary method that creates an empty store
+	 *
+	 * @param file the file of the store
+	 * @param capacity the number of records
+	 * @throws IOException
+	 */
+	private static void create(File file, int capacity) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+			header.putInt(0, MAGIC);
+			header.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+			header.putInt(CAPACITY_OFFSET, capacity);
+			header.putInt(COUNT_OFFSET, 0);
+			header.force();
+		}
+	}
+
+	/**
+	 * Auxiliary method that reads a field of a record
+	 *
+	 * @param offset position of the field
+	 * @return the field
+	 */
+	private String readField(int offset) {
+		byte[] field = new byte[records.get(offset) & 0xFF];
+		records.get(offset + 1, field);
+		return new String(field, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Auxiliary method that writes a field of a record
+	 *
+	 * @param offset position of the field
+	 * @param field the field
+	 */
+	private void writeField(int offset, byte[] field) {
+		records.put(offset, (byte) field.length);
+		records.put(offset + 1, field);
+	}
+
+	/**
+	 * Auxiliary method that returns the position of a record in the file
+	 *
+	 * @param record the number of the record
+	 * @return its position
+	 */
+	private static int position(int record) {
+		return HEADER_SIZE + record * RECORD_SIZE;
+	}
+
+	/**
+	 * Auxiliary method that calculates the hash of a name
+	 *
+	 * @param name the name, in bytes
+	 * @return the hash
+	 */
+	private static int hash(byte[] name) {
+		int hash = 0x811C9DC5;
+		for (byte b : name)
+			hash = (hash ^ (b & 0xFF)) * 0x01000193;
+		return hash;
+	}
+}
@@ -0,0 +1,151 @@
+package server_tools;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Class that keeps the log of the changes made to the workspaces since the last
+ * snapshot of the file of the workspaces. Each change is appended as a line with
+ * its fields and their checksum, so that a change costs the same no matter how many
+ * workspaces exist, and a line left incomplete by a failure of the server is detected
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class MembershipLog {
+
+	//kinds of change written into the log
+	public static final String CREATE = "CREATE";
+	public static final String ADD = "ADD";
+
+	//file of the log
+	private File file;
+
+	//number of changes in the log
+	private int size;
+
+	/**
+	 * Constructor. Initializes the log, dropping the end of its last line if the
+	 * server failed while writing it
+	 *
+	 * @param file the file of the log
+	 * @throws IOException
+	 */
+	public MembershipLog(File file) throws IOException {
+		this.file = file;
+		file.createNewFile();
+		dropIncompleteLine();
+		this.size = readChanges().size();
+	}
+
+	/**
+	 * Method that reads the changes written into the log, in the order they were made.
+	 * A line whose checksum does not match is ignored
+	 *
+	 * @return for each change, its kind, its workspace and its user
+	 * @throws IOException
+	 */
+	public List<String[]> readChanges() throws IOException {
+		List<String[]> changes = new ArrayList<>();
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			int separator = line.lastIndexOf(':');
+			String[] change = separator < 0 ? null : line.substring(0, separator).split(":");
+			if (change == null || change.length != 3 || !line.substring(separator + 1).equals(checksum(line.substring(0, separator)))) {
+				System.err.println("Linha corrompida ignorada no log dos workspaces: " + line);
+				continue;
+			}
+			changes.add(change);
+		}
+		return changes;
+	}
+
+	/**
+	 * Method that appends changes into the log, all at once
+	 *
+	 * @param changes for each change, its kind (CREATE or ADD), the workspace changed
+	 * and the owner of the workspace created or the user added
+	 * @throws IOException
+	 */
+	public void append(List<String[]> changes) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (String[] fields : changes) {
+			String change = fields[0] + ":" + fields[1] + ":" + fields[2];
+			lines.append(change + ":" + checksum(change) + "\n");
+		}
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		finally {
+			out.close();
+		}
+		size += changes.size();
+	}
+
+	/**
+	 * Method that empties the log, once its changes are in a snapshot
+	 *
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		new FileOutputStream(file).close();
+		size = 0;
+	}
+
+	/**
+	 * Method that returns the number of changes in the log
+	 *
+	 * @return the number of changes in the log
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Method that returns the file of the log
+	 *
+	 * @return the file of the log
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Auxiliary method that cuts the log after its last complete line
+	 *
+	 * @throws IOException
+	 */
+	private void dropIncompleteLine() throws IOException {
+		try (RandomAccessFile log = new RandomAccessFile(file, "rw")) {
+			long end = log.length();
+			while (end > 0) {
+				log.seek(end - 1);
+				if (log.read() == '\n')
+					break;
+				end--;
+			}
+			if (end != log.length()) {
+				System.err.println("Alteração incompleta descartada do log dos workspaces");
+				log.setLength(end);
+			}
+		}
+	}
+
+	/**
+	 * Auxiliary method that calculates the checksum of a change
+	 *
+	 * @param change the fields of the change, separated by ':'
+	 * @return the checksum, in hexadecimal
+	 */
+	private static String checksum(String change) {
+		CRC32 crc = new CRC32();
+		crc.update(change.getBytes(StandardCharsets.UTF_8));
+		return Long.toHexString(crc.getValue());
+	}
+}
@@ -0,0 +1,687 @@
+package server_tools;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+/**
+ * Transport of the server based on non-blocking channels and SSLEngine.
+ * A few event loops read and write the connections of every client, and a session
+ * only occupies a worker of the SessionExecutor while it has an action to process.
+ * The bytes exchanged are the same as in the blocking transport, so the clients
+ * do not notice the difference
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class NioSessionServer {
+
+	//maximum number of plaintext bytes buffered in each direction of a connection
+	private static final int MAX_BUFFERED = 1 << 20;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	//milliseconds a connection that was not admitted is kept open after BUSY is sent
+	private static final long BUSY_LINGER = 1000;
+
+	private ServerSocketChannel serverChannel;
+	private SSLContext sslContext;
+	private EventLoop[] loops;
+	private int nextLoop = 0;
+
+	//runs the work of the sessions and limits how many are active
+	private SessionExecutor sessions;
+
+	//creates the session of each new connection from its streams
+	private BiFunction<InputStream, OutputStream, ClientSession> sessionFactory;
+
+	/**
+	 * Constructor. Opens the server channel and starts the event loops
+	 *
+	 * @param port port that the server listens to
+	 * @param loopCount number of event loops
+	 * @param sessions executor that runs the work of the sessions
+	 * @param sessionFactory creates the session of a connection from its streams
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public NioSessionServer(int port, int loopCount, SessionExecutor sessions,
+	BiFunction<InputStream, OutputStream, ClientSession> sessionFactory) throws IOException, NoSuchAlgorithmException {
+		this.sslContext = SSLContext.getDefault();
+		this.sessions = sessions;
+		this.sessionFactory = sessionFactory;
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+
+		loops = new EventLoop[loopCount];
+		for (int i = 0; i < loopCount; i++) {
+			loops[i] = new EventLoop();
+			Thread loopThread = new Thread(loops[i], "nio-loop-" + i);
+			loopThread.setDaemon(true);
+			loopThread.start();
+		}
+	}
+
+	/**
+	 * Method that accepts connections until the server is closed, handing
+	 * each one to an event loop once the SessionExecutor admits or refuses it.
+	 * It never waits for a place, so the connections that arrive while others
+	 * wait are still accepted
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		while (serverChannel.isOpen()) {
+			SocketChannel channel = serverChannel.accept();
+			channel.configureBlocking(false);
+			SSLEngine engine = sslContext.createSSLEngine();
+			engine.setUseClientMode(false);
+			engine.setNeedClientAuth(true);
+
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			Connection connection = new Connection(channel, engine, loop);
+			sessions.admit(() -> connection.start(true), () -> {
+				System.out.println("Ligação recusada: limite de sessões atingido");
+				connection.start(false);
+			});
+		}
+	}
+
+	/**
+	 * Method that stops accepting connections
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		serverChannel.close();
+	}
+
+	/**
+	 * Thread that waits for events on a set of connections and handles them
+	 */
+	private class EventLoop implements Runnable {
+
+		private Selector selector;
+
+		//work handed to this loop by other threads
+		private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		//work to be run at a given time, only used by the thread of this loop
+		private PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Method called on the thread of this loop that runs a task once a delay passes
+		 *
+		 * @param task the task to be run
+		 * @param delay the delay, in milliseconds
+		 */
+		void schedule(Runnable task, long delay) {
+			timers.add(new Timer(System.currentTimeMillis() + delay, task));
+		}
+
+		/**
+		 * Method that runs a task on the thread of this loop
+		 *
+		 * @param task the task to be run
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					Timer next = timers.peek();
+					if (next == null)
+						selector.select();
+					else
+						selector.select(Math.max(next.time - System.currentTimeMillis(), 1));
+					Runnable task;
+					while ((task = tasks.poll()) != null)
+						task.run();
+					long now = System.currentTimeMillis();
+					while (!timers.isEmpty() && timers.peek().time <= now)
+						timers.poll().task.run();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						((Connection) key.attachment()).onReady(key);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Task of an event loop to be run at a given time
+	 */
+	private static class Timer implements Comparable<Timer> {
+
+		private long time;
+		private Runnable task;
+
+		Timer(long time, Runnable task) {
+			this.time = time;
+			this.task = task;
+		}
+
+		public int compareTo(Timer other) {
+			return Long.compare(time, other.time);
+		}
+	}
+
+	/**
+	 * Connection of a client. The TLS records are only handled by the thread of its
+	 * event loop, while the session reads and writes plaintext through blocking streams
+	 */
+	private class Connection {
+
+		private SocketChannel channel;
+		private SSLEngine engine;
+		private EventLoop loop;
+		private SelectionKey key;
+
+		//encrypted bytes received and to be sent, and decrypted bytes received
+		private ByteBuffer netIn;
+		private ByteBuffer netOut;
+		private ByteBuffer appIn;
+
+		private ConnectionInput input = new ConnectionInput();
+		private ConnectionOutput output = new ConnectionOutput();
+		private ClientSession session;
+		private boolean admitted;
+
+		//state of the session, guarded by the connection
+		private boolean opened = false;
+		private boolean running = false;
+		private boolean finished = false;
+
+		//state of the channel, only used by the event loop
+		private boolean closing = false;
+		private boolean closed = false;
+		private AtomicBoolean serviceRequested = new AtomicBoolean();
+
+		Connection(SocketChannel channel, SSLEngine engine, EventLoop loop) {
+			this.channel = channel;
+			this.engine = engine;
+			this.loop = loop;
+			netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+			netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+			appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		}
+
+		/**
+		 * Method that hands the connection to its event loop once it was admitted or refused
+		 *
+		 * @param admitted true if it was given the place of a session, false if it is refused
+		 */
+		void start(boolean admitted) {
+			this.admitted = admitted;
+			loop.execute(this::register);
+		}
+
+		/**
+		 * Auxiliary method that registers the connection in its event loop and opens the
+		 * session, which immediately writes the header of its streams. A connection that
+		 * was refused is closed once the client had a moment to read BUSY
+		 */
+		private void register() {
+			try {
+				key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+				engine.beginHandshake();
+				session = admitted ? sessionFactory.apply(input, output) : new BusySession(input, output);
+				if (!admitted)
+					loop.schedule(this::closeNow, BUSY_LINGER);
+				dispatch();
+			} catch (IOException e) {
+				closeNow();
+			}
+		}
+
+		/**
+		 * Method called by the event loop when the channel is ready
+		 *
+		 * @param readyKey key of the channel
+		 */
+		void onReady(SelectionKey readyKey) {
+			try {
+				if (readyKey.isValid() && readyKey.isReadable())
+					onReadable();
+				if (readyKey.isValid() && readyKey.isWritable())
+					flushOutbound();
+				afterIO();
+			} catch (IOException e) {
+				closeNow();
+			}
+		}
+
+		/**
+		 * Method that asks the event loop to flush the output and update the interests
+		 * of the channel. Several requests made before the loop handles them count as one
+		 */
+		void requestService() {
+			if (serviceRequested.compareAndSet(false, true)) {
+				loop.execute(() -> {
+					serviceRequested.set(false);
+					try {
+						flushOutbound();
+						afterIO();
+					} catch (IOException e) {
+						closeNow();
+					}
+				});
+			}
+		}
+
+		/**
+		 * Auxiliary method that reads the encrypted bytes available and decrypts them
+		 *
+		 * @throws IOException
+		 */
+		private void onReadable() throws IOException {
+			int read = channel.read(netIn);
+			if (read == -1) {
+				inboundEnded();
+				return;
+			}
+			netIn.flip();
+			try {
+				while (netIn.hasRemaining()) {
+					SSLEngineResult result = engine.unwrap(netIn, appIn);
+					if (appIn.position() > 0) {
+						appIn.flip();
+						input.append(appIn);
+						appIn.clear();
+					}
+
+					SSLEngineResult.Status status = result.getStatus();
+					if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+						break;
+					if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						appIn = ByteBuffer.allocate(appIn.capacity() * 2);
+						continue;
+					}
+					if (status == SSLEngineResult.Status.CLOSED) {
+						inboundEnded();
+						break;
+					}
+
+					HandshakeStatus handshake = result.getHandshakeStatus();
+					if (handshake == HandshakeStatus.NEED_TASK)
+						runDelegatedTasks();
+					if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+						flushOutbound();
+					if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+						break;
+				}
+			}
+			finally {
+				netIn.compact();
+			}
+			flushOutbound();
+			if (input.available() > 0)
+				dispatch();
+		}
+
+		/**
+		 * Auxiliary method that encrypts and writes the pending output, including
+		 * the messages of the handshake, for as long as the channel accepts them
+		 *
+		 * @throws IOException
+		 */
+		private void flushOutbound() throws IOException {
+			if (closed)
+				return;
+			while (writeNetOut()) {
+				HandshakeStatus handshake = engine.getHandshakeStatus();
+				if (handshake == HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+					continue;
+				}
+				ByteBuffer pending = output.peek();
+				boolean handshaking = handshake != HandshakeStatus.NOT_HANDSHAKING;
+				if (handshake != HandshakeStatus.NEED_WRAP && (pending == null || handshaking))
+					break;
+
+				SSLEngineResult result = engine.wrap(pending == null ? EMPTY : pending, netOut);
+				if (pending != null && !pending.hasRemaining())
+					output.consumed();
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0)
+					netOut = ByteBuffer.allocate(netOut.capacity() * 2);
+				else if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+					break;
+				else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+					break;
+			}
+			writeNetOut();
+		}
+
+		/**
+		 * Auxiliary method that writes the encrypted bytes waiting to be sent
+		 *
+		 * @return true if all of them were written
+		 * @throws IOException
+		 */
+		private boolean writeNetOut() throws IOException {
+			netOut.flip();
+			channel.write(netOut);
+			boolean written = !netOut.hasRemaining();
+			netOut.compact();
+			return written;
+		}
+
+		/**
+		 * Auxiliary method that runs the slow tasks of the handshake
+		 */
+		private void runDelegatedTasks() {
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null)
+				task.run();
+		}
+
+		/**
+		 * Auxiliary method that finishes a close requested by the session once the output
+		 * has been sent, and updates the events the loop waits for. The reading stops
+		 * while the session has too much input to process
+		 */
+		private void afterIO() {
+			if (closed)
+				return;
+			if (closing && (input.isEnded() || (output.peek() == null && netOut.position() == 0))) {
+				closeNow();
+				return;
+			}
+			int interests = 0;
+			if (!input.isFull() && !input.isEnded())
+				interests |= SelectionKey.OP_READ;
+			if (netOut.position() > 0)
+				interests |= SelectionKey.OP_WRITE;
+			key.interestOps(interests);
+		}
+
+		/**
+		 * Auxiliary method called when the client stops sending data
+		 */
+		private void inboundEnded() {
+			input.end();
+			dispatch();
+		}
+
+		/**
+		 * Method that runs the session on a worker, unless it is already running
+		 * or has finished
+		 */
+		void dispatch() {
+			synchronized (this) {
+				if (running || finished)
+					return;
+				running = true;
+			}
+			sessions.execute(this::runSession);
+		}
+
+		/**
+		 * Auxiliary method that opens the session or makes it process its next action.
+		 * It is dispatched again if more input arrived in the meantime
+		 */
+		private void runSession() {
+			boolean alive = false;
+			try {
+				if (!opened) {
+					opened = true;
+					alive = session.open();
+				}
+				else
+					alive = session.processNextAction();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+
+			synchronized (this) {
+				running = false;
+				finished = !alive;
+			}
+			if (!alive) {
+				loop.execute(() -> {
+					closing = true;
+					afterIO();
+				});
+			}
+			else if (input.available() > 0 || input.isEnded())
+				dispatch();
+		}
+
+		/**
+		 * Auxiliary method that closes the channel, warning the client if possible,
+		 * and frees the place of the session
+		 */
+		private void closeNow() {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				engine.closeOutbound();
+				engine.wrap(EMPTY, netOut);
+				writeNetOut();
+			} catch (IOException e) {
+				//the client may already be gone
+			}
+			try {
+				if (key != null)
+					key.cancel();
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			input.end();
+			output.shutdown();
+			synchronized (this) {
+				finished = true;
+			}
+			if (admitted)
+				sessions.release();
+		}
+
+		/**
+		 * Stream with the plaintext received from the client, filled by the event loop
+		 */
+		private class ConnectionInput extends InputStream {
+
+			private Deque<byte[]> chunks = new ArrayDeque<>();
+			private int offset = 0;
+			private int buffered = 0;
+			private boolean ended = false;
+
+			synchronized void append(ByteBuffer data) {
+				byte[] chunk = new byte[data.remaining()];
+				data.get(chunk);
+				chunks.add(chunk);
+				buffered += chunk.length;
+				notifyAll();
+			}
+
+			synchronized void end() {
+				ended = true;
+				notifyAll();
+			}
+
+			synchronized boolean isEnded() {
+				return ended;
+			}
+
+			synchronized boolean isFull() {
+				return buffered >= MAX_BUFFERED;
+			}
+
+			@Override
+			public synchronized int available() {
+				return buffered;
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				boolean wasFull;
+				int copied = 0;
+				synchronized (this) {
+					while (buffered == 0 && !ended) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+					}
+					if (buffered == 0)
+						return -1;
+
+					wasFull = buffered >= MAX_BUFFERED;
+					while (copied < len && !chunks.isEmpty()) {
+						byte[] head = chunks.peek();
+						int length = Math.min(len - copied, head.length - offset);
+						System.arraycopy(head, offset, b, off + copied, length);
+						copied += length;
+						offset += length;
+						if (offset == head.length) {
+							chunks.poll();
+							offset = 0;
+						}
+					}
+					buffered -= copied;
+				}
+				if (wasFull && !isFull())
+					requestService();
+				return copied;
+			}
+		}
+
+		/**
+		 * Stream with the plaintext to be sent to the client, emptied by the event loop.
+		 * A session that writes faster than the client reads is made to wait
+		 */
+		private class ConnectionOutput extends OutputStream {
+
+			private Deque<ByteBuffer> pending = new ArrayDeque<>();
+			private int buffered = 0;
+			private boolean shutdown = false;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return;
+				synchronized (this) {
+					while (buffered >= MAX_BUFFERED && !shutdown) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+					}
+					if (shutdown)
+						throw new IOException("Ligação com o cliente fechada");
+					pending.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+					buffered += len;
+				}
+				requestService();
+			}
+
+			synchronized ByteBuffer peek() {
+				return pending.peek();
+			}
+
+			synchronized void consumed() {
+				buffered -= pending.poll().capacity();
+				notifyAll();
+			}
+
+			synchronized void shutdown() {
+				shutdown = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Session of a connection that was not admitted. It tells the client that the
+	 * server is busy and discards what the client sends, without waiting for more,
+	 * until the client disconnects or the connection is closed after BUSY_LINGER
+	 */
+	private static class BusySession implements ClientSession {
+
+		private InputStream input;
+		private OutputStream output;
+
+		BusySession(InputStream input, OutputStream output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		public boolean open() {
+			try {
+				ObjectOutputStream out = new ObjectOutputStream(output);
+				out.writeObject(SessionExecutor.BUSY_STATUS);
+				out.flush();
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		public boolean processNextAction() {
+			try {
+				byte[] discarded = new byte[1024];
+				if (input.available() == 0)
+					return input.read(discarded) != -1;
+				while (input.available() > 0)
+					input.read(discarded);
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+	}
+}
@@ -1,10 +1,14 @@
 package server_tools;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -13,13 +17,22 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 
-import file_communication.FileTransferer;
+import file_communication.BlockDelta;
+import file_communication.BlockDelta.Sums;
+import file_communication.ChunkCompressor;
+import file_communication.Command;
+import file_communication.ContentChunker;
+import file_communication.ContentChunker.Chunk;
+import file_communication.MessageChannel;
 import sec_addons.*;
 
 /**
@@ -32,23 +45,19 @@ public class ServerCommandHandler extends Thread{
 
 	//paths that lead to the files used by the server
 	private final String SERVER_PATH = "./server_files/";
-	private final String SERVER_USERS_PATH = "./server_files/server_users.txt";
-	private final String SERVER_WORKSPACES_PATH = "./server_files/server_workspaces.txt";
+	private final String SERVER_STAGING_PATH = "./server_files/.staging/";
+	private final String SERVER_CHUNKS_PATH = "./server_files/.chunks/";
 
-	//a writer and a reader for each of those files
-    private FileModifier usersFileModifier;
-    private FileScanner usersFileReader;
-    private FileModifier workspacesFileModifier;
-    private FileScanner workspacesFileReader;
+	//the users and the workspaces of the server
+    private UserRegistry userRegistry;
+    private WorkspaceRegistry workspaceRegistry;
 
-	//gateways for the server's communication with the clients
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+	//gateway for the server's communication with the client, whose files are limited by the shaper
+    private ShapedChannel channel;
+    private BandwidthShaper shaper;
     
     //Synchronization locks
-	private Object usersLock;
-	private Object workspacesLock;
-	private Object fileLock;
+	private LockManager locks;
 	
 	//Current logged user
 	private String loggedUser; 
@@ -63,25 +72,21 @@ public class ServerCommandHandler extends Thread{
 	/**
 	 * Constructor. Initializes the handler.
 	 * 
-	 * @param input input stream to receive requests
-	 * @param output output stream to send messages
-	 * @param usersLock synchronization lock for the 'server_users.txt' file
-	 * @param workspacesLock synchronization lock for the 'server_workspaces.txt' file
-	 * @param fileLock synchronization lock for files in workspaces
+	 * @param channel channel to receive requests and send messages
+	 * @param userRegistry the users of the server
+	 * @param workspaceRegistry the workspaces of the server
+	 * @param locks synchronization locks for the server files and the files in workspaces
+	 * @param shaper limits the rate of the files sent and received
 	 * @throws NoSuchAlgorithmException
 	 */
-    public ServerCommandHandler(ObjectInputStream input, ObjectOutputStream output, Object usersLock, Object workspacesLock, Object fileLock,
-	MACMaster usersMacMaster, MACMaster workspacesMacMaster, boolean usesMac) throws NoSuchAlgorithmException {
-		usersFileModifier = new FileModifier(new File(SERVER_USERS_PATH));
-    	usersFileReader = new FileScanner(new File (SERVER_USERS_PATH));
-    	workspacesFileModifier = new FileModifier(new File(SERVER_WORKSPACES_PATH));
-    	workspacesFileReader = new FileScanner(new File(SERVER_WORKSPACES_PATH));
+    public ServerCommandHandler(MessageChannel channel, UserRegistry userRegistry, WorkspaceRegistry workspaceRegistry, LockManager locks,
+	BandwidthShaper shaper, MACMaster usersMacMaster, MACMaster workspacesMacMaster, boolean usesMac) throws NoSuchAlgorithmException {
+    	this.userRegistry = userRegistry;
+    	this.workspaceRegistry = workspaceRegistry;
 
-    	this.output = output;
-    	this.input = input;
-    	this.usersLock = usersLock;
-    	this.workspacesLock = workspacesLock;
-    	this.fileLock = fileLock;
+    	this.channel = new ShapedChannel(channel, shaper);
+    	this.shaper = shaper;
+    	this.locks = locks;
 
 		this.usersMacMaster = usersMacMaster;
 		this.workspacesMacMaster = workspacesMacMaster;
@@ -89,9 +94,28 @@ public class ServerCommandHandler extends Thread{
     }
     
     /**
-     * Method that receives the action and processes the request
+     * Method that creates a handler for the same session that answers through another
+     * channel, used to execute the requests that run at the same time as others
      * 
-     * @param action action to be received
+     * @param requestChannel the channel of the request
+     * @return the handler
+     */
+    public ServerCommandHandler forChannel(MessageChannel requestChannel) {
+    	try {
+    		ServerCommandHandler handler = new ServerCommandHandler(requestChannel, userRegistry, workspaceRegistry, locks,
+    				shaper, usersMacMaster, workspacesMacMaster, usesMac);
+    		handler.loggedUser = loggedUser;
+    		return handler;
+    	} catch (NoSuchAlgorithmException e) {
+    		//the algorithms were already available when this handler was created
+    		throw new IllegalStateException(e);
+    	}
+    }
+    
+    /**
+     * Method that receives the command and processes the request
+     * 
+     * @param command command to be processed
      * @throws IOException
      * @throws ClassNotFoundException
      * @throws NoSuchAlgorithmException 
@@ -102,32 +126,44 @@ public class ServerCommandHandler extends Thread{
      * @throws InvalidKeyException 
      * @throws UnrecoverableKeyException 
      */
-	public void executeAction(String action) throws IOException, ClassNotFoundException, NoSuchAlgorithmException, InvalidKeyException,
+	public void executeAction(Command command) throws IOException, ClassNotFoundException, NoSuchAlgorithmException, InvalidKeyException,
 	 InvalidKeySpecException, KeyStoreException, CertificateException, NoSuchPaddingException, UnrecoverableKeyException {
-		String[] partitionedAction = action.split(" ");
-        String actionHead = partitionedAction[0];
-
-    	switch (actionHead) {
+    	switch (command.getName()) {
             case "CREATE":
-        		insertWorkspace(partitionedAction[1], partitionedAction[2]);
+        		insertWorkspace(command.getField(0), command.getField(1));
         		break;
             case "ADD":
-            	addUserIntoWorkspace(partitionedAction[1], partitionedAction[2]);
+            	addUserIntoWorkspace(command.getField(0), command.getField(1));
             	break;
             case "UP":
-            	receiveFiles(partitionedAction[1], partitionedAction[2]);
+            	BandwidthShaper.Transfer upload = channel.startTransfer(loggedUser, command.getField(0), "UP");
+            	try {
+            		receiveFiles(command.getField(0), command.getFieldsFrom(1));
+            	}
+            	finally {
+            		upload.close();
+            	}
             	break;
             case "DW":
-            	sendFiles(partitionedAction[1], partitionedAction[2]);
+            	BandwidthShaper.Transfer download = channel.startTransfer(loggedUser, command.getField(0), "DW");
+            	try {
+            		sendFiles(command.getField(0), command.getFieldsFrom(1));
+            	}
+            	finally {
+            		download.close();
+            	}
             	break;
             case "RM":
-            	deleteFiles(partitionedAction[1], partitionedAction[2]);
+            	deleteFiles(command.getField(0), command.getFieldsFrom(1));
                 break;
             case "LW":
             	sendListWorkspaces();
                 break;
             case "LS":
-            	sendListFiles(partitionedAction[1]);
+            	sendListFiles(command.getField(0));
+                break;
+            case "OFFSET":
+            	sendUploadOffset(command.getField(0), command.getField(1));
                 break;
     	}
 	}
@@ -151,20 +187,21 @@ public class ServerCommandHandler extends Thread{
 		if (!verifyMAC()) {
 			System.exit(-1);
 		} 
-		String code = usersFileReader.authenticateUser(user, password);
+		String code = userRegistry.authenticateUser(user, password);
+
+		if (code.equals("OK-NEW-USER") && !userRegistry.addUser(user, password)) {
+			//another session registered the same user first, and its registration ended
+			code = userRegistry.authenticateUser(user, password);
+			if (code.equals("OK-NEW-USER"))
+				throw new IOException("O registo do utilizador " + user + " falhou noutra sessão");
+		}
 
 		if (code.equals("OK-NEW-USER")) {
 			this.loggedUser = user;
-			synchronized(usersLock){
-				usersFileModifier.writeNewUser(user, password);
-				usersMacMaster.writeMACIntoFile(new File(SERVER_USERS_PATH));
-			}
 			String defaultWorkspacePath = SERVER_PATH + "workspace" + user;
 			File newWorkspace = new File(defaultWorkspacePath);
 			newWorkspace.mkdir();
-			synchronized(workspacesLock) {
-				generateSecureWorkspace(password, "workspace" + user, defaultWorkspacePath);
-			}
+			generateSecureWorkspace(password, "workspace" + user, defaultWorkspacePath);
 			sendMessage(code);
 		}
 		else if(code.equals("WRONG-PWD")) {
@@ -173,7 +210,7 @@ public class ServerCommandHandler extends Thread{
 			
 			while(code.equals("WRONG-PWD")){
 				newPassword = receiveFromClient();
-				code = usersFileReader.authenticateUser(user, newPassword);
+				code = userRegistry.authenticateUser(user, newPassword);
 				sendMessage(code);
 			}
 		}
@@ -190,7 +227,7 @@ public class ServerCommandHandler extends Thread{
 	 */
     private void sendMessage(String msg) {
     	try{
-    		output.writeObject(msg);
+    		channel.sendMessage(msg);
     	}
     	catch(IOException e) {
     		e.printStackTrace();
@@ -205,8 +242,8 @@ public class ServerCommandHandler extends Thread{
 	private String receiveFromClient() {
 		String fromClient = null;
 		try {
-			fromClient = (String) input.readObject();
-		} catch (ClassNotFoundException | IOException e) {
+			fromClient = channel.receiveMessage();
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		return fromClient;
@@ -214,7 +251,8 @@ public class ServerCommandHandler extends Thread{
 
 	/**
 	 * Method that verifies the integrity of the server files before those
-	 * are accessed
+	 * are accessed. The files are only read again if they changed since their
+	 * integrity was last verified
 	 * @return true if the integrity has been verified, false if not
 	 * @throws UnsupportedEncodingException
 	 * @throws IllegalStateException
@@ -223,9 +261,20 @@ public class ServerCommandHandler extends Thread{
 	 */
 	private boolean verifyMAC() throws UnsupportedEncodingException, IllegalStateException, NoSuchAlgorithmException, IOException {
 		if (usesMac) {
-			if (usersMacMaster.getMACFromData(Files.readAllBytes(new File (SERVER_USERS_PATH).toPath())).equals(usersMacMaster.getExistingMAC()) &&
-			workspacesMacMaster.getMACFromData(Files.readAllBytes(new File (SERVER_WORKSPACES_PATH).toPath())).equals(workspacesMacMaster.getExistingMAC())) {
-				return true;
+			//the locks keep a file from being read between its update and the update of its MAC
+			Lock usersLock = locks.getUsersLock().readLock();
+			Lock workspacesLock = locks.getWorkspacesLock().readLock();
+			usersLock.lock();
+			workspacesLock.lock();
+			try {
+				if (usersMacMaster.verifyFiles(userRegistry.getFile()) &&
+				workspacesMacMaster.verifyFiles(workspaceRegistry.getFiles())) {
+					return true;
+				}
+			}
+			finally {
+				workspacesLock.unlock();
+				usersLock.unlock();
 			}
 			System.out.println("File integrity not verified. Terminating the system..");
 			return false;
@@ -236,7 +285,9 @@ public class ServerCommandHandler extends Thread{
 
 	/**
      * Auxiliary method that creates everything necessary for a new,
-	 * secure workspace. It also writes into the server files
+	 * secure workspace. It also writes into the server files.
+	 * The key is derived while holding only the lock of the new workspace, and the
+	 * workspace is written into the server files once its key exists
      * 
      * @ensures the directory is created and the text files are updated
      * @throws IOException
@@ -245,13 +296,19 @@ public class ServerCommandHandler extends Thread{
 	private void generateSecureWorkspace(String password, String workspaceName, String workspacePath) throws NoSuchAlgorithmException, 
 	InvalidKeySpecException, KeyStoreException, CertificateException, IOException, InvalidKeyException, NoSuchPaddingException {
 
-		workspacesFileModifier.writeNewWorkspace(workspaceName, loggedUser);
-		workspacesMacMaster.writeMACIntoFile(new File(SERVER_WORKSPACES_PATH));
+		Lock workspaceLock = locks.getWorkspaceLock(workspaceName).writeLock();
+		workspaceLock.lock();
+		try {
+			SecretKey workspaceKey = PasswordBaseEncryptor.encryptWithPassword(password);
+			PublicKey userPublicKey = KeyStoreLoader.getPublicKey(KeyStoreLoader.loadKeyStore(KeyStoreLoader.SERVER_TRUSTSTORE_PATH,
+			KeyStoreLoader.SERVER_KEYSTORE_PASSWORD), loggedUser);
+			AsymmetricCipher.createWorkspaceEncryptedFile(workspacePath + "/", workspaceName, loggedUser, workspaceKey, userPublicKey);
+		}
+		finally {
+			workspaceLock.unlock();
+		}
 
-		SecretKey workspaceKey = PasswordBaseEncryptor.encryptWithPassword(password);
-		PublicKey userPublicKey = KeyStoreLoader.getPublicKey(KeyStoreLoader.loadKeyStore(KeyStoreLoader.SERVER_TRUSTSTORE_PATH,
-		KeyStoreLoader.SERVER_KEYSTORE_PASSWORD), loggedUser);
-		AsymmetricCipher.createWorkspaceEncryptedFile(workspacePath + "/", workspaceName, loggedUser, workspaceKey, userPublicKey);
+		workspaceRegistry.addWorkspace(workspaceName, loggedUser);
 	}
     
     /**
@@ -275,9 +332,7 @@ public class ServerCommandHandler extends Thread{
 			return;
 		}
 		if (newWorkspace.mkdir()) {
-			synchronized(workspacesLock){
-				generateSecureWorkspace(password, workspace, SERVER_PATH + workspace);
-			}
+			generateSecureWorkspace(password, workspace, SERVER_PATH + workspace);
 			sendMessage("OK");
 			return;
 		}
@@ -303,24 +358,21 @@ public class ServerCommandHandler extends Thread{
     KeyStoreException, CertificateException, UnrecoverableKeyException, InvalidKeyException, NoSuchPaddingException, ClassNotFoundException {
 		if (!verifyMAC())
 			System.exit(-1); 
-		if (workspacesFileReader.getUserWorkspaces(user).isEmpty()) {
+		if (workspaceRegistry.getUserWorkspaces(user).isEmpty()) {
 			sendMessage("NOUSER");
 			return;
 		}
 		if (!verifyMAC())
 			System.exit(-1); 
-		String permission = workspacesFileReader.checkUserIsOwner(this.loggedUser, workspace);
+		String permission = workspaceRegistry.checkUserIsOwner(this.loggedUser, workspace);
 		sendMessage(permission);
 
 		if (!permission.equals("OK"))
 			return;
 		
-		FileTransferer.sendFile(SERVER_PATH + workspace + "/" + workspace + ".key." + loggedUser, output);
-		FileTransferer.receiveFile(SERVER_PATH + workspace + "/" + workspace + ".key." + user, input);
-		synchronized(workspacesLock) {
-            workspacesFileModifier.writeNewUserIntoWorkspace(user, workspace);
-			workspacesMacMaster.writeMACIntoFile(new File(SERVER_WORKSPACES_PATH));
-		}
+		channel.sendFile(SERVER_PATH + workspace + "/" + workspace + ".key." + loggedUser);
+		channel.receiveFile(SERVER_PATH + workspace + "/" + workspace + ".key." + user);
+		workspaceRegistry.addMember(user, workspace);
     }
     
     /**
@@ -334,36 +386,274 @@ public class ServerCommandHandler extends Thread{
      * @throws NoSuchAlgorithmException 
      * @throws IllegalStateException 
      */
-    private void receiveFiles(String workspace, String files) throws IOException, ClassNotFoundException, 
+    private void receiveFiles(String workspace, String[] files) throws IOException, ClassNotFoundException, 
 	IllegalStateException, NoSuchAlgorithmException {
 		if (!verifyMAC()) {
 			System.exit(-1); 
 		}
-        String permission = workspacesFileReader.checkUserInWorkspace(loggedUser, workspace);
+        String permission = workspaceRegistry.checkUserInWorkspace(loggedUser, workspace);
 		sendMessage(permission);
         if (!permission.equals("OK"))
             return;
         
-        FileTransferer.sendFile(SERVER_PATH + workspace + "/" + workspace + ".key." + loggedUser, output);
-        String[] singularFiles = files.split(",");
-        for (String file : singularFiles) {
+        channel.sendFile(SERVER_PATH + workspace + "/" + workspace + ".key." + loggedUser);
+        for (String file : files) {
         	if (file.contains("/")) {
         		sendMessage(file.substring(1) + ": Não existe");
         		continue;
         	}
-        	File receivedFile = null;
-        	synchronized(fileLock) {
-				if (new File(SERVER_PATH + workspace + "/" + file).exists()) {
-					File signatureFile = filterSignature(file, new File(SERVER_PATH + workspace).listFiles());
-					signatureFile.delete();
-				}
-        		receivedFile = FileTransferer.receiveFile(SERVER_PATH + workspace + "/" + file, input);
-				FileTransferer.receiveFile(SERVER_PATH + workspace + "/" + file + ".signed." + loggedUser, input);
-    		}
-            sendMessage(receivedFile.getName() + ": OK");
+        	if (channel.isDeduplicated())
+        		sendMessage(receiveChunkedFile(workspace, file));
+        	else if (channel.isResumable())
+        		sendMessage(receiveResumableFile(workspace, file));
+        	else
+        		sendMessage(receiveWholeFile(workspace, file));
         }
     }
     
+    /**
+     * Auxiliary method that receives a file and its signature whole, and publishes them
+     * 
+     * @param workspace workspace that receives the file
+     * @param file name of the file
+     * @return the reply to the client
+     * @throws IOException
+     */
+    private String receiveWholeFile(String workspace, String file) throws IOException {
+    	File stagedFile = createStagingFile();
+    	File stagedSignature = createStagingFile();
+    	try {
+    		//the transfer happens outside the lock, so that uploads of other
+    		//files and other clients are not held back by this one
+    		channel.receiveFile(stagedFile.getPath());
+    		channel.receiveFile(stagedSignature.getPath());
+    		if (!publish(workspace, file, stagedFile, stagedSignature))
+    			return file + ": Faltam blocos do ficheiro, tente de novo";
+    	}
+    	finally {
+    		stagedFile.delete();
+    		stagedSignature.delete();
+    	}
+    	return file + ": OK";
+    }
+    
+    /**
+     * Auxiliary method that receives a file that may resume an interrupted upload. The
+     * client announces the offset from which it sends the file and the size of the file,
+     * sends the rest of the file and the hash of the whole file, and then the signature.
+     * The bytes received are kept if the connection ends, and the file is only published
+     * once its hash matches the one of the client
+     * 
+     * @param workspace workspace that receives the file
+     * @param file name of the file
+     * @return the reply to the client
+     * @throws IOException
+     */
+    private String receiveResumableFile(String workspace, String file) throws IOException {
+    	String[] announced = channel.receiveMessage().split(" ");
+    	long offset;
+    	long size;
+    	try {
+    		offset = Long.parseLong(announced[0]);
+    		size = Long.parseLong(announced[1]);
+    	} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+    		throw new ProtocolException("Envio anunciado de forma inválida");
+    	}
+    	
+    	StagedUpload upload = StagedUpload.of(new File(SERVER_STAGING_PATH), workspace, loggedUser, file);
+    	boolean claimed = upload.claim();
+    	File stagedSignature = createStagingFile();
+    	try {
+    		boolean accepted = claimed && upload.resumeFrom(offset, size);
+    		if (accepted)
+    			upload.receive(channel);
+    		else
+    			channel.receiveStream(OutputStream.nullOutputStream());
+    		String clientDigest = channel.receiveMessage();
+    		channel.receiveFile(stagedSignature.getPath());
+    		
+    		if (!claimed)
+    			return file + ": Já está a ser enviado por outra ligação";
+    		if (!accepted)
+    			return file + ": Não é possível retomar o envio a partir de " + offset + ", tente de novo";
+    		if (!upload.matches(clientDigest)) {
+    			upload.remove();
+    			return file + ": Corrompido durante o envio, tente de novo";
+    		}
+    		boolean published = publish(workspace, file, upload.getFile(), stagedSignature);
+    		upload.remove();
+    		return file + (published ? ": OK" : ": Faltam blocos do ficheiro, tente de novo");
+    	}
+    	finally {
+    		stagedSignature.delete();
+    		if (claimed)
+    			upload.release();
+    	}
+    }
+    
+    /**
+     * Auxiliary method that receives a file cut into chunks by its content. The client
+     * sends the manifest of the file, is told which chunks the workspace does not have,
+     * and sends only those, each one stored as soon as it is whole, and then the signature.
+     * Since version 6 the client is also sent the block checksums of the file it replaces,
+     * and sends the missing chunks as differences from it. Since version 7 the client names
+     * the codec of the chunks before the manifest. The file is kept in the workspace as its
+     * manifest
+     * 
+     * @param workspace workspace that receives the file
+     * @param file name of the file
+     * @return the reply to the client, with the bytes that were not sent
+     * @throws IOException
+     */
+    private String receiveChunkedFile(String workspace, String file) throws IOException {
+    	String codec = ChunkCompressor.NONE;
+    	if (channel.isCompressed()) {
+    		codec = channel.receiveMessage();
+    		if (!ChunkCompressor.isCodec(codec))
+    			throw new ProtocolException("Codec desconhecido: " + codec);
+    	}
+    	List<Chunk> chunks = ContentChunker.receiveManifest(channel, !codec.equals(ChunkCompressor.NONE));
+    	ChunkStore store = ChunkStore.of(new File(SERVER_CHUNKS_PATH), new File(SERVER_PATH + workspace));
+    	BitSet missing = store.missing(chunks);
+    	ContentChunker.sendMissing(channel, missing);
+    	long sent = 0;
+    	boolean corrupted = false;
+    	if (channel.isDeltaEncoded()) {
+    		File previousFile = new File(SERVER_PATH + workspace + "/" + file);
+    		ChunkStore.StoredFile previous = null;
+    		Sums sums = BlockDelta.NONE;
+    		try {
+    			if (!missing.isEmpty() && previousFile.isFile()) {
+    				try {
+    					previous = store.openStored(previousFile);
+    					sums = store.sumsOf(previousFile, previous, chunks);
+    				} catch (FileNotFoundException e) {
+    					//the file was removed by another client, and the chunks are sent whole
+    				}
+    			}
+    			BlockDelta.sendSums(channel, sums);
+    			for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+    				//without blocks to refer to, the chunks are sent whole
+    				if (sums.getBlocks() == 0) {
+    					store.receive(chunks.get(i), channel);
+    					sent += chunks.get(i).getSize();
+    					continue;
+    				}
+    				long delta = store.receiveDelta(chunks.get(i), channel, sums, previous);
+    				corrupted |= delta < 0;
+    				sent += Math.max(delta, 0);
+    			}
+    		}
+    		finally {
+    			if (previous != null)
+    				previous.close();
+    		}
+    	}
+    	else {
+    		for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+    			store.receive(chunks.get(i), channel);
+    			sent += chunks.get(i).getSize();
+    		}
+    	}
+    	
+    	File stagedManifest = createStagingFile();
+    	File stagedSignature = createStagingFile();
+    	try {
+    		channel.receiveFile(stagedSignature.getPath());
+    		if (corrupted)
+    			return file + ": Corrompido durante o envio, tente de novo";
+    		ChunkStore.writeManifest(stagedManifest, chunks, codec);
+    		if (!publish(workspace, file, stagedManifest, stagedSignature))
+    			return file + ": Blocos removidos durante o envio, tente de novo";
+    	}
+    	finally {
+    		stagedManifest.delete();
+    		stagedSignature.delete();
+    	}
+    	long size = ContentChunker.sizeOf(chunks);
+    	return String.format(Locale.ROOT, "%s: OK (%d de %d bytes enviados, %d poupados, deduplicação do workspace %.2f:1)", 
+    			file, sent, size, size - sent, store.getRatio());
+    }
+    
+    /**
+     * Auxiliary method that moves a file received and its signature into the workspace,
+     * replacing the file with the same name and its signature
+     * 
+     * @param workspace workspace that receives the file
+     * @param file name of the file
+     * @param stagedFile the file received
+     * @param stagedSignature the signature received
+     * @return true if it was published, false if it is a manifest of chunks the workspace does not have
+     * @throws IOException
+     */
+    private boolean publish(String workspace, String file, File stagedFile, File stagedSignature) throws IOException {
+    	File receivedFile = new File(SERVER_PATH + workspace + "/" + file);
+    	ChunkStore store = ChunkStore.of(new File(SERVER_CHUNKS_PATH), new File(SERVER_PATH + workspace));
+    	List<Chunk> chunks = ChunkStore.isManifest(stagedFile) ? ChunkStore.readManifest(stagedFile) : null;
+    	Lock workspaceLock = locks.getWorkspaceLock(workspace).writeLock();
+    	workspaceLock.lock();
+    	try {
+    		//the new file is counted before the one it replaces is discounted, so that
+    		//the chunks they share are not removed
+    		if (chunks != null && !store.referenceIfPresent(chunks))
+    			return false;
+    		if (receivedFile.exists()) {
+    			File signatureFile = filterSignature(file, new File(SERVER_PATH + workspace).listFiles());
+    			if (signatureFile != null)
+    				signatureFile.delete();
+    			store.release(receivedFile);
+    		}
+    		Files.move(stagedFile.toPath(), receivedFile.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+    				StandardCopyOption.ATOMIC_MOVE);
+    		Files.move(stagedSignature.toPath(), new File(receivedFile.getPath() + ".signed." + loggedUser).toPath(), 
+    				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    		return true;
+    	}
+    	finally {
+    		workspaceLock.unlock();
+    	}
+    }
+    
+    /**
+     * Method that sends to the client the bytes already stored of an interrupted upload of
+     * a file and the size the file will have, so that the client sends only the rest
+     * 
+     * @param workspace workspace that receives the file
+     * @param file name of the file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException 
+     * @throws IllegalStateException 
+     */
+    private void sendUploadOffset(String workspace, String file) throws IOException, IllegalStateException, NoSuchAlgorithmException {
+		if (!verifyMAC())
+			System.exit(-1); 
+		String permission = workspaceRegistry.checkUserInWorkspace(loggedUser, workspace);
+		if (!permission.equals("OK")) {
+			sendMessage(permission);
+			return;
+		}
+		if (file.contains("/")) {
+			sendMessage("0 -1");
+			return;
+		}
+		StagedUpload upload = StagedUpload.of(new File(SERVER_STAGING_PATH), workspace, loggedUser, file);
+		sendMessage(upload.getCommitted() + " " + upload.getSize());
+    }
+    
+    /**
+     * Auxiliary method that creates an empty file where an upload is stored until
+     * it is complete. It is in the same file system as the workspaces, so that it
+     * can be moved into its workspace at once
+     * 
+     * @return the file
+     * @throws IOException
+     */
+    private File createStagingFile() throws IOException {
+    	File staging = new File(SERVER_STAGING_PATH);
+    	staging.mkdirs();
+    	return File.createTempFile("upload", ".part", staging);
+    }
+    
     /**
      * Method that sends files from the workspace to a client
      * 
@@ -373,30 +663,66 @@ public class ServerCommandHandler extends Thread{
      * @throws NoSuchAlgorithmException 
      * @throws IllegalStateException 
      */
-	private void sendFiles(String workspace, String files) throws IOException, IllegalStateException, NoSuchAlgorithmException {
+	private void sendFiles(String workspace, String[] files) throws IOException, IllegalStateException, NoSuchAlgorithmException {
 		if (!verifyMAC())
 			System.exit(-1); 
-        String permission = workspacesFileReader.checkUserInWorkspace(loggedUser, workspace);
+        String permission = workspaceRegistry.checkUserInWorkspace(loggedUser, workspace);
         sendMessage(permission);
         if (!permission.equals("OK")) {
             return;
         }
 
-		FileTransferer.sendFile(SERVER_PATH + workspace + "/" + workspace + ".key." + loggedUser, output);
+		channel.sendFile(SERVER_PATH + workspace + "/" + workspace + ".key." + loggedUser);
 
         List<String> filesWorkspace = Arrays.asList(getFilesInWorkspace(workspace));
-        String[] receivedFiles = files.split(",");
-        for (String file : receivedFiles) {
+        ChunkStore store = ChunkStore.of(new File(SERVER_CHUNKS_PATH), new File(SERVER_PATH + workspace));
+        for (String file : files) {
             if (filesWorkspace.contains(file)) {
-                synchronized(fileLock) {
+            	//only the snapshot of the file and of its signature is taken with the lock,
+            	//so that a slow client does not hold back the uploads to the workspace
+                Lock workspaceLock = locks.getWorkspaceLock(workspace).readLock();
+                String codec;
+                File signatureFile = null;
+                long signatureSize = 0;
+                InputStream signature = null;
+                ChunkStore.Snapshot content = null;
+                workspaceLock.lock();
+                try {
+					File storedFile = new File(SERVER_PATH + workspace + "/" + file);
+					//the clients before version 7 would keep the compressed chunks as the file
+					codec = ChunkStore.codecOf(storedFile);
+					if (codec.equals(ChunkCompressor.NONE) || channel.isCompressed()) {
+						signatureFile = filterSignature(file, new File(SERVER_PATH + workspace).listFiles());
+						signature = new FileInputStream(signatureFile);
+						signatureSize = signatureFile.length();
+						content = store.snapshot(storedFile);
+					}
+            	}
+                catch (IOException e) {
+                	if (signature != null)
+                		signature.close();
+                	throw e;
+                }
+                finally {
+                	workspaceLock.unlock();
+                }
+                if (content == null) {
+                	sendMessage("O ficheiro " + file + " está comprimido, atualize o cliente para o descarregar");
+                	continue;
+                }
+
+                try (InputStream signatureContent = signature; ChunkStore.Snapshot snapshot = content) {
                 	sendMessage(file + " #ficheiro transferido");
-					File signatureFile = filterSignature(file, new File(SERVER_PATH + workspace).listFiles());
-					String fileName = signatureFile.getName();
-					String[] partitionedName = fileName.split("\\.");
+					String[] partitionedName = signatureFile.getName().split("\\.");
 					sendMessage(partitionedName[partitionedName.length - 1]);
-					FileTransferer.sendFile(SERVER_PATH + workspace + "/" + fileName, output);
-                	FileTransferer.sendFile(SERVER_PATH + workspace + "/" + file, output);
-            	}
+					channel.sendStream(signatureContent, signatureSize);
+					if (channel.isCompressed())
+						sendMessage(codec);
+					long offset = channel.isResumable() ? receiveDownloadOffset(snapshot.size()) : 0;
+					try (InputStream input = snapshot.open(offset)) {
+						channel.sendStream(input, snapshot.size() - offset);
+					}
+                }
             } 
             else {
                 sendMessage("O ficheiro " + file + " não existe no workspace indicado");
@@ -404,6 +730,27 @@ public class ServerCommandHandler extends Thread{
         }
     }
     
+    /**
+     * Auxiliary method that tells the client the size of a file and receives the offset
+     * from which to send it, which is the part of the file the client already has
+     * 
+     * @param size the size of the file
+     * @return the offset
+     * @throws IOException
+     */
+    private long receiveDownloadOffset(long size) throws IOException {
+    	sendMessage(String.valueOf(size));
+    	long offset;
+    	try {
+    		offset = Long.parseLong(channel.receiveMessage());
+    	} catch (NumberFormatException e) {
+    		throw new ProtocolException("Posição de retoma inválida");
+    	}
+    	if (offset < 0 || offset > size)
+    		throw new ProtocolException("Posição de retoma inválida: " + offset);
+    	return offset;
+    }
+    
 	/**
 	 * Method that deletes files from the workspace
 	 * The directory is updated with the missing files
@@ -414,17 +761,16 @@ public class ServerCommandHandler extends Thread{
 	 * @throws NoSuchAlgorithmException 
 	 * @throws IllegalStateException 
 	 */
-	private void deleteFiles(String workspace, String files) throws IOException, IllegalStateException, NoSuchAlgorithmException {
+	private void deleteFiles(String workspace, String[] files) throws IOException, IllegalStateException, NoSuchAlgorithmException {
 		if (!verifyMAC())
 			System.exit(-1); 
-        String permission = workspacesFileReader.checkUserInWorkspace(loggedUser, workspace);
+        String permission = workspaceRegistry.checkUserInWorkspace(loggedUser, workspace);
         sendMessage(permission);
         if (!permission.equals("OK")) {
             return;
         }
 
-        String[] fileList = files.split(",");
-        for (String singularFile : fileList) {
+        for (String singularFile : files) {
         	String[] filesInWorkspace = getFilesInWorkspace(workspace); 
         	boolean deleted = false;
         	if (filesInWorkspace.length == 0) {
@@ -433,9 +779,16 @@ public class ServerCommandHandler extends Thread{
         	}
 	        for (String file : filesInWorkspace) {
 	            if (singularFile.equals(file)) {
-	            	synchronized(fileLock) {
+	            	Lock workspaceLock = locks.getWorkspaceLock(workspace).writeLock();
+	            	workspaceLock.lock();
+	            	try {
 						deleteSignatureOfFile(workspace, file);
-	                	new File(SERVER_PATH + workspace + "/" + file).delete();
+						File deletedFile = new File(SERVER_PATH + workspace + "/" + file);
+						ChunkStore.of(new File(SERVER_CHUNKS_PATH), new File(SERVER_PATH + workspace)).release(deletedFile);
+	                	deletedFile.delete();
+	            	}
+	            	finally {
+	            		workspaceLock.unlock();
 	            	}
 	                deleted = true;
 	                sendMessage(singularFile + ": APAGADO");
@@ -493,7 +846,7 @@ public class ServerCommandHandler extends Thread{
     	string.append("{ ");
 		if (!verifyMAC())
 			System.exit(-1); 
-    	Set<String> workspaceNames = workspacesFileReader.getUserWorkspaces(this.loggedUser);
+    	Set<String> workspaceNames = workspaceRegistry.getUserWorkspaces(this.loggedUser);
     	
     	for (String name : workspaceNames) {
 			string.append(name);
@@ -517,7 +870,7 @@ public class ServerCommandHandler extends Thread{
     private void sendListFiles(String workspace) throws IOException, IllegalStateException, NoSuchAlgorithmException {
 		if (!verifyMAC())
 			System.exit(-1); 
-		String permission = workspacesFileReader.checkUserInWorkspace(loggedUser, workspace);
+		String permission = workspaceRegistry.checkUserInWorkspace(loggedUser, workspace);
 		if (!permission.equals("OK")) {
 			sendMessage(permission);
 			return;
@@ -0,0 +1,385 @@
+package server_tools;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that runs the sessions of the clients, either on virtual threads or on a
+ * pool of platform threads, and limits how many sessions can be active at once
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class SessionExecutor {
+
+	//modes in which the sessions can be executed
+	public static final String VIRTUAL_MODE = "virtual";
+	public static final String PLATFORM_MODE = "platform";
+
+	//what happens to a connection that arrives when the cap has been reached
+	public static final String QUEUE_POLICY = "queue";
+	public static final String REFUSE_POLICY = "refuse";
+
+	//status sent to a client whose connection was refused
+	public static final String BUSY_STATUS = "BUSY";
+
+	//default values, used when the system properties are not defined
+	private static final int DEFAULT_POOL_SIZE = 200;
+	private static final int DEFAULT_MAX_SESSIONS = 10000;
+	private static final long DEFAULT_QUEUE_TIMEOUT = 30000;
+
+	//threads and waiting connections of the refuser, the connections beyond them are closed at once
+	private static final int REFUSER_THREADS = 4;
+	private static final int REFUSER_QUEUE = 256;
+
+	//milliseconds a refused connection is kept open for the client to read the status
+	private static final long REFUSE_LINGER = 1000;
+
+	//executes the sessions
+	private ExecutorService executor;
+
+	//executes the requests of the sessions that run several at the same time.
+	//It is apart from the executor of the sessions so that a full pool of
+	//sessions cannot stop the requests they are waiting for
+	private ExecutorService requests;
+
+	//only used to refuse connections, so that a full pool does not delay the refusals
+	private ExecutorService refuser;
+
+	//refuses the connections that waited in QUEUE_POLICY until the timeout
+	private ScheduledExecutorService timeouts;
+
+	//one permit for each session that may be active
+	private Semaphore admissions;
+
+	//connections waiting for a place in QUEUE_POLICY, in order of arrival.
+	//The place of a session that ends goes to the first of them
+	private Queue<Waiting> waiting = new ConcurrentLinkedQueue<>();
+
+	private String mode;
+	private String policy;
+	private int maxSessions;
+	private long queueTimeout;
+	private AtomicInteger activeSessions = new AtomicInteger();
+
+	/**
+	 * Constructor. Initializes the executor
+	 *
+	 * @param mode VIRTUAL_MODE or PLATFORM_MODE
+	 * @param poolSize number of platform threads, only used in PLATFORM_MODE
+	 * @param maxSessions maximum number of sessions active at the same time. In PLATFORM_MODE
+	 * 		it is at most poolSize if each session holds a thread while it is active
+	 * @param policy QUEUE_POLICY or REFUSE_POLICY
+	 * @param queueTimeout milliseconds a connection waits in QUEUE_POLICY before being refused
+	 * @param threadPerSession true if each session holds a thread while it is active, as in the
+	 * 		blocking transport, false if it only does while it has an action to process, as in NIO
+	 */
+	public SessionExecutor(String mode, int poolSize, int maxSessions, String policy, long queueTimeout, boolean threadPerSession) {
+		this.policy = policy;
+		this.queueTimeout = queueTimeout;
+
+		if (mode.equals(VIRTUAL_MODE)) {
+			executor = newVirtualThreadExecutor();
+			if (executor == null) {
+				System.out.println("Threads virtuais não suportadas por esta JVM, a usar um pool de " + poolSize + " threads");
+				mode = PLATFORM_MODE;
+			}
+		}
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(poolSize);
+			//a session admitted beyond the pool would wait for a thread without ever being refused
+			if (threadPerSession && maxSessions > poolSize) {
+				System.out.println("Limite de sessões reduzido de " + maxSessions + " para " + poolSize + ", o tamanho do pool");
+				maxSessions = poolSize;
+			}
+		}
+		this.mode = mode;
+		this.maxSessions = maxSessions;
+		this.admissions = new Semaphore(maxSessions, true);
+
+		requests = newVirtualThreadExecutor();
+		if (requests == null) {
+			requests = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "session-request");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		refuser = new ThreadPoolExecutor(REFUSER_THREADS, REFUSER_THREADS, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(REFUSER_QUEUE), runnable -> {
+			Thread thread = new Thread(runnable, "session-refuser");
+			thread.setDaemon(true);
+			return thread;
+		}, (task, pool) -> ((Refusal) task).closeNow());
+		((ThreadPoolExecutor) refuser).allowCoreThreadTimeOut(true);
+
+		timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "session-queue");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Method that creates the executor with the configuration given by the system properties
+	 * mysharing.sessions.mode, mysharing.sessions.poolSize, mysharing.sessions.max,
+	 * mysharing.sessions.overflow and mysharing.sessions.queueTimeout
+	 *
+	 * @param threadPerSession true if each session holds a thread while it is active
+	 * @return the configured executor
+	 */
+	public static SessionExecutor fromSystemProperties(boolean threadPerSession) {
+		String mode = System.getProperty("mysharing.sessions.mode", VIRTUAL_MODE);
+		int poolSize = Integer.getInteger("mysharing.sessions.poolSize", DEFAULT_POOL_SIZE);
+		int maxSessions = Integer.getInteger("mysharing.sessions.max", DEFAULT_MAX_SESSIONS);
+		String policy = System.getProperty("mysharing.sessions.overflow", QUEUE_POLICY);
+		long queueTimeout = Long.getLong("mysharing.sessions.queueTimeout", DEFAULT_QUEUE_TIMEOUT);
+		return new SessionExecutor(mode, poolSize, maxSessions, policy, queueTimeout, threadPerSession);
+	}
+
+	/**
+	 * Auxiliary method that creates an executor with one virtual thread per task.
+	 * It is created by reflection so that the server still runs on JVMs without virtual threads
+	 *
+	 * @return the executor, or null if the JVM does not support virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Method that tries to reserve a place for a new session, without waiting
+	 *
+	 * @return true if the session may start, false if there is no place now
+	 */
+	public boolean admit() {
+		//the connections already waiting for a place go first
+		if (!waiting.isEmpty() || !admissions.tryAcquire())
+			return false;
+		activeSessions.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Method that reserves a place for a new session without blocking the caller.
+	 * If there is a place the session is admitted at once. Otherwise, in QUEUE_POLICY
+	 * the connection waits for a session to end until the timeout expires, and in
+	 * REFUSE_POLICY it is refused at once. Exactly one of the actions given runs,
+	 * possibly on another thread
+	 *
+	 * @param admitted runs when the session may start, then it must be submitted or released
+	 * @param refused runs when the connection must be refused
+	 */
+	public void admit(Runnable admitted, Runnable refused) {
+		if (admit()) {
+			admitted.run();
+			return;
+		}
+		if (policy.equals(REFUSE_POLICY)) {
+			refused.run();
+			return;
+		}
+		Waiting entry = new Waiting(admitted);
+		waiting.add(entry);
+		timeouts.schedule(() -> {
+			if (entry.claim()) {
+				waiting.remove(entry);
+				refused.run();
+			}
+		}, queueTimeout, TimeUnit.MILLISECONDS);
+		//a session may have ended before the connection was queued, leaving a place free
+		if (admissions.tryAcquire()) {
+			activeSessions.incrementAndGet();
+			release();
+		}
+	}
+
+	/**
+	 * Method that executes an admitted session. The place of the session
+	 * is released when it ends
+	 *
+	 * @param session the session to be executed
+	 * @requires admit() returned true for this session
+	 */
+	public void submit(Runnable session) {
+		try {
+			executor.execute(() -> {
+				try {
+					session.run();
+				}
+				finally {
+					release();
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method that executes a piece of work of a session that is not
+	 * bound to a thread, such as the sessions of the NIO transport
+	 *
+	 * @param task the work to be executed
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Method that executes a request of a session, at the same time
+	 * as the session keeps receiving the next ones
+	 *
+	 * @param request the request to be executed
+	 */
+	public void executeRequest(Runnable request) {
+		requests.execute(request);
+	}
+
+	/**
+	 * Method that frees the place of a session that ended
+	 */
+	public void release() {
+		//the place goes to the first connection still waiting, if any
+		Waiting next;
+		while ((next = waiting.poll()) != null) {
+			if (next.claim()) {
+				next.admitted.run();
+				return;
+			}
+		}
+		activeSessions.decrementAndGet();
+		admissions.release();
+	}
+
+	/**
+	 * Method that refuses a connection, sending the BUSY status to the client.
+	 * The connection is kept open for a moment after the status, until the client
+	 * disconnects, so that the credentials it already sent do not make it fail before
+	 * reading the status. When too many connections are being refused at once, the
+	 * ones beyond them are closed without the status
+	 *
+	 * @param socket the connection to be refused
+	 */
+	public void refuse(Socket socket) {
+		System.out.println("Ligação recusada: limite de " + maxSessions + " sessões atingido");
+		refuser.execute(new Refusal(socket));
+	}
+
+	/**
+	 * Method that returns the number of sessions currently active
+	 *
+	 * @return the number of active sessions
+	 */
+	public int getActiveSessions() {
+		return activeSessions.get();
+	}
+
+	/**
+	 * Method that returns the mode in which the sessions are executed
+	 *
+	 * @return VIRTUAL_MODE or PLATFORM_MODE
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * Method that stops accepting sessions and ends the executor
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		requests.shutdown();
+		refuser.shutdown();
+		timeouts.shutdown();
+	}
+
+	/**
+	 * Connection waiting for a place in QUEUE_POLICY. It is either admitted, when a
+	 * session ends, or refused, when the timeout expires, whichever comes first
+	 */
+	private static class Waiting {
+
+		private Runnable admitted;
+		private AtomicBoolean claimed = new AtomicBoolean();
+
+		Waiting(Runnable admitted) {
+			this.admitted = admitted;
+		}
+
+		/**
+		 * Method that decides the fate of the connection, only once
+		 *
+		 * @return true if it was not decided before
+		 */
+		boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+	}
+
+	/**
+	 * Refusal of a connection, executed by the refuser
+	 */
+	private static class Refusal implements Runnable {
+
+		private Socket socket;
+
+		Refusal(Socket socket) {
+			this.socket = socket;
+		}
+
+		public void run() {
+			try {
+				long deadline = System.currentTimeMillis() + REFUSE_LINGER;
+				socket.setSoTimeout((int) REFUSE_LINGER);
+				ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+				out.writeObject(BUSY_STATUS);
+				out.flush();
+				byte[] discarded = new byte[1024];
+				long left;
+				while ((left = deadline - System.currentTimeMillis()) > 0) {
+					//the credentials of the client are ignored
+					socket.setSoTimeout((int) Math.max(left, 1));
+					if (socket.getInputStream().read(discarded) == -1)
+						break;
+				}
+			} catch (IOException e) {
+				//the client is gone or took too long, nothing else to do
+			}
+			finally {
+				closeNow();
+			}
+		}
+
+		/**
+		 * Method that closes the connection without telling the client
+		 */
+		void closeNow() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,487 @@
+package server_tools;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import file_communication.Command;
+import file_communication.MessageChannel;
+import file_communication.TransferProgress;
+
+/**
+ * Class with the worker stage of a session. The session reads the commands of the
+ * client and hands them to this stage, which executes up to a given number of them
+ * at the same time while the session keeps reading.
+ *
+ * The commands waiting for a worker are executed by priority: the commands that only
+ * exchange messages go before the transfers of files, and among the same priority the
+ * oldest goes first. A command never starts before an older command of the session that
+ * changes what it uses, or that uses what it changes, has ended, so the session sees its
+ * own changes in order even if other commands run at the same time.
+ *
+ * When the channel of the session cannot tell the replies of the requests apart, the
+ * replies are delivered in the order of the commands: a command executed before its
+ * turn keeps its messages until the commands before it end. The kept messages are
+ * written to the client outside the lock of the stage, in the order of the turns
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class SessionWorkers {
+
+	//default number of commands of a session executed at the same time
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	//priorities of the commands, the lower the sooner
+	private static final int MESSAGE_PRIORITY = 0;
+	private static final int TRANSFER_PRIORITY = 1;
+
+	//what the commands use besides the workspaces: the workspaces each user belongs to
+	private static final String MEMBERSHIPS = "";
+
+	private SessionExecutor executor;
+	private int maxInFlight;
+
+	//commands waiting for a worker
+	private PriorityQueue<Operation> waiting = new PriorityQueue<>();
+	//commands that did not end, running or waiting, from the oldest to the newest
+	private List<Operation> unfinished = new ArrayList<>();
+	private int inFlight = 0;
+	private long nextSequence = 0;
+	private boolean cancelled = false;
+
+	//sequence of the command whose replies are being delivered, when they are ordered
+	private long deliveryTurn = 0;
+	//commands that ended and whose turn did not come yet, or that are not ordered
+	private List<Long> delivered = new ArrayList<>();
+	//channels of the ordered commands whose turn did not come yet
+	private Map<Long, OrderedChannel> ordered = new HashMap<>();
+	//channels of the ordered commands whose turn came, with messages kept still to be written
+	private List<OrderedChannel> toDeliver = new ArrayList<>();
+	//error that stopped the delivery of the messages kept, null while there is none
+	private IOException deliveryFailure = null;
+
+	//held while the replies of the ordered commands are written, so they are written in order
+	private ReentrantLock delivery = new ReentrantLock();
+
+	/**
+	 * Constructor. Initializes the stage
+	 *
+	 * @param executor executor where the commands are executed
+	 * @param maxInFlight maximum number of commands executed at the same time
+	 */
+	public SessionWorkers(SessionExecutor executor, int maxInFlight) {
+		this.executor = executor;
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	/**
+	 * Method that creates the stage with the number of commands given by
+	 * the mysharing.session.inFlight system property
+	 *
+	 * @param executor executor where the commands are executed
+	 * @return the stage
+	 */
+	public static SessionWorkers fromSystemProperties(SessionExecutor executor) {
+		return new SessionWorkers(executor, Integer.getInteger("mysharing.session.inFlight", DEFAULT_MAX_IN_FLIGHT));
+	}
+
+	/**
+	 * Method that hands a command to the stage
+	 *
+	 * @param command the command
+	 * @param request the channel of the request of the command
+	 * @param ordered true if the replies must be delivered in the order of the commands
+	 * @param task the code that executes the command, given the channel it must answer through
+	 * @throws IOException if the messages kept by the commands could not be delivered
+	 */
+	public void submit(Command command, MessageChannel request, boolean ordered, Consumer<MessageChannel> task) throws IOException {
+		synchronized (this) {
+			if (cancelled)
+				return;
+			long sequence = nextSequence++;
+			MessageChannel channel = request;
+			if (ordered) {
+				OrderedChannel orderedChannel = new OrderedChannel(request, sequence);
+				this.ordered.put(sequence, orderedChannel);
+				channel = orderedChannel;
+			}
+			else
+				delivered.add(sequence);
+			advanceTurn();
+			Operation operation = new Operation(command, sequence, channel, task);
+			waiting.add(operation);
+			unfinished.add(operation);
+			startWaiting();
+		}
+		deliverKept();
+	}
+
+	/**
+	 * Method that waits until every command handed to the stage has ended and,
+	 * if ordered, has had its replies delivered. It is used before a command
+	 * that reads from the client, which must have the channel to itself
+	 *
+	 * @throws InterruptedException
+	 * @throws IOException if the messages kept by the commands could not be delivered
+	 */
+	public void awaitIdle() throws InterruptedException, IOException {
+		synchronized (this) {
+			while (inFlight > 0 || !waiting.isEmpty() || deliveryTurn < nextSequence)
+				wait();
+		}
+		deliverKept();
+	}
+
+	/**
+	 * Method that cancels the commands that did not start yet, used when the
+	 * session ends. The commands already running end on their own, as the
+	 * connection they answer through is closed
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		unfinished.removeAll(waiting);
+		waiting.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Method that returns the number of commands running
+	 *
+	 * @return the number of commands running
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Auxiliary method that gives workers to the waiting commands, by priority, while there
+	 * are workers free. A command that conflicts with an older one that did not end waits,
+	 * and so does a transfer whose replies are ordered until its turn comes, as it would
+	 * otherwise wait for its turn holding the lock of its workspace
+	 */
+	private void startWaiting() {
+		if (inFlight >= maxInFlight || waiting.isEmpty())
+			return;
+		List<Operation> candidates = new ArrayList<>(waiting);
+		candidates.sort(null);
+		for (Operation operation : candidates) {
+			if (inFlight >= maxInFlight)
+				return;
+			if (conflictsWithOlder(operation) || waitsForTurn(operation))
+				continue;
+			waiting.remove(operation);
+			inFlight++;
+			executor.executeRequest(() -> run(operation));
+		}
+	}
+
+	/**
+	 * Auxiliary method that checks if a command must wait for an older command of the session
+	 *
+	 * @param operation the command
+	 * @return true if an older command that did not end changes what the command uses
+	 * or uses what it changes
+	 */
+	private boolean conflictsWithOlder(Operation operation) {
+		for (Operation older : unfinished) {
+			if (older.sequence >= operation.sequence)
+				return false;
+			for (String changed : older.changes) {
+				if (operation.uses.contains(changed) || operation.changes.contains(changed))
+					return true;
+			}
+			for (String used : older.uses) {
+				if (operation.changes.contains(used))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Auxiliary method that checks if a command must wait for its turn before it starts
+	 *
+	 * @param operation the command
+	 * @return true if it is a transfer whose replies are ordered and its turn did not come
+	 */
+	private boolean waitsForTurn(Operation operation) {
+		return operation.priority == TRANSFER_PRIORITY && operation.channel instanceof OrderedChannel
+				&& operation.sequence != deliveryTurn;
+	}
+
+	/**
+	 * Auxiliary method executed by a worker
+	 *
+	 * @param operation the command to be executed
+	 */
+	private void run(Operation operation) {
+		try {
+			operation.task.accept(operation.channel);
+		}
+		finally {
+			synchronized (this) {
+				inFlight--;
+				unfinished.remove(operation);
+				if (operation.channel instanceof OrderedChannel)
+					delivered.add(operation.sequence);
+				advanceTurn();
+				startWaiting();
+				notifyAll();
+			}
+			try {
+				deliverKept();
+			} catch (IOException e) {
+				//the replies of the commands left cannot be delivered any more, and the
+				//session gets the error the next time it hands a command to the stage
+				cancel();
+			}
+		}
+	}
+
+	/**
+	 * Auxiliary method that moves the turn of delivery past the commands that already
+	 * ended. The messages kept by each command whose turn comes are delivered by
+	 * deliverKept, once the lock of the stage is released
+	 */
+	private void advanceTurn() {
+		while (delivered.remove(Long.valueOf(deliveryTurn))) {
+			ordered.remove(deliveryTurn);
+			deliveryTurn++;
+			OrderedChannel next = ordered.get(deliveryTurn);
+			if (next != null && !next.kept.isEmpty())
+				toDeliver.add(next);
+		}
+	}
+
+	/**
+	 * Auxiliary method that writes the messages kept by the commands whose turn came,
+	 * in the order of the turns. It must be called without the lock of the stage
+	 *
+	 * @throws IOException if the messages could not be written, now or before
+	 */
+	private void deliverKept() throws IOException {
+		delivery.lock();
+		try {
+			while (true) {
+				List<OrderedChannel> channels;
+				synchronized (this) {
+					if (deliveryFailure != null)
+						throw deliveryFailure;
+					if (toDeliver.isEmpty())
+						return;
+					channels = new ArrayList<>(toDeliver);
+					toDeliver.clear();
+				}
+				try {
+					for (OrderedChannel channel : channels)
+						channel.deliverKept();
+				} catch (IOException e) {
+					synchronized (this) {
+						deliveryFailure = e;
+					}
+					throw e;
+				}
+			}
+		}
+		finally {
+			delivery.unlock();
+		}
+	}
+
+	/**
+	 * A command handed to the stage
+	 */
+	private static class Operation implements Comparable<Operation> {
+
+		private int priority = MESSAGE_PRIORITY;
+		private long sequence;
+		private MessageChannel channel;
+		private Consumer<MessageChannel> task;
+
+		//workspaces, or MEMBERSHIPS, that the command only reads and that it changes
+		private Set<String> uses = new HashSet<>();
+		private Set<String> changes = new HashSet<>();
+
+		Operation(Command command, long sequence, MessageChannel channel, Consumer<MessageChannel> task) {
+			this.sequence = sequence;
+			this.channel = channel;
+			this.task = task;
+			switch (command.getName()) {
+				case "CREATE":
+					changes.add(command.getField(0));
+					changes.add(MEMBERSHIPS);
+					break;
+				case "ADD":
+					changes.add(command.getField(1));
+					changes.add(MEMBERSHIPS);
+					break;
+				case "UP":
+					priority = TRANSFER_PRIORITY;
+					changes.add(command.getField(0));
+					break;
+				case "RM":
+					changes.add(command.getField(0));
+					break;
+				case "DW":
+					priority = TRANSFER_PRIORITY;
+					uses.add(command.getField(0));
+					break;
+				case "LS":
+				case "OFFSET":
+					uses.add(command.getField(0));
+					break;
+				case "LW":
+					uses.add(MEMBERSHIPS);
+					break;
+			}
+		}
+
+		public int compareTo(Operation other) {
+			if (priority != other.priority)
+				return Integer.compare(priority, other.priority);
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/**
+	 * Channel of a command whose replies are delivered in order. Before the turn of the
+	 * command its messages are kept, and its files wait for the turn, as they can be
+	 * too large to be kept. It does not read from the client
+	 */
+	private class OrderedChannel implements MessageChannel {
+
+		private MessageChannel request;
+		private long sequence;
+		private List<String> kept = new ArrayList<>();
+
+		OrderedChannel(MessageChannel request, long sequence) {
+			this.request = request;
+			this.sequence = sequence;
+		}
+
+		public void sendMessage(String message) throws IOException {
+			synchronized (SessionWorkers.this) {
+				if (deliveryTurn != sequence) {
+					kept.add(message);
+					return;
+				}
+			}
+			//the messages kept before the turn go first
+			delivery.lock();
+			try {
+				SessionWorkers.this.deliverKept();
+				request.sendMessage(message);
+			}
+			finally {
+				delivery.unlock();
+			}
+		}
+
+		public void setTransferProgress(TransferProgress progress) {
+			request.setTransferProgress(progress);
+		}
+
+		public void sendFile(String filename) throws IOException {
+			awaitTurn();
+			request.sendFile(filename);
+		}
+
+		public void sendStream(InputStream content, long size) throws IOException {
+			awaitTurn();
+			request.sendStream(content, size);
+		}
+
+		/**
+		 * Auxiliary method that waits for the turn of the command, before one of its files
+		 * is sent, and then for the messages it kept before the turn to be delivered
+		 *
+		 * @throws IOException if the command was cancelled while waiting, or the messages
+		 * 		could not be delivered
+		 */
+		private void awaitTurn() throws IOException {
+			synchronized (SessionWorkers.this) {
+				while (deliveryTurn != sequence && !cancelled) {
+					try {
+						SessionWorkers.this.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Pedido cancelado");
+					}
+				}
+				if (cancelled)
+					throw new IOException("Pedido cancelado");
+			}
+			SessionWorkers.this.deliverKept();
+		}
+
+		public String receiveMessage() {
+			throw new UnsupportedOperationException("Um pedido fora de ordem não lê do cliente");
+		}
+
+		public MessageChannel sendCommand(Command command) {
+			throw new UnsupportedOperationException("Um pedido fora de ordem não envia comandos");
+		}
+
+		public Command receiveCommand() {
+			throw new UnsupportedOperationException("Um pedido fora de ordem não lê do cliente");
+		}
+
+		public MessageChannel requestChannel(Command command) {
+			return this;
+		}
+
+		public boolean isMultiplexed() {
+			return false;
+		}
+
+		public boolean isResumable() {
+			return false;
+		}
+
+		public boolean isDeduplicated() {
+			return false;
+		}
+
+		public boolean isDeltaEncoded() {
+			return false;
+		}
+
+		public boolean isCompressed() {
+			return false;
+		}
+
+		public void endRequest(MessageChannel request) throws IOException {
+			this.request.endRequest(request);
+		}
+
+		public File receiveFile(String filename) {
+			throw new UnsupportedOperationException("Um pedido fora de ordem não lê do cliente");
+		}
+
+		public long receiveStream(OutputStream content) {
+			throw new UnsupportedOperationException("Um pedido fora de ordem não lê do cliente");
+		}
+
+		/**
+		 * Auxiliary method that delivers the messages kept before the turn of the command,
+		 * called after the turn is reached while holding the delivery lock
+		 *
+		 * @throws IOException
+		 */
+		private void deliverKept() throws IOException {
+			for (String message : kept)
+				request.sendMessage(message);
+			kept.clear();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package server_tools;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import file_communication.Command;
+import file_communication.MessageChannel;
+import file_communication.TransferProgress;
+
+/**
+ * Channel of a session of the server whose files, sent and received, are limited by
+ * the buckets of the transfer started for the command (BandwidthShaper), and measured
+ * by its progress. The messages are never limited, and neither are the files while no
+ * transfer is open
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class ShapedChannel implements MessageChannel {
+
+	private MessageChannel channel;
+	private BandwidthShaper shaper;
+
+	//the transfer of the command being executed, null if none
+	private BandwidthShaper.Transfer transfer = null;
+
+	/**
+	 * Constructor. Initializes the channel
+	 *
+	 * @param channel the channel whose files are limited
+	 * @param shaper the limits of the server
+	 */
+	public ShapedChannel(MessageChannel channel, BandwidthShaper shaper) {
+		this.channel = channel;
+		this.shaper = shaper;
+	}
+
+	/**
+	 * Method that starts to limit the files of a command, until the transfer returned is closed
+	 *
+	 * @param user the user of the command
+	 * @param workspace the workspace of the command
+	 * @param command the name of the command
+	 * @return the transfer
+	 */
+	public BandwidthShaper.Transfer startTransfer(String user, String workspace, String command) {
+		transfer = shaper.start(user, workspace, command);
+		return transfer;
+	}
+
+	public void sendMessage(String message) throws IOException {
+		channel.sendMessage(message);
+	}
+
+	public String receiveMessage() throws IOException {
+		return channel.receiveMessage();
+	}
+
+	public MessageChannel sendCommand(Command command) throws IOException {
+		return channel.sendCommand(command);
+	}
+
+	public Command receiveCommand() throws IOException {
+		return channel.receiveCommand();
+	}
+
+	public MessageChannel requestChannel(Command command) {
+		return channel.requestChannel(command);
+	}
+
+	public boolean isMultiplexed() {
+		return channel.isMultiplexed();
+	}
+
+	public boolean isResumable() {
+		return channel.isResumable();
+	}
+
+	public boolean isDeduplicated() {
+		return channel.isDeduplicated();
+	}
+
+	public boolean isDeltaEncoded() {
+		return channel.isDeltaEncoded();
+	}
+
+	public boolean isCompressed() {
+		return channel.isCompressed();
+	}
+
+	public void endRequest(MessageChannel request) throws IOException {
+		channel.endRequest(request);
+	}
+
+	public void setTransferProgress(TransferProgress progress) {
+		channel.setTransferProgress(progress);
+	}
+
+	public void sendFile(String filename) throws IOException {
+		File file = new File(filename);
+		try (InputStream content = new FileInputStream(file)) {
+			sendStream(content, file.length());
+		}
+	}
+
+	public File receiveFile(String filename) throws IOException {
+		File file = new File(filename);
+		try (OutputStream content = new FileOutputStream(file)) {
+			receiveStream(content);
+		}
+		return file;
+	}
+
+	public void sendStream(InputStream content, long size) throws IOException {
+		BandwidthShaper.Transfer current = transfer;
+		if (current == null || !current.isOpen()) {
+			channel.sendStream(content, size);
+			return;
+		}
+		//the bytes are taken from the buckets as the channel reads them to send
+		channel.setTransferProgress(current.getProgress());
+		try {
+			channel.sendStream(new FilterInputStream(content) {
+				@Override
+				public int read() throws IOException {
+					current.acquire(BandwidthShaper.SENT, 1);
+					return super.read();
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int length = Math.min(len, BandwidthShaper.QUANTUM);
+					current.acquire(BandwidthShaper.SENT, length);
+					return super.read(b, off, length);
+				}
+			}, size);
+		}
+		finally {
+			channel.setTransferProgress(null);
+		}
+	}
+
+	public long receiveStream(OutputStream content) throws IOException {
+		BandwidthShaper.Transfer current = transfer;
+		if (current == null || !current.isOpen())
+			return channel.receiveStream(content);
+		//the channel only reads more bytes once the ones read are written
+		channel.setTransferProgress(current.getProgress());
+		try {
+			return channel.receiveStream(new FilterOutputStream(content) {
+				@Override
+				public void write(int b) throws IOException {
+					current.acquire(BandwidthShaper.RECEIVED, 1);
+					out.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					while (len > 0) {
+						int length = Math.min(len, BandwidthShaper.QUANTUM);
+						current.acquire(BandwidthShaper.RECEIVED, length);
+						out.write(b, off, length);
+						off += length;
+						len -= length;
+					}
+				}
+			});
+		}
+		finally {
+			channel.setTransferProgress(null);
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package server_tools;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import file_communication.MessageChannel;
+
+/**
+ * Class that keeps an upload that can be interrupted and resumed. The bytes received are
+ * written into a staging file of their own, named after the workspace, the user and the
+ * file, and every CHECKPOINT_BYTES they are forced to the disk and their number is written
+ * into a progress record next to it. A client that comes back asks for that number with
+ * the OFFSET command and sends only the rest of the file. Once the file is complete, its
+ * hash is checked against the one sent by the client before it is published.
+ *
+ * An upload is received by one connection at a time, which claims it first
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class StagedUpload {
+
+	//bytes received between two checkpoints
+	public static final long CHECKPOINT_BYTES = 8L * 1024 * 1024;
+
+	//default time after which an upload that was not resumed is removed, in hours
+	public static final long DEFAULT_EXPIRY = 24;
+
+	//size of the parts in which a staging file is read to be hashed
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	//endings of the staging file and of its progress record
+	private static final String DATA = ".part";
+	private static final String PROGRESS = ".progress";
+
+	//staging files being received, claimed by a connection
+	private static final Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+	private File data;
+	private File progress;
+	//size the file will have, -1 if nothing was received, and bytes of it stored
+	private long size = -1;
+	private long committed = 0;
+	//hash of the whole file, known once it is received
+	private byte[] digest;
+
+	/**
+	 * Constructor. Initializes the upload
+	 *
+	 * @param data the staging file
+	 * @param progress the progress record
+	 */
+	private StagedUpload(File data, File progress) {
+		this.data = data;
+		this.progress = progress;
+	}
+
+	/**
+	 * Method that returns the upload of a file of a workspace by a user, with the bytes
+	 * already stored by the connections before. The upload is not claimed
+	 *
+	 * @param stagingDirectory directory of the staging files
+	 * @param workspace the workspace
+	 * @param user the user
+	 * @param file name of the file
+	 * @return the upload
+	 * @throws IOException
+	 */
+	public static StagedUpload of(File stagingDirectory, String workspace, String user, String file) throws IOException {
+		File directory = new File(new File(stagingDirectory, workspace), user);
+		StagedUpload upload = new StagedUpload(new File(directory, file + DATA), new File(directory, file + PROGRESS));
+		upload.readProgress();
+		return upload;
+	}
+
+	/**
+	 * Method that removes the uploads whose staging files were not changed for a given
+	 * time, and the staging files of interrupted uploads that cannot be resumed
+	 *
+	 * @param stagingDirectory directory of the staging files
+	 * @param hours time after which an upload is removed
+	 */
+	public static void removeExpired(File stagingDirectory, long hours) {
+		removeOlderThan(stagingDirectory, System.currentTimeMillis() - hours * 3600 * 1000);
+	}
+
+	/**
+	 * Method that claims the upload for the calling connection
+	 *
+	 * @return true if it was claimed, false if another connection is receiving it
+	 */
+	public boolean claim() {
+		return claimed.add(data.getPath());
+	}
+
+	/**
+	 * Method that lets other connections claim the upload
+	 */
+	public void release() {
+		claimed.remove(data.getPath());
+	}
+
+	/**
+	 * Method that returns the bytes of the file already stored
+	 *
+	 * @return the bytes stored
+	 */
+	public long getCommitted() {
+		return committed;
+	}
+
+	/**
+	 * Method that returns the size the file will have
+	 *
+	 * @return the size, -1 if nothing was received
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Method that prepares the upload to receive a file from a given offset. At offset 0
+	 * the upload starts again. Any other offset must not be past the bytes stored, and
+	 * the size must be the one of the bytes stored
+	 *
+	 * @param offset offset from which the client sends the file
+	 * @param size size of the file
+	 * @return true if the upload can continue from the offset, false if not
+	 * @throws IOException
+	 */
+	public boolean resumeFrom(long offset, long size) throws IOException {
+		if (offset == 0) {
+			data.getParentFile().mkdirs();
+			this.size = size;
+			this.committed = 0;
+			new FileOutputStream(data).close();
+			writeProgress();
+			return true;
+		}
+		if (offset < 0 || offset > committed || size != this.size)
+			return false;
+		committed = offset;
+		return true;
+	}
+
+	/**
+	 * Method that receives the rest of the file from a connection. The bytes received are
+	 * recorded as they reach the disk, also if the connection ends before the file does
+	 *
+	 * @param channel channel through which the file is received
+	 * @throws IOException
+	 */
+	public void receive(MessageChannel channel) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		hashStored(messageDigest);
+
+		FileOutputStream output = new FileOutputStream(data, true);
+		try {
+			output.getChannel().truncate(committed);
+			Checkpoints checkpoints = new Checkpoints(output, messageDigest);
+			try {
+				channel.receiveStream(checkpoints);
+				if (committed + checkpoints.unforced != size)
+					throw new ProtocolException("Ficheiro mais curto do que o anunciado");
+			}
+			finally {
+				checkpoints.checkpoint();
+			}
+		}
+		finally {
+			output.close();
+		}
+		digest = messageDigest.digest();
+	}
+
+	/**
+	 * Method that checks the file received against the hash of the file sent by the client
+	 *
+	 * @param clientDigest the hash of the client, in Base64
+	 * @return true if they match, false if not
+	 */
+	public boolean matches(String clientDigest) {
+		try {
+			return digest != null && MessageDigest.isEqual(digest, Base64.getDecoder().decode(clientDigest));
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Method that returns the staging file, to be moved into its workspace once complete
+	 *
+	 * @return the staging file
+	 */
+	public File getFile() {
+		return data;
+	}
+
+	/**
+	 * Method that removes the upload, once its file is published or discarded
+	 */
+	public void remove() {
+		data.delete();
+		progress.delete();
+		size = -1;
+		committed = 0;
+	}
+
+	/**
+	 * Auxiliary method that reads the progress record, if the upload has one. The bytes
+	 * stored are never more than the ones of the staging file
+	 *
+	 * @throws IOException
+	 */
+	private void readProgress() throws IOException {
+		if (!progress.exists())
+			return;
+		String[] record = new String(Files.readAllBytes(progress.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+		try {
+			size = Long.parseLong(record[0]);
+			committed = Math.min(Long.parseLong(record[1]), data.length());
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			size = -1;
+			committed = 0;
+		}
+	}
+
+	/**
+	 * Auxiliary method that writes the progress record, replacing the one before at once
+	 *
+	 * @throws IOException
+	 */
+	private void writeProgress() throws IOException {
+		File temporary = new File(progress.getPath() + ".tmp");
+		Files.write(temporary.toPath(), (size + " " + committed).getBytes(StandardCharsets.UTF_8));
+		Files.move(temporary.toPath(), progress.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Auxiliary method that hashes the bytes of the file already stored
+	 *
+	 * @param messageDigest calculates the hash
+	 * @throws IOException
+	 */
+	private void hashStored(MessageDigest messageDigest) throws IOException {
+		try (InputStream input = new FileInputStream(data)) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long remaining = committed;
+			while (remaining > 0) {
+				int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (read == -1)
+					throw new IOException("Ficheiro de staging mais curto do que o registado");
+				messageDigest.update(buffer, 0, read);
+				remaining -= read;
+			}
+		}
+	}
+
+	/**
+	 * Auxiliary method that removes the files of a directory of staging files not changed
+	 * since a given instant, and the directories left empty
+	 *
+	 * @param directory the directory
+	 * @param cutoff the instant, in milliseconds
+	 */
+	private static void removeOlderThan(File directory, long cutoff) {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				removeOlderThan(file, cutoff);
+				String[] left = file.list();
+				if (left != null && left.length == 0)
+					file.delete();
+			}
+			else if (file.lastModified() < cutoff && !claimed.contains(file.getPath()))
+				file.delete();
+		}
+	}
+
+	/**
+	 * Stream that writes the bytes received into the staging file and hashes them,
+	 * forcing them to the disk and recording them every CHECKPOINT_BYTES
+	 */
+	private class Checkpoints extends OutputStream {
+
+		private FileOutputStream output;
+		private MessageDigest messageDigest;
+		//bytes written since the last checkpoint
+		private long unforced = 0;
+
+		Checkpoints(FileOutputStream output, MessageDigest messageDigest) {
+			this.output = output;
+			this.messageDigest = messageDigest;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (committed + unforced + len > size)
+				throw new ProtocolException("Ficheiro maior do que o anunciado");
+			output.write(b, off, len);
+			messageDigest.update(b, off, len);
+			unforced += len;
+			if (unforced >= CHECKPOINT_BYTES)
+				checkpoint();
+		}
+
+		/**
+		 * Method that forces the bytes written to the disk and records them
+		 *
+		 * @throws IOException
+		 */
+		void checkpoint() throws IOException {
+			if (unforced == 0)
+				return;
+			output.getChannel().force(false);
+			committed += unforced;
+			unforced = 0;
+			writeProgress();
+		}
+	}
+}
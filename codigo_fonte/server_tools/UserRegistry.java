@@ -0,0 +1,213 @@
+package server_tools;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import sec_addons.*;
+
+/**
+ * Class that keeps the users of the server in memory, indexed by name, so that
+ * authenticating a user does not read the file of the users. The file is read
+ * once, when the registry is created, and every new user is written to the file
+ * as soon as it is added to the registry. The users may instead be kept in a
+ * binary store mapped into memory, which is then both the index and the file, in
+ * which case the record of a user is checked against the MAC before it is used.
+ * The users registered at about the same time are written in a single batch
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class UserRegistry {
+
+	//hashed password and salt of each user, separated by ':'
+	private Map<String, String> users;
+
+	//the file of the users and its writer
+	private File usersFile;
+	private FileModifier usersFileModifier;
+
+	//the binary store of the users, null if the users are kept in the text file
+	private MappedUserStore store;
+
+	//synchronization lock for the file, and the MAC that covers it
+	private Lock usersReadLock;
+	private MACMaster usersMacMaster;
+
+	//writes the new users, and updates the MAC of the file, in batches
+	private GroupCommit<String[]> commits;
+	//users being registered, whose batch was not written yet, each with the end of its registration
+	private Map<String, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor. Loads the users written in the file
+	 *
+	 * @param usersFile the file of the users
+	 * @param usersLock synchronization lock for the file
+	 * @param usersMacMaster responsible for the MAC of the file
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public UserRegistry(File usersFile, ReadWriteLock usersLock, MACMaster usersMacMaster) throws IOException, NoSuchAlgorithmException {
+		this.users = new ConcurrentHashMap<>(new FileScanner(usersFile).readUsers());
+		this.usersFile = usersFile;
+		this.usersFileModifier = new FileModifier(usersFile);
+		this.usersReadLock = usersLock.readLock();
+		this.usersMacMaster = usersMacMaster;
+		this.commits = GroupCommit.fromSystemProperties("utilizadores", usersLock.writeLock(), usersMacMaster,
+				new File[] { usersFile }, this::writeUsers);
+	}
+
+	/**
+	 * Constructor. Uses the users of a binary store
+	 *
+	 * @param store the binary store of the users
+	 * @param usersLock synchronization lock for the store
+	 * @param usersMacMaster responsible for the MAC of the store
+	 */
+	public UserRegistry(MappedUserStore store, ReadWriteLock usersLock, MACMaster usersMacMaster) {
+		this.store = store;
+		this.usersFile = store.getFile();
+		this.usersReadLock = usersLock.readLock();
+		this.usersMacMaster = usersMacMaster;
+		this.commits = GroupCommit.fromSystemProperties("utilizadores", usersLock.writeLock(), usersMacMaster,
+				new File[] { usersFile }, this::writeUsers);
+	}
+
+	/**
+	 * Method that tries to authenticate the user, by comparing its password to the
+	 * one it registered with
+	 *
+	 * @param user the user to be authenticated
+	 * @param password the password given by the user
+	 * @return OK-NEW-USER if the user does not exist, OK-USER if the user was
+	 * 		   successfully authenticated, WRONG-PWD if not
+	 * @throws IOException if the record of the user does not match the MAC
+	 * @throws NoSuchAlgorithmException
+	 */
+	public String authenticateUser(String user, String password) throws IOException, NoSuchAlgorithmException {
+		String userPassword = store != null ? readRecord(user) : users.get(user);
+		if (userPassword == null) {
+			return "OK-NEW-USER";
+		}
+		String[] passInFile = userPassword.split(":");
+		String hashedPassword = RealDigester.hashPasswordWithSalt(password, passInFile[1]);
+		if (hashedPassword.equals(passInFile[0])) {
+			return "OK-USER";
+		}
+		return "WRONG-PWD";
+	}
+
+	/**
+	 * Method that adds a new user, writing it into the file of the users and updating
+	 * its MAC. The password is hashed before the user is handed to its batch, as it takes long.
+	 * If another session is already registering the same user, it waits until that
+	 * registration ends, written or failed, before it returns
+	 *
+	 * @param user the user to be added
+	 * @param password the password of the user
+	 * @return true if the user was added, false if it already existed or was being
+	 * 		registered by another session
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public boolean addUser(String user, String password) throws IOException, NoSuchAlgorithmException {
+		byte[] salt = SaltMaster.giftSalt();
+		String hashedPassword = RealDigester.hashPasswordWithSalt(password, salt);
+		String saltString = RealDigester.encodeSaltIntoString(salt);
+		if (store != null && !MappedUserStore.fits(user, hashedPassword + ":" + saltString))
+			throw new IOException("Utilizador demasiado longo para o ficheiro binário: " + user);
+		CompletableFuture<Boolean> registration = new CompletableFuture<>();
+		CompletableFuture<Boolean> other = pending.putIfAbsent(user, registration);
+		if (other != null) {
+			try {
+				other.join();
+			} catch (CompletionException | CancellationException e) {
+				//the other registration failed, the user is still missing
+			}
+			return false;
+		}
+		try {
+			boolean added = (store != null ? store.get(user) : users.get(user)) == null;
+			if (added)
+				commits.commit(new String[] { user, hashedPassword, saltString });
+			registration.complete(added);
+			return added;
+		}
+		catch (IOException | RuntimeException e) {
+			registration.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			pending.remove(user, registration);
+		}
+	}
+
+	/**
+	 * Method that returns the file where the users are kept, whose content is covered by the MAC of the users
+	 *
+	 * @return the file of the users
+	 */
+	public File getFile() {
+		return usersFile;
+	}
+
+	/**
+	 * Auxiliary method that reads the record of a user from the binary store, once its
+	 * way to the root of the hash tree of the store matches the MAC
+	 *
+	 * @param user the user
+	 * @return the hashed password and the salt, separated by ':', null if the user does not exist
+	 * @throws IOException if the record does not match the MAC
+	 * @throws NoSuchAlgorithmException
+	 */
+	private String readRecord(String user) throws IOException, NoSuchAlgorithmException {
+		usersReadLock.lock();
+		try {
+			long position = store.positionOf(user);
+			if (position < 0)
+				return null;
+			if (!usersMacMaster.verifyRange(usersFile, position, store.getRecordSize()))
+				throw new IOException("O registo do utilizador " + user + " não corresponde ao MAC");
+			return store.get(user);
+		}
+		finally {
+			usersReadLock.unlock();
+		}
+	}
+
+	/**
+	 * Auxiliary method that writes a batch of new users, each with its name, hashed
+	 * password and salt. It is called while holding the lock of the file of the users
+	 *
+	 * @param newUsers the new users
+	 * @throws IOException
+	 */
+	private void writeUsers(List<String[]> newUsers) throws IOException {
+		if (store != null) {
+			try {
+				for (String[] user : newUsers)
+					store.add(user[0], user[1] + ":" + user[2]);
+			}
+			finally {
+				for (long[] change : store.takeChanges())
+					usersMacMaster.markChanged(usersFile, change[0], change[1]);
+			}
+			return;
+		}
+		List<String> lines = new ArrayList<>();
+		for (String[] user : newUsers)
+			lines.add(user[0] + ":" + user[1] + ":" + user[2]);
+		usersFileModifier.appendLines(lines);
+		for (String[] user : newUsers)
+			users.put(user[0], user[1] + ":" + user[2]);
+	}
+}
@@ -0,0 +1,318 @@
+package server_tools;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+
+import sec_addons.MACMaster;
+
+/**
+ * Class that keeps the workspaces of the server in memory, indexed both by workspace
+ * and by user, so that checking the permissions of a user and listing its workspaces
+ * do not read the file of the workspaces. Users are compared by their whole name.
+ *
+ * The workspaces are stored in a snapshot, the file of the workspaces, followed by a log
+ * of the changes made since the snapshot was written. Both are read once, when the registry
+ * is created, and every change is appended to the log as soon as it is made, together with
+ * the changes made at about the same time by other sessions. Once the log has enough
+ * changes, a background thread writes a new snapshot and empties the log
+ * @author Diogo Oliveira fc59839
+ * @author Rodrigo Neto fc59850
+ * @author Vladislav Zavgorodnii fc59783
+ */
+public class WorkspaceRegistry {
+
+	//owner of each workspace
+	private Map<String, String> owners = new ConcurrentHashMap<>();
+	//members of each workspace, owner included
+	private Map<String, Set<String>> members = new ConcurrentHashMap<>();
+	//workspaces each user is a member of
+	private Map<String, Set<String>> userWorkspaces = new ConcurrentHashMap<>();
+
+	//default number of changes in the log that makes it be compacted into a new snapshot
+	public static final int DEFAULT_COMPACT_AT = 1000;
+
+	//the snapshot, its writer and the log of the changes made after it
+	private File workspacesFile;
+	private FileModifier workspacesFileModifier;
+	private MembershipLog log;
+
+	//synchronization lock for the snapshot and the log, and the MAC that covers both
+	private Lock workspacesLock;
+	private MACMaster workspacesMacMaster;
+
+	//writes the changes into the log in batches
+	private GroupCommit<String[]> commits;
+	//members being added, as workspace:user, so that a member is not added twice
+	private Set<String> pending = ConcurrentHashMap.newKeySet();
+
+	//number of changes in the log that makes it be compacted
+	private int compactAt;
+	//true while a new snapshot was asked for and not written yet
+	private boolean compactionQueued = false;
+	//writes the new snapshots, one at a time
+	private ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "mysharing-compactor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Constructor. Loads the workspaces written in the snapshot, and replays the changes of the log
+	 *
+	 * @param workspacesFile the file of the workspaces, with the snapshot
+	 * @param logFile the file of the log
+	 * @param workspacesLock synchronization lock for both files
+	 * @param workspacesMacMaster responsible for the MAC of both files
+	 * @param compactAt number of changes in the log that makes it be compacted
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public WorkspaceRegistry(File workspacesFile, File logFile, Lock workspacesLock, MACMaster workspacesMacMaster,
+			int compactAt) throws IOException, NoSuchAlgorithmException {
+		this.workspacesFile = workspacesFile;
+		this.workspacesFileModifier = new FileModifier(workspacesFile);
+		this.log = new MembershipLog(logFile);
+		this.workspacesLock = workspacesLock;
+		this.workspacesMacMaster = workspacesMacMaster;
+		this.compactAt = Math.max(1, compactAt);
+
+		for (String[] workspaceInfo : new FileScanner(workspacesFile).readWorkspaces()) {
+			if (owners.containsKey(workspaceInfo[0]))
+				continue;
+			index(workspaceInfo[0], workspaceInfo[1]);
+			for (String member : workspaceInfo[2].split(","))
+				indexMember(member, workspaceInfo[0]);
+		}
+		//a change may already be in the snapshot, if the server failed while compacting
+		for (String[] change : log.readChanges()) {
+			if (change[0].equals(MembershipLog.CREATE) && !owners.containsKey(change[1]))
+				index(change[1], change[2]);
+			else if (change[0].equals(MembershipLog.ADD) && owners.containsKey(change[1]))
+				indexMember(change[2], change[1]);
+		}
+		this.commits = GroupCommit.fromSystemProperties("workspaces", workspacesLock, workspacesMacMaster, getFiles(), this::writeChanges);
+	}
+
+	/**
+	 * Method that creates the registry with the number of changes given by the
+	 * mysharing.workspaces.compactAt system property
+	 *
+	 * @param workspacesFile the file of the workspaces, with the snapshot
+	 * @param logFile the file of the log
+	 * @param workspacesLock synchronization lock for both files
+	 * @param workspacesMacMaster responsible for the MAC of both files
+	 * @return the registry
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static WorkspaceRegistry fromSystemProperties(File workspacesFile, File logFile, Lock workspacesLock,
+			MACMaster workspacesMacMaster) throws IOException, NoSuchAlgorithmException {
+		return new WorkspaceRegistry(workspacesFile, logFile, workspacesLock, workspacesMacMaster,
+				Integer.getInteger("mysharing.workspaces.compactAt", DEFAULT_COMPACT_AT));
+	}
+
+	/**
+	 * Method that returns every workspace of the server
+	 *
+	 * @return a set with the workspaces, which cannot be modified
+	 */
+	public Set<String> getWorkspaces() {
+		return Collections.unmodifiableSet(owners.keySet());
+	}
+
+	/**
+	 * Method that returns the members of a workspace, owner included
+	 *
+	 * @param workspace the workspace
+	 * @return a set with the members, which cannot be modified, empty if the workspace does not exist
+	 */
+	public Set<String> getMembers(String workspace) {
+		Set<String> workspaceMembers = members.get(workspace);
+		if (workspaceMembers == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(workspaceMembers);
+	}
+
+	/**
+	 * Method that returns the workspaces of the user
+	 *
+	 * @param user the user to get the workspaces
+	 * @return a set with the user workspaces, which cannot be modified
+	 */
+	public Set<String> getUserWorkspaces(String user) {
+		Set<String> workspaces = userWorkspaces.get(user);
+		if (workspaces == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(workspaces);
+	}
+
+	/**
+	 * Method that checks if the user is the owner of the workspace
+	 *
+	 * @param user the user to check
+	 * @param workspace workspace whose owner we want to get
+	 * @return NOWS if workspace does not exist.
+	 * 		   OK if user is owner, NOPERM if it is not.
+	 */
+	public String checkUserIsOwner(String user, String workspace) {
+		String owner = owners.get(workspace);
+		if (owner == null)
+			return "NOWS";
+		return owner.equals(user) ? "OK" : "NOPERM";
+	}
+
+	/**
+	 * Method that checks if the user is a member of the workspace
+	 *
+	 * @param user the user to be checked
+	 * @param workspace workspace whose members we want to check
+	 * @return NOWS if workspace does not exist.
+	 * 		   OK if user is member, NOPERM if it is not.
+	 */
+	public String checkUserInWorkspace(String user, String workspace) {
+		Set<String> workspaceMembers = members.get(workspace);
+		if (workspaceMembers == null)
+			return "NOWS";
+		return workspaceMembers.contains(user) ? "OK" : "NOPERM";
+	}
+
+	/**
+	 * Method that adds a new workspace, appending it to the log and updating the MAC
+	 *
+	 * @param workspace the workspace to be added
+	 * @param owner the owner of the workspace, its first member
+	 * @throws IOException
+	 */
+	public void addWorkspace(String workspace, String owner) throws IOException {
+		commits.commit(new String[] { MembershipLog.CREATE, workspace, owner });
+	}
+
+	/**
+	 * Method that adds a user into a workspace, appending it to the log and updating the MAC
+	 *
+	 * @param user the user to be added
+	 * @param workspace workspace which the user will be added
+	 * @return true if the user was added, false if it was already a member
+	 * @throws IOException
+	 */
+	public boolean addMember(String user, String workspace) throws IOException {
+		String member = workspace + ":" + user;
+		if (!pending.add(member))
+			return false;
+		try {
+			if (!"NOPERM".equals(checkUserInWorkspace(user, workspace)))
+				return false;
+			commits.commit(new String[] { MembershipLog.ADD, workspace, user });
+			return true;
+		}
+		finally {
+			pending.remove(member);
+		}
+	}
+
+	/**
+	 * Method that returns the files whose content is covered by the MAC of the workspaces
+	 *
+	 * @return the snapshot and the log, in the order their content is covered
+	 */
+	public File[] getFiles() {
+		return new File[] { workspacesFile, log.getFile() };
+	}
+
+	/**
+	 * Auxiliary method that appends a batch of changes to the log and indexes them.
+	 * It is called while holding the lock of the workspaces
+	 *
+	 * @param changes for each change, its kind, its workspace and its user
+	 * @throws IOException
+	 */
+	private void writeChanges(List<String[]> changes) throws IOException {
+		log.append(changes);
+		for (String[] change : changes) {
+			if (change[0].equals(MembershipLog.CREATE))
+				index(change[1], change[2]);
+			else
+				indexMember(change[2], change[1]);
+		}
+		compactIfNeeded();
+	}
+
+	/**
+	 * Auxiliary method that asks the background thread for a new snapshot once the log
+	 * has enough changes. It must be called while holding the lock of the workspaces
+	 */
+	private void compactIfNeeded() {
+		if (log.size() >= compactAt && !compactionQueued) {
+			compactionQueued = true;
+			compactor.execute(this::compact);
+		}
+	}
+
+	/**
+	 * Auxiliary method that writes the workspaces into a new snapshot and empties the log.
+	 * If it fails, the snapshot and the log still hold every change, as the changes already
+	 * in the snapshot are ignored when the log is replayed, and the next change tries again
+	 */
+	private void compact() {
+		workspacesLock.lock();
+		try {
+			compactionQueued = false;
+			StringBuilder snapshot = new StringBuilder();
+			for (Map.Entry<String, String> workspace : owners.entrySet()) {
+				snapshot.append(workspace.getKey() + ":" + workspace.getValue() + ":" + workspace.getValue());
+				for (String member : members.get(workspace.getKey())) {
+					if (!member.equals(workspace.getValue()))
+						snapshot.append("," + member);
+				}
+				snapshot.append("\n");
+			}
+			try {
+				workspacesFileModifier.replaceContent(snapshot.toString());
+				log.clear();
+			} catch (IOException e) {
+				System.err.println("Não foi possível compactar o log dos workspaces: " + e.getMessage());
+			}
+			try {
+				workspacesMacMaster.writeMACIntoFile(workspacesFile, log.getFile());
+			} catch (IOException | NoSuchAlgorithmException e) {
+				System.err.println("Não foi possível atualizar o MAC dos workspaces: " + e.getMessage());
+			}
+		}
+		finally {
+			workspacesLock.unlock();
+		}
+	}
+
+	/**
+	 * Auxiliary method that indexes a workspace, with its owner as its only member
+	 *
+	 * @param workspace the workspace
+	 * @param owner the owner of the workspace
+	 */
+	private void index(String workspace, String owner) {
+		Set<String> workspaceMembers = ConcurrentHashMap.newKeySet();
+		workspaceMembers.add(owner);
+		members.put(workspace, workspaceMembers);
+		owners.put(workspace, owner);
+		userWorkspaces.computeIfAbsent(owner, u -> ConcurrentHashMap.newKeySet()).add(workspace);
+	}
+
+	/**
+	 * Auxiliary method that indexes a member of a workspace
+	 *
+	 * @param user the member
+	 * @param workspace the workspace
+	 */
+	private void indexMember(String user, String workspace) {
+		members.get(workspace).add(user);
+		userWorkspaces.computeIfAbsent(user, u -> ConcurrentHashMap.newKeySet()).add(workspace);
+	}
+}